@@ -17,6 +17,7 @@ package io.fintechlabs.testframework;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.web.HttpMessageConverters;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -29,6 +30,7 @@ import com.google.common.collect.Lists;
 import io.fintechlabs.testframework.logging.GsonArrayToBsonArrayConverter;
 import io.fintechlabs.testframework.logging.GsonObjectToBsonDocumentConverter;
 import io.fintechlabs.testframework.logging.GsonPrimitiveToBsonValueConverter;
+import io.fintechlabs.testframework.runner.ClusterTestRunnerSupport;
 import io.fintechlabs.testframework.runner.InMemoryTestRunnerSupport;
 import io.fintechlabs.testframework.runner.TestRunnerSupport;
 import io.fintechlabs.testframework.security.KeyManager;
@@ -39,6 +41,10 @@ import io.fintechlabs.testframework.security.KeyManager;
  */
 @Configuration
 public class ApplicationConfig {
+
+	@Value("${fintechlabs.cluster.enabled:false}")
+	private boolean clustered;
+
 	@Bean
 	public HttpMessageConverters customConverters() {
 
@@ -53,7 +59,11 @@ public class ApplicationConfig {
 
 	@Bean
 	public TestRunnerSupport testRunnerSupport() {
-		return new InMemoryTestRunnerSupport();
+		if (clustered) {
+			return new ClusterTestRunnerSupport();
+		} else {
+			return new InMemoryTestRunnerSupport();
+		}
 	}
 
 	@Bean
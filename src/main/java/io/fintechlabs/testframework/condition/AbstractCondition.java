@@ -21,6 +21,7 @@ import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.Proxy.Type;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -40,6 +41,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -49,15 +51,16 @@ import javax.net.ssl.X509TrustManager;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
@@ -66,10 +69,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
+import io.fintechlabs.testframework.condition.util.HttpClientPool;
 import io.fintechlabs.testframework.logging.LoggingRequestInterceptor;
 import io.fintechlabs.testframework.logging.TestInstanceEventLog;
+import io.fintechlabs.testframework.logging.TimingStatistics;
 import io.fintechlabs.testframework.testmodule.DataUtils;
 import io.fintechlabs.testframework.testmodule.Environment;
 
@@ -79,10 +83,18 @@ import io.fintechlabs.testframework.testmodule.Environment;
  */
 public abstract class AbstractCondition implements Condition, DataUtils {
 
+	// connections kept open by each test's HTTP client
+	private static final int MAX_CONNECTIONS = 20;
+
+	// calls are made from the test's mailbox, which nothing else for the test can get through until they return, so
+	// they mustn't be able to hang on a server that stops answering
+	private static final int REQUEST_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(60);
+
 	private String testId;
 	private TestInstanceEventLog log;
 	private Set<String> requirements;
 	private ConditionResult conditionResultOnFailure;
+	private long created = System.nanoTime(); // conditions are created just before they're evaluated
 
 	protected AbstractCondition(String testId, TestInstanceEventLog log, ConditionResult conditionResultOnFailure, String... requirements) {
 		this.testId = testId;
@@ -104,6 +116,11 @@ public abstract class AbstractCondition implements Condition, DataUtils {
 	 */
 
 	protected void log(JsonObject obj) {
+		if (obj.has("result") && !obj.has("elapsed_ms")) {
+			// results carry how long the condition took to get to them
+			obj = copyObject(obj); // don't modify the underlying object
+			obj.addProperty("elapsed_ms", TimingStatistics.toMillis(System.nanoTime() - created));
+		}
 		log.log(getMessage(), obj);
 	}
 
@@ -112,11 +129,16 @@ public abstract class AbstractCondition implements Condition, DataUtils {
 	}
 
 	protected void log(Map<String, Object> map) {
+		if (map.containsKey("result") && !map.containsKey("elapsed_ms")) {
+			// results carry how long the condition took to get to them
+			map = new HashMap<>(map); // don't modify the underlying map
+			map.put("elapsed_ms", TimingStatistics.toMillis(System.nanoTime() - created));
+		}
 		log.log(getMessage(), map);
 	}
 
 	protected void log(String msg, JsonObject in) {
-		JsonObject copy = new JsonParser().parse(in.toString()).getAsJsonObject(); // don't modify the underlying object, round-trip to get a copy
+		JsonObject copy = copyObject(in); // don't modify the underlying object
 		copy.addProperty("msg", msg);
 		log(copy);
 	}
@@ -128,7 +150,7 @@ public abstract class AbstractCondition implements Condition, DataUtils {
 	}
 
 	protected void logSuccess(JsonObject in) {
-		JsonObject copy = new JsonParser().parse(in.toString()).getAsJsonObject(); // don't modify the underlying object, round-trip to get a copy
+		JsonObject copy = copyObject(in); // don't modify the underlying object
 		copy.addProperty("result", ConditionResult.SUCCESS.toString());
 		if (!getRequirements().isEmpty()) {
 			JsonArray arr = new JsonArray();
@@ -158,7 +180,7 @@ public abstract class AbstractCondition implements Condition, DataUtils {
 	}
 
 	protected void logSuccess(String msg, JsonObject in) {
-		JsonObject copy = new JsonParser().parse(in.toString()).getAsJsonObject(); // don't modify the underlying object, round-trip to get a copy
+		JsonObject copy = copyObject(in); // don't modify the underlying object
 		copy.addProperty("msg", msg);
 		copy.addProperty("result", ConditionResult.SUCCESS.toString());
 		if (!getRequirements().isEmpty()) {
@@ -186,7 +208,7 @@ public abstract class AbstractCondition implements Condition, DataUtils {
 	 */
 
 	protected void logFailure(JsonObject in) {
-		JsonObject copy = new JsonParser().parse(in.toString()).getAsJsonObject(); // don't modify the underlying object, round-trip to get a copy
+		JsonObject copy = copyObject(in); // don't modify the underlying object
 		copy.addProperty("result", conditionResultOnFailure.toString());
 		if (!getRequirements().isEmpty()) {
 			JsonArray arr = new JsonArray();
@@ -216,7 +238,7 @@ public abstract class AbstractCondition implements Condition, DataUtils {
 	}
 
 	protected void logFailure(String msg, JsonObject in) {
-		JsonObject copy = new JsonParser().parse(in.toString()).getAsJsonObject(); // don't modify the underlying object, round-trip to get a copy
+		JsonObject copy = copyObject(in); // don't modify the underlying object
 		copy.addProperty("msg", msg);
 		copy.addProperty("result", conditionResultOnFailure.toString());
 		if (!getRequirements().isEmpty()) {
@@ -347,7 +369,7 @@ public abstract class AbstractCondition implements Condition, DataUtils {
 	/*
 	 * Create an HTTP Client for use in calling outbound to other services
 	 */
-	protected HttpClient createHttpClient(Environment env) throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, IOException, UnrecoverableKeyException, KeyManagementException {
+	protected CloseableHttpClient createHttpClient(Environment env) throws CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, IOException, UnrecoverableKeyException, KeyManagementException {
 		HttpClientBuilder builder = HttpClientBuilder.create()
 			.useSystemProperties();
 
@@ -420,15 +442,45 @@ public abstract class AbstractCondition implements Condition, DataUtils {
 			.register("http", new PlainConnectionSocketFactory())
 			.build();
 
-		HttpClientConnectionManager ccm = new BasicHttpClientConnectionManager(registry);
+		// the client is shared by the conditions of a test (see createRestTemplate), so it needs a pool of connections
+		PoolingHttpClientConnectionManager ccm = new PoolingHttpClientConnectionManager(registry);
+		ccm.setMaxTotal(MAX_CONNECTIONS);
+		ccm.setDefaultMaxPerRoute(MAX_CONNECTIONS);
 		builder.setConnectionManager(ccm);
 
-		HttpClient httpClient = builder.build();
+		builder.setDefaultRequestConfig(RequestConfig.custom()
+			.setConnectTimeout(REQUEST_TIMEOUT_MILLIS)
+			.setConnectionRequestTimeout(REQUEST_TIMEOUT_MILLIS)
+			.setSocketTimeout(REQUEST_TIMEOUT_MILLIS)
+			.build());
+
+		// connections made with a client certificate are otherwise only reused by the same user context, and every
+		// request has a new one
+		builder.disableConnectionState();
+
+		CloseableHttpClient httpClient = builder.build();
 		return httpClient;
 	}
 
 	protected RestTemplate createRestTemplate(Environment env) throws UnrecoverableKeyException, KeyManagementException, CertificateException, InvalidKeySpecException, NoSuchAlgorithmException, KeyStoreException, IOException {
-		HttpClient httpClient = createHttpClient(env);
+		// reuse the test's client for this identity, and with it any open connections and TLS sessions
+		List<String> mtlsIdentity = null;
+		if (env.containsObject("mutual_tls_authentication")) {
+			mtlsIdentity = Lists.newArrayList(
+				env.getString("mutual_tls_authentication", "cert"),
+				env.getString("mutual_tls_authentication", "key"),
+				env.getString("mutual_tls_authentication", "ca"));
+		}
+
+		HttpClient httpClient;
+		try {
+			httpClient = HttpClientPool.getClient(testId, mtlsIdentity, () -> createHttpClient(env));
+		} catch (UnrecoverableKeyException | KeyManagementException | CertificateException | InvalidKeySpecException | NoSuchAlgorithmException | KeyStoreException e) {
+			throw e;
+		} catch (GeneralSecurityException e) {
+			// createHttpClient doesn't throw anything else
+			throw new KeyManagementException(e);
+		}
 
 		RestTemplate restTemplate = new RestTemplate(new HttpComponentsClientHttpRequestFactory(httpClient));
 
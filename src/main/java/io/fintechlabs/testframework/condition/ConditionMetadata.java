@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.condition;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import io.fintechlabs.testframework.condition.Condition.ConditionResult;
+import io.fintechlabs.testframework.logging.TestInstanceEventLog;
+import io.fintechlabs.testframework.testmodule.Environment;
+
+/**
+ * Everything needed to call a condition class that can be worked out once, instead of with reflection on every call:
+ * a handle on its constructor, and the requirements from the PreEnvironment and PostEnvironment annotations on its
+ * evaluate method.
+ *
+ * The metadata for each class is created the first time it's asked for and kept for as long as the class is loaded.
+ *
+ * @author jricher
+ *
+ */
+public final class ConditionMetadata {
+
+	// the constructor every condition has, as called by the test modules
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(void.class,
+		String.class, TestInstanceEventLog.class, ConditionResult.class, String[].class);
+
+	private static final MethodType FACTORY_TYPE = MethodType.methodType(Condition.class,
+		String.class, TestInstanceEventLog.class, ConditionResult.class, String[].class);
+
+	private static final String[] NONE = new String[0];
+
+	private static final ClassValue<ConditionMetadata> metadata = new ClassValue<ConditionMetadata>() {
+		@Override
+		protected ConditionMetadata computeValue(Class<?> type) {
+			return new ConditionMetadata(type);
+		}
+	};
+
+	private final Class<?> conditionClass;
+
+	private final MethodHandle constructor; // null if the class can't be created
+	private final String constructorError;
+
+	private final String[] preRequired;
+	private final String[] preStrings;
+	private final String[] postRequired;
+	private final String[] postStrings;
+
+	private ConditionMetadata(Class<?> conditionClass) {
+		this.conditionClass = conditionClass;
+
+		MethodHandle handle = null;
+		String error = null;
+		try {
+			handle = MethodHandles.publicLookup()
+				.findConstructor(conditionClass, CONSTRUCTOR_TYPE)
+				.asType(FACTORY_TYPE);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			error = e.toString();
+		}
+		this.constructor = handle;
+		this.constructorError = error;
+
+		PreEnvironment pre = null;
+		PostEnvironment post = null;
+		try {
+			Method eval = conditionClass.getMethod("evaluate", Environment.class);
+			pre = eval.getAnnotation(PreEnvironment.class);
+			post = eval.getAnnotation(PostEnvironment.class);
+		} catch (NoSuchMethodException e) {
+			// not a condition; there's nothing to check
+		}
+
+		this.preRequired = pre != null ? pre.required() : NONE;
+		this.preStrings = pre != null ? pre.strings() : NONE;
+		this.postRequired = post != null ? post.required() : NONE;
+		this.postStrings = post != null ? post.strings() : NONE;
+	}
+
+	/**
+	 * Get the metadata for a condition class.
+	 */
+	public static ConditionMetadata forClass(Class<? extends Condition> conditionClass) {
+		return metadata.get(conditionClass);
+	}
+
+	/**
+	 * Create a new instance of the condition.
+	 *
+	 * @throws NoSuchMethodException if the class doesn't have a public constructor of the usual form
+	 * @throws InvocationTargetException if the constructor throws anything
+	 */
+	public Condition newInstance(String testId, TestInstanceEventLog log, ConditionResult conditionResultOnFailure, String... requirements)
+		throws NoSuchMethodException, InvocationTargetException {
+
+		if (constructor == null) {
+			throw new NoSuchMethodException("Can't create " + conditionClass.getName() + ": " + constructorError);
+		}
+
+		try {
+			return (Condition) constructor.invokeExact(testId, log, conditionResultOnFailure, requirements);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	/**
+	 * @return the objects that have to be in the environment before the condition is evaluated
+	 */
+	public String[] getPreRequired() {
+		return preRequired;
+	}
+
+	/**
+	 * @return the strings that have to be in the environment before the condition is evaluated
+	 */
+	public String[] getPreStrings() {
+		return preStrings;
+	}
+
+	/**
+	 * @return the objects that have to be in the environment after the condition is evaluated
+	 */
+	public String[] getPostRequired() {
+		return postRequired;
+	}
+
+	/**
+	 * @return the strings that have to be in the environment after the condition is evaluated
+	 */
+	public String[] getPostStrings() {
+		return postStrings;
+	}
+
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.condition.util;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the HTTP clients used by conditions, so that calls from the same test with the same client certificate
+ * reuse their connections and TLS sessions instead of each making their own.
+ *
+ * A client belongs to one test and one mutual TLS identity, and is closed once it hasn't been used for a while.
+ * Clients pick up the proxy system properties when they're built, so a change to those gets new clients too.
+ * Conditions aren't Spring beans, so this is kept statically.
+ *
+ * @author jricher
+ *
+ */
+public final class HttpClientPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(HttpClientPool.class);
+
+	// clients unused for this long are closed along with their connections, which also gets rid of those for
+	// finished tests
+	private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private static final String[] PROXY_PROPERTIES = {
+		"http.proxyHost", "http.proxyPort", "https.proxyHost", "https.proxyPort", "http.nonProxyHosts"
+	};
+
+	private static final ConcurrentMap<ClientKey, PooledClient> clients = new ConcurrentHashMap<>();
+
+	private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+		.setNameFormat("http-client-evictor-%d")
+		.setDaemon(true)
+		.build());
+
+	static {
+		evictor.scheduleWithFixedDelay(HttpClientPool::evict, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Builds a new client, when there isn't one for the key already.
+	 */
+	@FunctionalInterface
+	public interface ClientFactory {
+		CloseableHttpClient create() throws GeneralSecurityException, IOException;
+	}
+
+	private HttpClientPool() {
+		// not instantiable
+	}
+
+	/**
+	 * Get the client for a test and mutual TLS identity, building it if there isn't one.
+	 *
+	 * @param testId the test the client is for
+	 * @param mtlsIdentity the client certificate, key and CA the client presents, null for none
+	 * @param clientFactory builds a new client
+	 */
+	public static CloseableHttpClient getClient(String testId, Object mtlsIdentity, ClientFactory clientFactory) throws GeneralSecurityException, IOException {
+
+		StringBuilder proxy = new StringBuilder();
+		for (String property : PROXY_PROPERTIES) {
+			proxy.append(System.getProperty(property, "")).append('|');
+		}
+
+		ClientKey key = new ClientKey(testId, mtlsIdentity, proxy.toString());
+
+		// marking it as used is atomic with the eviction check, so a client can't be closed as it's handed out
+		PooledClient pooled = clients.computeIfPresent(key, (k, v) -> v.touch());
+		if (pooled == null) {
+			// building a client means parsing keys and setting up TLS, which is what we're saving, so don't hold a lock
+			PooledClient created = new PooledClient(clientFactory.create());
+			pooled = clients.putIfAbsent(key, created);
+			if (pooled == null) {
+				pooled = created;
+			} else {
+				// somebody else got there first
+				close(created);
+			}
+		}
+
+		return pooled.client;
+	}
+
+	/**
+	 * @return the number of clients being kept
+	 */
+	public static int size() {
+		return clients.size();
+	}
+
+	private static void evict() {
+		try {
+			long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+
+			for (ClientKey key : clients.keySet()) {
+				PooledClient[] evicted = new PooledClient[1];
+				clients.computeIfPresent(key, (k, v) -> {
+					if (v.lastUsed < cutoff) {
+						evicted[0] = v;
+						return null;
+					}
+					return v;
+				});
+				if (evicted[0] != null) {
+					close(evicted[0]);
+				}
+			}
+		} catch (RuntimeException e) {
+			// don't let this escape, or eviction won't be run again
+			logger.error("Error while evicting HTTP clients", e);
+		}
+	}
+
+	private static void close(PooledClient pooled) {
+		try {
+			pooled.client.close();
+		} catch (IOException e) {
+			logger.warn("Couldn't close HTTP client", e);
+		}
+	}
+
+	private static class PooledClient {
+		private final CloseableHttpClient client;
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		public PooledClient(CloseableHttpClient client) {
+			this.client = client;
+		}
+
+		public PooledClient touch() {
+			lastUsed = System.currentTimeMillis();
+			return this;
+		}
+	}
+
+	private static class ClientKey {
+		private final String testId;
+		private final Object mtlsIdentity;
+		private final String proxy;
+
+		public ClientKey(String testId, Object mtlsIdentity, String proxy) {
+			this.testId = testId;
+			this.mtlsIdentity = mtlsIdentity;
+			this.proxy = proxy;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ClientKey)) {
+				return false;
+			}
+			ClientKey other = (ClientKey) o;
+			return Objects.equals(testId, other.testId)
+				&& Objects.equals(mtlsIdentity, other.mtlsIdentity)
+				&& proxy.equals(other.proxy);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(testId, mtlsIdentity, proxy);
+		}
+	}
+
+}
@@ -175,7 +175,7 @@ public class SampleImplicitModule extends AbstractTestModule {
 	 */
 	private Object handleImplicitSubmission(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 
 			// process the callback
 			setStatus(Status.RUNNING);
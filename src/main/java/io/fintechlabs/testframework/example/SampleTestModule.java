@@ -193,7 +193,7 @@ public class SampleTestModule extends AbstractTestModule {
 	@UserFacing
 	private Object handleCallback(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			// process the callback
 			setStatus(Status.RUNNING);
 
@@ -284,7 +284,7 @@ public class CodeIdTokenWithClientSecretJWTAssertion extends AbstractTestModule
 
 	private Object handleImplicitSubmission(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 
 			// process the callback
 			setStatus(Status.RUNNING);
@@ -444,7 +444,7 @@ public class CodeIdTokenWithClientSecretJWTAssertion extends AbstractTestModule
 
 	private Object handleSecondClientImplicitSubmission(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			// process the callback
 			setStatus(Status.RUNNING);
 
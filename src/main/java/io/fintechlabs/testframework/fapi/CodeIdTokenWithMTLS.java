@@ -294,7 +294,7 @@ public class CodeIdTokenWithMTLS extends AbstractTestModule {
 
 	private Object handleImplicitSubmission(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			// process the callback
 			setStatus(Status.RUNNING);
 
@@ -448,7 +448,7 @@ public class CodeIdTokenWithMTLS extends AbstractTestModule {
 
 	private Object handleSecondClientImplicitSubmission(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 
 			// process the callback
 
@@ -252,7 +252,7 @@ public class CodeIdTokenWithPKCE extends AbstractTestModule {
 	 */
 	private Object handleImplicitSubmission(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			// process the callback
 			setStatus(Status.RUNNING);
 
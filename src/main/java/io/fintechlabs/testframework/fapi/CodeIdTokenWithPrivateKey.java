@@ -440,7 +440,7 @@ public class CodeIdTokenWithPrivateKey extends AbstractTestModule {
 	private Object handleSecondClientImplicitSubmission(JsonObject requestParts) {
 
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			// process the callback
 			setStatus(Status.RUNNING);
 
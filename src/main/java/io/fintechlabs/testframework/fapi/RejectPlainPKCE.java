@@ -156,7 +156,7 @@ public class RejectPlainPKCE extends AbstractTestModule {
 
 	private Object handleImplicitSubmission(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			// process the callback
 			setStatus(Status.RUNNING);
 
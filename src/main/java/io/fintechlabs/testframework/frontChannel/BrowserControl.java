@@ -20,6 +20,11 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 import org.openqa.selenium.By;
@@ -102,7 +107,11 @@ public class BrowserControl implements DataUtils {
 
 	private List<String> urls = new ArrayList<>();
 	private List<String> visited = new ArrayList<>();
-	private List<WebRunner> runners = new ArrayList<>();
+	private List<WebRunner> runners = new CopyOnWriteArrayList<>();
+
+	// completed once there are no runners left, so that nobody has to poll the list of runners or wait on a thread
+	private final ReentrantLock runnersLock = new ReentrantLock();
+	private final List<CompletableFuture<Void>> idleWaiters = new ArrayList<>(); // guarded by runnersLock
 
 	private ImageService imageService;
 
@@ -157,10 +166,16 @@ public class BrowserControl implements DataUtils {
 			// logger.info("\t" + PatternMatchUtils.simpleMatch(urlPattern,url));
 			if (PatternMatchUtils.simpleMatch(urlPattern, url)) {
 				WebRunner wr = new WebRunner(url, tasksForUrls.get(urlPattern), placeholder);
-				executionManager.runInBackground(wr);
-				logger.debug("WebRunner submitted to task executor for: " + url);
 
+				// add the runner before it starts, so that it can't finish before it's in the list
 				runners.add(wr);
+				try {
+					executionManager.runInBackground(wr);
+				} catch (RejectedExecutionException e) {
+					removeRunner(wr);
+					throw e;
+				}
+				logger.debug("WebRunner submitted to task executor for: " + url);
 
 				return;
 			}
@@ -182,6 +197,62 @@ public class BrowserControl implements DataUtils {
 		visited.add(url);
 	}
 
+	private void removeRunner(WebRunner wr) {
+		runners.remove(wr);
+
+		List<CompletableFuture<Void>> idle = new ArrayList<>();
+		runnersLock.lock();
+		try {
+			if (runners.isEmpty()) {
+				idle.addAll(idleWaiters);
+				idleWaiters.clear();
+			}
+		} finally {
+			runnersLock.unlock();
+		}
+
+		// outside the lock, as these call back into the test
+		idle.forEach(waiter -> waiter.complete(null));
+	}
+
+	/**
+	 * Call back once there are no web runners left for this test, or once the timeout is up. Nothing waits on a
+	 * thread in the meantime: the callback is made from whichever runner finishes last, or from the test's timer.
+	 * It should only post work to the test's mailbox. It isn't made at all if the test's work is cancelled first.
+	 *
+	 * Note that a runner that failed stays in the list, so the callback comes after the full timeout in that case.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit the unit of the timeout
+	 * @param callback what to call
+	 */
+	public void afterWebRunners(long timeout, TimeUnit unit, Runnable callback) {
+		// completed early if the runners finish first
+		CompletableFuture<Void> waiter = executionManager.schedule(timeout, unit);
+
+		waiter.whenComplete((result, error) -> {
+			if (error == null) {
+				try {
+					callback.run();
+				} catch (RuntimeException e) {
+					logger.error("Error after waiting for the web runners of test " + testId, e);
+				}
+			}
+		});
+
+		runnersLock.lock();
+		try {
+			if (!runners.isEmpty()) {
+				idleWaiters.add(waiter);
+				return;
+			}
+		} finally {
+			runnersLock.unlock();
+		}
+
+		waiter.complete(null);
+	}
+
 	/**
 	 * Private Runnable class that acts as the browser and allows goToUrl to return before the page gets hit.
 	 * This gets handed to a {@link TaskExecutor} which manages the thread it gets run on
@@ -322,7 +393,7 @@ public class BrowserControl implements DataUtils {
 				}
 				logger.debug("Completed Browser Commands");
 				// if we've successfully completed the command set, consider this URL visited
-				runners.remove(this);
+				removeRunner(this);
 				urlVisited(url);
 
 				return "web runner exited";
@@ -560,7 +631,7 @@ public class BrowserControl implements DataUtils {
 
 		eventLog.log("BROWSER", args("msg", "Updated placeholder from scripted browser", "placeholder", placeholder));
 
-		if (imageService.getRemainingPlaceholders(testId, true).isEmpty()) {
+		if (imageService.countRemainingPlaceholders(testId) == 0) {
 			// no remaining placeholders
 			eventLog.log("BROWSER", args("msg", "All placeholders filled by scripted browser"));
 		}
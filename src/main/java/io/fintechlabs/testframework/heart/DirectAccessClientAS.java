@@ -76,6 +76,9 @@ public class DirectAccessClientAS extends AbstractTestModule {
 
 	public static Logger logger = LoggerFactory.getLogger(DirectAccessClientAS.class);
 
+	// the keys we publish, kept aside so they can be served outside the mailbox without reading the environment
+	private volatile JsonObject publishedJwks;
+
 	/* (non-Javadoc)
 	 * @see io.bspk.selenium.TestModule#configure(com.google.gson.JsonObject)
 	 */
@@ -110,6 +113,8 @@ public class DirectAccessClientAS extends AbstractTestModule {
 
 		exposeEnvString("client_id");
 
+		publishedJwks = env.getObject("server_public_jwks");
+
 		setStatus(Status.CONFIGURED);
 		fireSetupDone();
 	}
@@ -150,6 +155,23 @@ public class DirectAccessClientAS extends AbstractTestModule {
 		fireTestFinished();
 	}
 
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.AbstractTestModule#restoreModuleState(com.google.gson.JsonObject)
+	 */
+	@Override
+	protected void restoreModuleState(JsonObject state) {
+		publishedJwks = env.getObject("server_public_jwks");
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.TestModule#isReadOnlyPath(java.lang.String)
+	 */
+	@Override
+	public boolean isReadOnlyPath(String path) {
+		// the server may fetch our keys while we're calling it, so they can't wait their turn behind that call
+		return path.equals("jwks");
+	}
+
 	/* (non-Javadoc)
 	 * @see io.fintechlabs.testframework.TestModule#handleHttp(java.lang.String, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, javax.servlet.http.HttpSession, org.springframework.util.MultiValueMap, org.springframework.ui.Model)
 	 */
@@ -165,12 +187,8 @@ public class DirectAccessClientAS extends AbstractTestModule {
 	}
 
 	private Object handleJwks(JsonObject requestParts) {
-		setStatus(Status.RUNNING);
-		JsonObject jwks = env.getObject("server_public_jwks");
-
-		setStatus(Status.WAITING);
-
-		return new ResponseEntity<Object>(jwks, HttpStatus.OK);
+		// this is served outside the mailbox, so it mustn't touch the test's state
+		return new ResponseEntity<Object>(publishedJwks, HttpStatus.OK);
 	}
 
 }
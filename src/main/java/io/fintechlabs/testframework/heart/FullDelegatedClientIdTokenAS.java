@@ -93,6 +93,9 @@ public class FullDelegatedClientIdTokenAS extends AbstractTestModule {
 
 	public static Logger logger = LoggerFactory.getLogger(FullDelegatedClientIdTokenAS.class);
 
+	// the keys we publish, kept aside so they can be served outside the mailbox without reading the environment
+	private volatile JsonObject publishedJwks;
+
 	/* (non-Javadoc)
 	 * @see io.bspk.selenium.TestModule#configure(com.google.gson.JsonObject)
 	 */
@@ -134,6 +137,8 @@ public class FullDelegatedClientIdTokenAS extends AbstractTestModule {
 
 		exposeEnvString("client_id");
 
+		publishedJwks = env.getObject("server_public_jwks");
+
 		setStatus(Status.CONFIGURED);
 		fireSetupDone();
 	}
@@ -171,6 +176,23 @@ public class FullDelegatedClientIdTokenAS extends AbstractTestModule {
 		browser.goToUrl(redirectTo);
 	}
 
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.AbstractTestModule#restoreModuleState(com.google.gson.JsonObject)
+	 */
+	@Override
+	protected void restoreModuleState(JsonObject state) {
+		publishedJwks = env.getObject("server_public_jwks");
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.TestModule#isReadOnlyPath(java.lang.String)
+	 */
+	@Override
+	public boolean isReadOnlyPath(String path) {
+		// the server may fetch our keys while we're calling it, so they can't wait their turn behind that call
+		return path.equals("jwks");
+	}
+
 	/* (non-Javadoc)
 	 * @see io.fintechlabs.testframework.TestModule#handleHttp(java.lang.String, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, javax.servlet.http.HttpSession, org.springframework.util.MultiValueMap, org.springframework.ui.Model)
 	 */
@@ -192,12 +214,8 @@ public class FullDelegatedClientIdTokenAS extends AbstractTestModule {
 	 * @return
 	 */
 	private Object handleJwks(JsonObject requestParts) {
-		setStatus(Status.RUNNING);
-		JsonObject jwks = env.getObject("server_public_jwks");
-
-		setStatus(Status.WAITING);
-
-		return new ResponseEntity<Object>(jwks, HttpStatus.OK);
+		// this is served outside the mailbox, so it mustn't touch the test's state
+		return new ResponseEntity<Object>(publishedJwks, HttpStatus.OK);
 	}
 
 	/**
@@ -212,7 +230,7 @@ public class FullDelegatedClientIdTokenAS extends AbstractTestModule {
 	@UserFacing
 	private Object handleCallback(JsonObject requestParts) {
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			// process the callback
 			setStatus(Status.RUNNING);
 
@@ -37,6 +37,9 @@ public class TokenRevocationAS extends AbstractTestModule {
 
 	public static Logger logger = LoggerFactory.getLogger(TokenRevocationAS.class);
 
+	// the keys we publish, kept aside so they can be served outside the mailbox without reading the environment
+	private volatile JsonObject publishedJwks;
+
 	@Override
 	public void configure(JsonObject config, String baseUrl) {
 		env.putString("base_url", baseUrl);
@@ -72,6 +75,8 @@ public class TokenRevocationAS extends AbstractTestModule {
 		expose("resourceUrl",env.getString("resoruce","resourceUrl"));
 		expose("resourceMethod",env.getString("resoruce","resourceMethod"));
 
+		publishedJwks = env.getObject("server_public_jwks");
+
 		setStatus(Status.CONFIGURED);
 		fireSetupDone();
 	}
@@ -120,6 +125,23 @@ public class TokenRevocationAS extends AbstractTestModule {
 		fireTestFinished();
 	}
 
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.AbstractTestModule#restoreModuleState(com.google.gson.JsonObject)
+	 */
+	@Override
+	protected void restoreModuleState(JsonObject state) {
+		publishedJwks = env.getObject("server_public_jwks");
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.TestModule#isReadOnlyPath(java.lang.String)
+	 */
+	@Override
+	public boolean isReadOnlyPath(String path) {
+		// the server may fetch our keys while we're calling it, so they can't wait their turn behind that call
+		return path.equals("jwks");
+	}
+
 	@Override
 	public Object handleHttp(String path, HttpServletRequest req, HttpServletResponse res, HttpSession session, JsonObject requestParts) {
 		// dispatch based on the path
@@ -131,11 +153,7 @@ public class TokenRevocationAS extends AbstractTestModule {
 	}
 
 	private Object handleJwks(JsonObject requestParts) {
-		setStatus(Status.RUNNING);
-		JsonObject jwks = env.getObject("server_public_jwks");
-
-		setStatus(Status.WAITING);
-
-		return new ResponseEntity<Object>(jwks, HttpStatus.OK);
+		// this is served outside the mailbox, so it mustn't touch the test's state
+		return new ResponseEntity<Object>(publishedJwks, HttpStatus.OK);
 	}
 }
@@ -14,11 +14,14 @@
 
 package io.fintechlabs.testframework.info;
 
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.RandomStringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
@@ -28,19 +31,32 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import com.google.common.base.Strings;
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBObject;
 
 import io.fintechlabs.testframework.logging.DBEventLog;
+import io.fintechlabs.testframework.logging.EventLog;
 import io.fintechlabs.testframework.security.AuthenticationFacade;
 
 /**
+ * Images and placeholders are kept in their own collection, so that image data doesn't weigh down every read
+ * of the log and placeholders can be found through an index. The log entry for a placeholder has the same _id
+ * as its document here, and refers to it by imageId once it holds an image; the log entry for an uploaded image
+ * refers to it by imageId from the start.
+ *
+ * Tests logged before images had a collection of their own keep their images in the log entries themselves,
+ * and these are still found there.
+ *
  * @author jheenan
  *
  */
 @Service
 public class DBImageService implements ImageService {
 
+	public static final String COLLECTION = "IMAGES";
+
 	@Value("${fintechlabs.version}")
 	private String version;
 
@@ -50,6 +66,12 @@ public class DBImageService implements ImageService {
 	@Autowired
 	private AuthenticationFacade authenticationFacade;
 
+	@Autowired
+	private EventLog eventLog;
+
+	@Autowired
+	private PlaceholderTracker placeholderTracker;
+
 	// Create a Criteria with or without the security constraints as needed
 	private Criteria createCriteria(Criteria findTestId, Criteria additionalConstraints, boolean assumeAdmin) {
 		Criteria criteria = new Criteria();
@@ -70,6 +92,7 @@ public class DBImageService implements ImageService {
 
 	@Override
 	public DBObject fillPlaceholder(String testId, String placeholder, Map<String, Object> update, boolean assumeAdmin) {
+
 		Criteria findTestId = Criteria.where("testId").is(testId);
 
 		// add the placeholder condition
@@ -87,11 +110,69 @@ public class DBImageService implements ImageService {
 
 		updateCommand.unset("upload");
 
-		return mongoTemplate.findAndModify(query, updateCommand, FindAndModifyOptions.options().returnNew(true), DBObject.class, DBEventLog.COLLECTION);
+		DBObject result = mongoTemplate.findAndModify(query, updateCommand, FindAndModifyOptions.options().returnNew(true), DBObject.class, COLLECTION);
+
+		if (result != null) {
+			// now update the log entry to match, leaving the image itself out
+			Update logUpdate = new Update();
+			for (Entry<String, Object> field : update.entrySet()) {
+				if (!field.getKey().equals("img")) {
+					logUpdate.set(field.getKey(), field.getValue());
+				}
+			}
+			if (update.containsKey("img")) {
+				logUpdate.set("imageId", result.get("_id"));
+			}
+			logUpdate.unset("upload");
+
+			// the log entry might still be on its way to the database
+			eventLog.flush();
+			mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(result.get("_id"))), logUpdate, DBEventLog.COLLECTION);
+		} else {
+			// placeholders logged before images had their own collection only exist in the log
+			eventLog.flush();
+			result = mongoTemplate.findAndModify(query, updateCommand, FindAndModifyOptions.options().returnNew(true), DBObject.class, DBEventLog.COLLECTION);
+		}
+
+		if (result != null) {
+			// let the test know, it might be waiting for this
+			placeholderTracker.placeholderFilled(testId, placeholder);
+		}
+
+		return result;
+	}
+
+	@Override
+	public DBObject addImage(String testId, Map<String, String> testOwner, String description, String encoded) {
+		String entryId = testId + "-" + RandomStringUtils.randomAlphanumeric(32);
+		long time = new Date().getTime();
+
+		DBObject image = BasicDBObjectBuilder.start()
+			.add("_id", entryId)
+			.add("testId", testId)
+			.add("testOwner", testOwner)
+			.add("src", "_image-api")
+			.add("time", time)
+			.add("msg", Strings.emptyToNull(description))
+			.add("img", encoded)
+			.get();
+
+		mongoTemplate.insert(image, COLLECTION);
+
+		// and a log entry that refers to it, written the same way as every other entry so that it's in sequence with
+		// them and anyone following the log sees it
+		Map<String, Object> logEntry = new LinkedHashMap<>();
+		logEntry.put("msg", Strings.emptyToNull(description));
+		logEntry.put("imageId", entryId);
+
+		eventLog.log(testId, "_image-api", testOwner, logEntry);
+
+		return mongoTemplate.getCollection(COLLECTION).findOne(entryId);
 	}
 
 	@Override
 	public List<String> getRemainingPlaceholders(String testId, boolean assumeAdmin) {
+
 		Criteria findTestId = Criteria.where("testId").is(testId);
 
 		// check to see if all placeholders are set by searching for any remaining ones on this test
@@ -103,15 +184,38 @@ public class DBImageService implements ImageService {
 		search.fields().include("upload");
 
 		return mongoTemplate
-				.getCollection(DBEventLog.COLLECTION)
+				.getCollection(COLLECTION)
 				.find(search.getQueryObject(), search.getFieldsObject())
 				.toArray().stream()
 					.map((obj) -> obj.get("upload").toString())
 					.collect(Collectors.toList());
 	}
 
+	@Override
+	public int countRemainingPlaceholders(String testId) {
+		return placeholderTracker.countRemainingPlaceholders(testId);
+	}
+
+	@Override
+	public int reloadPlaceholders(String testId) {
+		List<String> placeholders = getRemainingPlaceholders(testId, true);
+		placeholderTracker.placeholdersLoaded(testId, placeholders);
+		return placeholders.size();
+	}
+
+	@Override
+	public void addPlaceholderListener(String testId, Runnable listener) {
+		placeholderTracker.addListener(testId, listener);
+	}
+
+	@Override
+	public void removePlaceholderListener(String testId, Runnable listener) {
+		placeholderTracker.removeListener(testId, listener);
+	}
+
 	@Override
 	public List<DBObject> getAllImagesForTestId(String testId, boolean assumeAdmin) {
+
 		Criteria findTestId = Criteria.where("testId").is(testId);
 
 		Criteria anyImages =
@@ -125,6 +229,25 @@ public class DBImageService implements ImageService {
 
 		Query search = Query.query(criteria);
 
+		// leave the image data out, it can be fetched on its own
+		List<DBObject> images = mongoTemplate.getCollection(COLLECTION).find(search.getQueryObject(), new BasicDBObject("img", 0))
+			.sort(BasicDBObjectBuilder.start()
+				.add("time", 1)
+				.get())
+			.toArray();
+
+		if (!images.isEmpty()) {
+			for (DBObject image : images) {
+				if (!image.containsField("upload")) {
+					image.put("imgUrl", "/log/" + testId + "/images/" + image.get("_id") + "/content");
+				}
+			}
+			return images;
+		}
+
+		// this test might be from before images had their own collection
+		eventLog.flush();
+
 		return mongoTemplate.getCollection(DBEventLog.COLLECTION).find(search.getQueryObject())
 			.sort(BasicDBObjectBuilder.start()
 				.add("time", 1)
@@ -132,4 +255,25 @@ public class DBImageService implements ImageService {
 			.toArray();
 	}
 
+	@Override
+	public DBObject getImage(String testId, String imageId, boolean assumeAdmin) {
+
+		Criteria findTestId = Criteria.where("testId").is(testId);
+
+		Criteria findImage = new Criteria().andOperator(
+			Criteria.where("_id").is(imageId),
+			Criteria.where("img").exists(true));
+
+		Criteria criteria = createCriteria(findTestId, findImage, assumeAdmin);
+
+		DBObject image = mongoTemplate.getCollection(COLLECTION).findOne(criteria.getCriteriaObject());
+
+		if (image == null) {
+			// this might be an image from before images had their own collection
+			image = mongoTemplate.getCollection(DBEventLog.COLLECTION).findOne(criteria.getCriteriaObject());
+		}
+
+		return image;
+	}
+
 }
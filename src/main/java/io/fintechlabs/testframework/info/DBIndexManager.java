@@ -0,0 +1,373 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.info;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import io.fintechlabs.testframework.logging.DBEventLog;
+import io.fintechlabs.testframework.logging.EventLogWriter;
+import io.fintechlabs.testframework.logging.LogArchiver;
+import io.fintechlabs.testframework.runner.DBTestOwnershipService;
+import io.fintechlabs.testframework.runner.TestCheckpointer;
+
+/**
+ * Declares the indexes behind each of our queries, and makes sure they exist when the server starts.
+ *
+ * Reconciling is idempotent: indexes that already exist as declared are left alone, indexes of ours whose
+ * definition has changed are dropped and built again, and missing ones are built in the background.
+ * Indexes we don't know about are reported but never dropped.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class DBIndexManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(DBIndexManager.class);
+
+	@Value("${fintechlabs.mongo.manage_indexes:true}")
+	private boolean manageIndexes;
+
+	@Value("${fintechlabs.retention.hot_retention_days:7}")
+	private long hotRetentionDays;
+
+	@Value("${fintechlabs.checkpoint.expire_after_days:7}")
+	private long checkpointExpiryDays;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	private List<IndexSpec> indexes = new ArrayList<>();
+
+	public DBIndexManager() {
+
+		// LogApi: log entries for a test, ordered by time then _id (also covers the paging queries)
+		declare(DBEventLog.COLLECTION, "testId_time_id", keys("testId", 1, "time", 1, "_id", 1), null);
+
+		// LogApi: new log entries for a test since the last one seen, for polling and streaming
+		declare(DBEventLog.COLLECTION, "testId_seq", keys("testId", 1, EventLogWriter.SEQUENCE_FIELD, 1), null);
+
+		// LogApi: log entries for a user
+		declare(DBEventLog.COLLECTION, "testOwner_testId", keys("testOwner", 1, "testId", 1), null);
+
+		// DBImageService: images for a test, in order
+		declare(DBImageService.COLLECTION, "testId_time", keys("testId", 1, "time", 1), null);
+
+		// DBImageService: unfilled placeholders for a test; only the ones still waiting are indexed
+		declare(DBImageService.COLLECTION, "testId_upload_partial", keys("testId", 1, "upload", 1),
+			new BasicDBObject("upload", new BasicDBObject("$exists", true)));
+
+		// LogApi and TestInfoApi: tests for a user, newest first
+		declare(DBTestInfoService.COLLECTION, "owner_startedAt", keys("owner", 1, DBTestInfoService.STARTED_AT_FIELD, -1), null);
+
+		// LogApi: all tests, newest first, for admins
+		declare(DBTestInfoService.COLLECTION, "startedAt", keys(DBTestInfoService.STARTED_AT_FIELD, -1), null);
+
+		// LogApi: searching the list of tests; the fields are in the order the database lists them back
+		declare(DBTestInfoService.COLLECTION, "search_text", keys(
+			"alias", "text",
+			"description", "text",
+			"planId", "text",
+			"result", "text",
+			"status", "text",
+			"testId", "text",
+			"testName", "text"), null);
+
+		// DBTestPlanService: plans for a user
+		declare(DBTestPlanService.COLLECTION, "owner", keys("owner", 1), null);
+
+		// DBSavedConfigurationService: latest saved configuration for a user
+		declare(DBSavedConfigurationService.COLLECTION, "owner_time", keys("owner", 1, "time", -1), null);
+
+		// DBTestOwnershipService: the test with an alias, newest first; only tests with an alias are indexed
+		declare(DBTestOwnershipService.COLLECTION, "alias_updated", keys("alias", 1, DBTestOwnershipService.UPDATED_FIELD, -1),
+			new BasicDBObject("alias", new BasicDBObject("$exists", true)));
+
+		// TestCheckpointer: the latest checkpointed test with an alias; only checkpoints with an alias are indexed
+		declare(TestCheckpointer.COLLECTION, "alias_updated", keys("alias", 1, TestCheckpointer.UPDATED_FIELD, -1),
+			new BasicDBObject("alias", new BasicDBObject("$exists", true)));
+
+		// DBTestOwnershipService: tests on a node
+		declare(DBTestOwnershipService.COLLECTION, "node", keys("node", 1), null);
+
+		// DBTestOwnershipService: tests whose node stopped sending heartbeats are ignored straight away, and removed an hour later
+		declare(DBTestOwnershipService.COLLECTION, "updated_ttl", keys(DBTestOwnershipService.UPDATED_FIELD, 1), null,
+			TimeUnit.HOURS.toSeconds(1));
+	}
+
+	// these depend on our configuration, so they can't be declared until it has been injected
+	private void declareExpiringIndexes() {
+		long expireAfterSeconds = TimeUnit.DAYS.toSeconds(hotRetentionDays);
+
+		// LogArchiver: archived and restored log entries expire a while after they were archived or restored
+		declare(DBEventLog.COLLECTION, "archivedAt_ttl", keys(LogArchiver.EXPIRY_FIELD, 1),
+			new BasicDBObject(LogArchiver.EXPIRY_FIELD, new BasicDBObject("$exists", true)), expireAfterSeconds);
+
+		// LogArchiver: and so do their images
+		declare(DBImageService.COLLECTION, "archivedAt_ttl", keys(LogArchiver.EXPIRY_FIELD, 1),
+			new BasicDBObject(LogArchiver.EXPIRY_FIELD, new BasicDBObject("$exists", true)), expireAfterSeconds);
+
+		// TestCheckpointer: checkpoints of tests that were never finished or restored are dropped eventually
+		declare(TestCheckpointer.COLLECTION, "updated_ttl", keys(TestCheckpointer.UPDATED_FIELD, 1), null,
+			TimeUnit.DAYS.toSeconds(checkpointExpiryDays));
+	}
+
+	/**
+	 * Add an index to the ones we manage.
+	 *
+	 * @param collection the collection to index
+	 * @param name the name of the index
+	 * @param keys the fields to index, in order, with their direction
+	 * @param partialFilter only index documents matching this filter, can be null
+	 */
+	protected void declare(String collection, String name, DBObject keys, DBObject partialFilter) {
+		declare(collection, name, keys, partialFilter, null);
+	}
+
+	/**
+	 * Add a TTL index to the ones we manage.
+	 *
+	 * @param expireAfterSeconds how long after the time in the (single) indexed field documents are removed, can be null
+	 */
+	protected void declare(String collection, String name, DBObject keys, DBObject partialFilter, Long expireAfterSeconds) {
+		indexes.add(new IndexSpec(collection, name, keys, partialFilter, expireAfterSeconds));
+	}
+
+	private static DBObject keys(Object... keysAndDirections) {
+		BasicDBObjectBuilder builder = BasicDBObjectBuilder.start();
+		for (int i = 0; i < keysAndDirections.length; i += 2) {
+			builder.add((String) keysAndDirections[i], keysAndDirections[i + 1]);
+		}
+		return builder.get();
+	}
+
+	@PostConstruct
+	public void reconcileIndexes() {
+		declareExpiringIndexes();
+
+		if (!manageIndexes) {
+			logger.info("Index management is turned off");
+			return;
+		}
+
+		for (IndexSpec spec : indexes) {
+			try {
+				reconcile(spec);
+			} catch (MongoException e) {
+				// a missing index makes us slow, it doesn't stop us working
+				logger.error("Couldn't create index " + spec.name + " on " + spec.collection, e);
+			}
+		}
+
+		// let people know about any indexes that aren't ours
+		for (String collection : getCollections()) {
+			for (DBObject existing : mongoTemplate.getCollection(collection).getIndexInfo()) {
+				String name = (String) existing.get("name");
+				if (!name.equals("_id_") && findSpec(collection, name) == null) {
+					logger.info("Found unmanaged index " + name + " on " + collection + ": " + existing.get("key"));
+				}
+			}
+		}
+	}
+
+	private void reconcile(IndexSpec spec) {
+		DBCollection collection = mongoTemplate.getCollection(spec.collection);
+
+		for (DBObject existing : collection.getIndexInfo()) {
+			if (spec.name.equals(existing.get("name"))) {
+				if (spec.matches(existing)) {
+					logger.debug("Index " + spec.name + " on " + spec.collection + " is up to date");
+					return;
+				}
+
+				logger.info("Index " + spec.name + " on " + spec.collection + " has changed, rebuilding it");
+				collection.dropIndex(spec.name);
+				break;
+			} else if (sameKeys(spec.keys, indexedKeys(existing))
+				&& Objects.equals(spec.partialFilter, existing.get("partialFilterExpression"))) {
+				// the same index under another name, perhaps created by hand; building ours would fail
+				logger.info("Index " + spec.name + " on " + spec.collection + " already exists as " + existing.get("name"));
+				return;
+			}
+		}
+
+		BasicDBObject options = new BasicDBObject("name", spec.name)
+			.append("background", true);
+		if (spec.partialFilter != null) {
+			options.append("partialFilterExpression", spec.partialFilter);
+		}
+		if (spec.expireAfterSeconds != null) {
+			options.append("expireAfterSeconds", spec.expireAfterSeconds);
+		}
+
+		logger.info("Creating index " + spec.name + " on " + spec.collection);
+		collection.createIndex(spec.keys, options);
+	}
+
+	/**
+	 * Get the usage of every index on the collections we manage, from $indexStats.
+	 *
+	 * @return the number of operations that used each index since the given time, by collection and index name
+	 */
+	public Map<String, Object> getIndexStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+
+		for (String collection : getCollections()) {
+			Map<String, Object> collectionStats = new LinkedHashMap<>();
+
+			try {
+				Cursor cursor = mongoTemplate.getCollection(collection).aggregate(
+					Collections.singletonList(new BasicDBObject("$indexStats", new BasicDBObject())),
+					AggregationOptions.builder()
+						.outputMode(AggregationOptions.OutputMode.CURSOR)
+						.build());
+				try {
+					while (cursor.hasNext()) {
+						DBObject index = cursor.next();
+						DBObject accesses = (DBObject) index.get("accesses");
+
+						Map<String, Object> indexStats = new LinkedHashMap<>();
+						indexStats.put("managed", findSpec(collection, (String) index.get("name")) != null);
+						indexStats.put("ops", accesses.get("ops"));
+						indexStats.put("since", accesses.get("since"));
+						collectionStats.put((String) index.get("name"), indexStats);
+					}
+				} finally {
+					cursor.close();
+				}
+			} catch (MongoException e) {
+				// $indexStats needs MongoDB 3.2 or later
+				collectionStats.put("error", e.getMessage());
+			}
+
+			stats.put(collection, collectionStats);
+		}
+
+		return stats;
+	}
+
+	private List<String> getCollections() {
+		List<String> collections = new ArrayList<>();
+		for (IndexSpec spec : indexes) {
+			if (!collections.contains(spec.collection)) {
+				collections.add(spec.collection);
+			}
+		}
+		return collections;
+	}
+
+	private IndexSpec findSpec(String collection, String name) {
+		for (IndexSpec spec : indexes) {
+			if (spec.collection.equals(collection) && spec.name.equals(name)) {
+				return spec;
+			}
+		}
+		return null;
+	}
+
+	// text indexes are handed back keyed on _fts and _ftsx, with the fields themselves in the weights
+	private static DBObject indexedKeys(DBObject existing) {
+		DBObject key = (DBObject) existing.get("key");
+		if (key == null || !key.containsField("_fts") || !(existing.get("weights") instanceof DBObject)) {
+			return key;
+		}
+
+		BasicDBObjectBuilder builder = BasicDBObjectBuilder.start();
+		for (String field : ((DBObject) existing.get("weights")).keySet()) {
+			builder.add(field, "text");
+		}
+		return builder.get();
+	}
+
+	// compare index keys by field order and direction; the database may hand back 1 as 1.0
+	private static boolean sameKeys(DBObject a, DBObject b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+
+		Iterator<String> aKeys = a.keySet().iterator();
+		Iterator<String> bKeys = b.keySet().iterator();
+
+		while (aKeys.hasNext() && bKeys.hasNext()) {
+			String aKey = aKeys.next();
+			String bKey = bKeys.next();
+			if (!aKey.equals(bKey)) {
+				return false;
+			}
+
+			Object aValue = a.get(aKey);
+			Object bValue = b.get(bKey);
+			if (aValue instanceof Number && bValue instanceof Number) {
+				if (Math.signum(((Number) aValue).doubleValue()) != Math.signum(((Number) bValue).doubleValue())) {
+					return false;
+				}
+			} else if (!Objects.equals(aValue, bValue)) {
+				return false;
+			}
+		}
+
+		return !aKeys.hasNext() && !bKeys.hasNext();
+	}
+
+	private static class IndexSpec {
+		private final String collection;
+		private final String name;
+		private final DBObject keys;
+		private final DBObject partialFilter;
+		private final Long expireAfterSeconds;
+
+		public IndexSpec(String collection, String name, DBObject keys, DBObject partialFilter, Long expireAfterSeconds) {
+			this.collection = collection;
+			this.name = name;
+			this.keys = keys;
+			this.partialFilter = partialFilter;
+			this.expireAfterSeconds = expireAfterSeconds;
+		}
+
+		public boolean matches(DBObject existing) {
+			Object existingExpiry = existing.get("expireAfterSeconds");
+			return sameKeys(keys, indexedKeys(existing))
+				&& Objects.equals(partialFilter, existing.get("partialFilterExpression"))
+				&& (expireAfterSeconds == null
+					? existingExpiry == null
+					: existingExpiry instanceof Number && ((Number) existingExpiry).longValue() == expireAfterSeconds);
+		}
+	}
+
+}
@@ -15,9 +15,15 @@
 package io.fintechlabs.testframework.info;
 
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -33,8 +39,17 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.gson.JsonObject;
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import io.fintechlabs.testframework.logging.DBEventLog;
 
 import io.fintechlabs.testframework.security.AuthenticationFacade;
 import io.fintechlabs.testframework.testmodule.TestModule.Result;
@@ -49,6 +64,12 @@ public class DBTestInfoService implements TestInfoService {
 
 	public static final String COLLECTION = "TEST_INFO";
 
+	// when the test was started, as a date; started holds the same time as a string, for API callers
+	public static final String STARTED_AT_FIELD = "startedAt";
+
+	// log entries for a test with no TEST_INFO are only taken to be orphaned once the test has been quiet this long
+	private static final long ORPHAN_QUIET_MILLIS = TimeUnit.HOURS.toMillis(1);
+
 	private static Logger logger = LoggerFactory.getLogger(DBTestInfoService.class);
 
 	@Value("${fintechlabs.version}")
@@ -84,6 +105,132 @@ public class DBTestInfoService implements TestInfoService {
 				}
 			});
 
+	/**
+	 * Bring older documents up to date in the background: fill in startedAt where it's missing, and give tests that
+	 * only exist in the log a stand-in document, so that they're listed along with everything else.
+	 */
+	@PostConstruct
+	public void upgradeTestInfo() {
+		Thread upgrader = new Thread(() -> {
+			try {
+				fillInStartedAt();
+				adoptOrphanedTests();
+			} catch (MongoException e) {
+				logger.error("Couldn't bring TEST_INFO up to date", e);
+			}
+		}, "test-info-upgrade");
+		upgrader.setDaemon(true);
+		upgrader.start();
+	}
+
+	private void fillInStartedAt() {
+		DBCollection collection = mongoTemplate.getCollection(COLLECTION);
+
+		DBObject query = BasicDBObjectBuilder.start()
+			.add(STARTED_AT_FIELD, new BasicDBObject("$exists", false))
+			.add("started", new BasicDBObject("$type", "string"))
+			.get();
+
+		List<DBObject> updates = new ArrayList<>();
+		DBCursor cursor = collection.find(query, new BasicDBObject("started", 1));
+		try {
+			while (cursor.hasNext()) {
+				DBObject testInfo = cursor.next();
+				try {
+					Date startedAt = Date.from(Instant.parse((String) testInfo.get("started")));
+					updates.add(BasicDBObjectBuilder.start()
+						.add("_id", testInfo.get("_id"))
+						.add(STARTED_AT_FIELD, startedAt)
+						.get());
+				} catch (DateTimeParseException e) {
+					logger.warn("Test " + testInfo.get("_id") + " has an unreadable start time: " + testInfo.get("started"));
+				}
+				if (updates.size() == 500) {
+					setStartedAt(collection, updates);
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		setStartedAt(collection, updates);
+	}
+
+	private void setStartedAt(DBCollection collection, List<DBObject> updates) {
+		if (updates.isEmpty()) {
+			return;
+		}
+		BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+		for (DBObject update : updates) {
+			bulk.find(new BasicDBObject("_id", update.get("_id")))
+				.updateOne(new BasicDBObject("$set", new BasicDBObject(STARTED_AT_FIELD, update.get(STARTED_AT_FIELD))));
+		}
+		bulk.execute();
+		logger.info("Filled in " + STARTED_AT_FIELD + " for " + updates.size() + " tests");
+		updates.clear();
+	}
+
+	/**
+	 * Find tests that have log entries but no TEST_INFO document, by joining the two collections in the database,
+	 * and give each a stand-in document with the ID, owner and start time taken from its log.
+	 */
+	private void adoptOrphanedTests() {
+		List<DBObject> pipeline = new ArrayList<>();
+		pipeline.add(new BasicDBObject("$group", BasicDBObjectBuilder.start()
+			.add("_id", "$testId")
+			.add("owner", new BasicDBObject("$first", "$testOwner"))
+			.add("first", new BasicDBObject("$min", "$time"))
+			.add("last", new BasicDBObject("$max", "$time"))
+			.get()));
+		// leave tests that are still being created alone
+		pipeline.add(new BasicDBObject("$match", new BasicDBObject("last", new BasicDBObject("$lt", System.currentTimeMillis() - ORPHAN_QUIET_MILLIS))));
+		pipeline.add(new BasicDBObject("$lookup", BasicDBObjectBuilder.start()
+			.add("from", COLLECTION)
+			.add("localField", "_id")
+			.add("foreignField", "_id")
+			.add("as", "testInfo")
+			.get()));
+		pipeline.add(new BasicDBObject("$match", new BasicDBObject("testInfo", new BasicDBObject("$size", 0))));
+
+		DBCollection collection = mongoTemplate.getCollection(COLLECTION);
+		int adopted = 0;
+
+		Cursor cursor = mongoTemplate.getCollection(DBEventLog.COLLECTION).aggregate(pipeline,
+			AggregationOptions.builder()
+				.allowDiskUse(true)
+				.outputMode(AggregationOptions.OutputMode.CURSOR)
+				.build());
+		try {
+			while (cursor.hasNext()) {
+				DBObject orphan = cursor.next();
+				Object testId = orphan.get("_id");
+				if (testId == null) {
+					continue;
+				}
+
+				BasicDBObjectBuilder documentBuilder = BasicDBObjectBuilder.start()
+					.add("testId", testId)
+					.add("owner", orphan.get("owner"));
+				if (orphan.get("first") instanceof Number) {
+					Instant started = Instant.ofEpochMilli(((Number) orphan.get("first")).longValue());
+					documentBuilder.add("started", started.toString())
+						.add(STARTED_AT_FIELD, Date.from(started));
+				}
+
+				// don't overwrite anything, in case the test turned up after all
+				collection.update(new BasicDBObject("_id", testId),
+					new BasicDBObject("$setOnInsert", documentBuilder.get()),
+					true, false);
+				adopted++;
+			}
+		} finally {
+			cursor.close();
+		}
+
+		if (adopted > 0) {
+			logger.info("Added stand-in TEST_INFO documents for " + adopted + " tests that only exist in the log");
+		}
+	}
+
 	/* (non-Javadoc)
 	 * @see io.fintechlabs.testframework.info.TestInfoService#createTest(java.lang.String, java.lang.String, java.lang.String, com.google.gson.JsonObject, java.lang.String)
 	 */
@@ -96,6 +243,7 @@ public class DBTestInfoService implements TestInfoService {
 			.add("testId", id)
 			.add("testName", testName)
 			.add("started", started.toString())
+			.add(STARTED_AT_FIELD, Date.from(started))
 			.add("config", config)
 			.add("description", description) // for this instance
 			.add("alias", alias)
@@ -149,6 +297,30 @@ public class DBTestInfoService implements TestInfoService {
 
 	}
 
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.info.TestInfoService#getTestStatus(java.lang.String)
+	 */
+	@Override
+	public Status getTestStatus(String id) {
+		DBObject testInfo = mongoTemplate.getCollection(COLLECTION).findOne(new BasicDBObject("_id", id), new BasicDBObject("status", 1));
+		if (testInfo == null || testInfo.get("status") == null) {
+			return null;
+		}
+		return Status.valueOf(testInfo.get("status").toString());
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.info.TestInfoService#getTestResult(java.lang.String)
+	 */
+	@Override
+	public Result getTestResult(String id) {
+		DBObject testInfo = mongoTemplate.getCollection(COLLECTION).findOne(new BasicDBObject("_id", id), new BasicDBObject("result", 1));
+		if (testInfo == null || testInfo.get("result") == null) {
+			return null;
+		}
+		return Result.valueOf(testInfo.get("result").toString());
+	}
+
 	@Override
 	public ImmutableMap<String, String> getTestOwner(String testId) {
 		try {
@@ -17,6 +17,7 @@ package io.fintechlabs.testframework.info;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -207,5 +208,66 @@ public class DBTestPlanService implements TestPlanService {
 
 	}
 
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.info.TestPlanService#updateTestPlanRun(java.lang.String, java.util.Map)
+	 */
+	@Override
+	public void updateTestPlanRun(String planId, Map<String, Object> run) {
+
+		mongoTemplate.getCollection(COLLECTION).update(
+			new BasicDBObject("_id", planId),
+			new BasicDBObject("$set", new BasicDBObject("run", new BasicDBObject(run).append("heartbeat", new Date()))));
+
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.info.TestPlanService#refreshTestPlanRuns(java.lang.String)
+	 */
+	@Override
+	public void refreshTestPlanRuns(String node) {
+
+		mongoTemplate.getCollection(COLLECTION).updateMulti(
+			BasicDBObjectBuilder.start()
+				.add("run.node", node)
+				.add("run.finished", null)
+				.get(),
+			new BasicDBObject("$set", new BasicDBObject("run.heartbeat", new Date())));
+
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.info.TestPlanService#abandonUnfinishedTestPlanRuns(java.lang.String, java.util.Date)
+	 */
+	@Override
+	public void abandonUnfinishedTestPlanRuns(String node, Date staleBefore) {
+
+		List<DBObject> abandonable = new ArrayList<>();
+		if (node != null) {
+			abandonable.add(new BasicDBObject("run.node", node));
+		}
+		abandonable.add(new BasicDBObject("run.node", new BasicDBObject("$exists", false)));
+		// a node that's gone away stops sending heartbeats, whatever it was called; runs from before there were
+		// heartbeats don't have one at all
+		abandonable.add(new BasicDBObject("run.heartbeat", new BasicDBObject("$lt", staleBefore)));
+		abandonable.add(new BasicDBObject("run.heartbeat", new BasicDBObject("$exists", false)));
+
+		DBObject query = BasicDBObjectBuilder.start()
+			.add("run", new BasicDBObject("$exists", true))
+			.add("run.finished", null)
+			.add("$or", abandonable)
+			.get();
+
+		int abandoned = mongoTemplate.getCollection(COLLECTION).updateMulti(query,
+			new BasicDBObject("$set", BasicDBObjectBuilder.start()
+				.add("run.finished", Instant.now().toString())
+				.add("run.abandoned", true)
+				.get()))
+			.getN();
+
+		if (abandoned > 0) {
+			logger.info("Marked " + abandoned + " unfinished plan runs as abandoned");
+		}
+	}
+
 
 }
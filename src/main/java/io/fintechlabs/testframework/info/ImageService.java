@@ -17,6 +17,14 @@ public interface ImageService {
 	 */
 	DBObject fillPlaceholder(String testId, String placeholder, Map<String, Object> update, boolean assumeAdmin);
 
+	/**
+	 * Add an image to a test, along with a log entry that refers to it
+	 *
+	 * @param encoded the image, as a data URL
+	 * @return the stored image
+	 */
+	DBObject addImage(String testId, Map<String, String> testOwner, String description, String encoded);
+
 	/**
 	 * Get unfilled placeholder IDs
 	 *
@@ -26,10 +34,44 @@ public interface ImageService {
 	List<String> getRemainingPlaceholders(String testId, boolean assumeAdmin);
 
 	/**
-	 * Get all the images for a test
+	 * Get the number of unfilled placeholders for a running test. This is answered from memory, without
+	 * going to the database.
+	 */
+	int countRemainingPlaceholders(String testId);
+
+	/**
+	 * Reload the unfilled placeholders of a running test from the database into memory. This picks up a test
+	 * that's been restored on this node, and placeholders that have been filled through another node.
+	 *
+	 * @return the number of placeholders that haven't been filled yet
+	 */
+	int reloadPlaceholders(String testId);
+
+	/**
+	 * Subscribe to placeholders of the given test being filled. The listener is called on the thread that
+	 * filled the placeholder, so it should return quickly.
+	 */
+	void addPlaceholderListener(String testId, Runnable listener);
+
+	/**
+	 * Unsubscribe a listener added with addPlaceholderListener.
+	 */
+	void removePlaceholderListener(String testId, Runnable listener);
+
+	/**
+	 * Get all the images and placeholders for a test. The image data is left out, and imgUrl points to it instead.
 	 *
 	 * @param assumeAdmin If true, no access controls will be applied. Only set to true if being called from the
 	 *                    test module itself, not via the REST API.
 	 */
 	List<DBObject> getAllImagesForTestId(String testId, boolean assumeAdmin);
+
+	/**
+	 * Get a single image, including its data
+	 *
+	 * @param assumeAdmin If true, no access controls will be applied. Only set to true if being called from the
+	 *                    test module itself, not via the REST API.
+	 * @return the image, or null if there isn't one with that ID
+	 */
+	DBObject getImage(String testId, String imageId, boolean assumeAdmin);
 }
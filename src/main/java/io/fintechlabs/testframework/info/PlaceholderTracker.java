@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.info;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps count of the unfilled placeholders of each test in memory, and tells anyone who has subscribed
+ * when one of a test's placeholders gets filled. This saves waiting tests from polling the database.
+ *
+ * Placeholders are registered as their log entries are written, and removed as they are filled. The database
+ * is the record everyone shares: a test that's been restored on this node, or whose placeholders may have been
+ * filled through another node, has its set reloaded from there.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class PlaceholderTracker {
+
+	private static Logger logger = LoggerFactory.getLogger(PlaceholderTracker.class);
+
+	// unfilled placeholders by test ID; tests with no unfilled placeholders aren't in the map at all
+	private Map<String, Set<String>> remaining = new ConcurrentHashMap<>();
+
+	// listeners by test ID
+	private Map<String, Set<Runnable>> listeners = new ConcurrentHashMap<>();
+
+	/**
+	 * Record a new placeholder for the test.
+	 */
+	public void placeholderCreated(String testId, String placeholder) {
+		remaining.compute(testId, (k, placeholders) -> {
+			if (placeholders == null) {
+				placeholders = ConcurrentHashMap.newKeySet();
+			}
+			placeholders.add(placeholder);
+			return placeholders;
+		});
+	}
+
+	/**
+	 * Replace what we know about the test's placeholders with the given set, as read from the database. If any
+	 * have gone, the test's listeners are told.
+	 */
+	public void placeholdersLoaded(String testId, Collection<String> placeholders) {
+		Set<String> previous = remaining.get(testId);
+		boolean filled = previous != null && !placeholders.containsAll(previous);
+
+		if (placeholders.isEmpty()) {
+			remaining.remove(testId);
+		} else {
+			Set<String> loaded = ConcurrentHashMap.newKeySet();
+			loaded.addAll(placeholders);
+			remaining.put(testId, loaded);
+		}
+
+		if (filled) {
+			notifyListeners(testId);
+		}
+	}
+
+	/**
+	 * Record that a placeholder has been filled, and let the test's listeners know.
+	 */
+	public void placeholderFilled(String testId, String placeholder) {
+		remaining.computeIfPresent(testId, (k, placeholders) -> {
+			placeholders.remove(placeholder);
+			return placeholders.isEmpty() ? null : placeholders;
+		});
+
+		notifyListeners(testId);
+	}
+
+	private void notifyListeners(String testId) {
+		Set<Runnable> testListeners = listeners.get(testId);
+		if (testListeners != null) {
+			for (Runnable listener : testListeners) {
+				try {
+					listener.run();
+				} catch (RuntimeException e) {
+					logger.error("Placeholder listener for test " + testId + " failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of placeholders of the test that haven't been filled yet
+	 */
+	public int countRemainingPlaceholders(String testId) {
+		Set<String> placeholders = remaining.get(testId);
+		return placeholders == null ? 0 : placeholders.size();
+	}
+
+	/**
+	 * Subscribe to placeholders of the given test being filled. The listener is called on the thread that filled
+	 * the placeholder, so it should return quickly.
+	 */
+	public void addListener(String testId, Runnable listener) {
+		listeners.compute(testId, (k, testListeners) -> {
+			if (testListeners == null) {
+				testListeners = ConcurrentHashMap.newKeySet();
+			}
+			testListeners.add(listener);
+			return testListeners;
+		});
+	}
+
+	/**
+	 * Unsubscribe a listener added with addListener.
+	 */
+	public void removeListener(String testId, Runnable listener) {
+		listeners.computeIfPresent(testId, (k, testListeners) -> {
+			testListeners.remove(listener);
+			return testListeners.isEmpty() ? null : testListeners;
+		});
+	}
+
+	/**
+	 * Forget everything about the given test.
+	 */
+	public void removeTest(String testId) {
+		remaining.remove(testId);
+		listeners.remove(testId);
+	}
+
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.info;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+
+import io.fintechlabs.testframework.logging.DBEventLog;
+import io.fintechlabs.testframework.logging.LogArchiver;
+import io.fintechlabs.testframework.logging.TimingStatistics;
+import io.fintechlabs.testframework.runner.TestCheckpointer;
+import io.fintechlabs.testframework.runner.TestPlanRunner;
+import io.fintechlabs.testframework.runner.TestRegistry;
+import io.fintechlabs.testframework.runner.TestTaskExecutor;
+import io.fintechlabs.testframework.security.AuthenticationFacade;
+
+/**
+ * Reports internal statistics about the running server. Only available to admins.
+ *
+ * @author jricher
+ */
+@Controller
+public class ServerStatusApi {
+
+	@Autowired
+	private AuthenticationFacade authenticationFacade;
+
+	@Autowired
+	private DBEventLog eventLog;
+
+	@Autowired
+	private TestTaskExecutor testTaskExecutor;
+
+	@Autowired
+	private DBIndexManager indexManager;
+
+	@Autowired
+	private LogArchiver logArchiver;
+
+	@Autowired
+	private TestPlanRunner planRunner;
+
+	@Autowired
+	private TestRegistry registry;
+
+	@Autowired
+	private TestCheckpointer checkpointer;
+
+	@GetMapping(value = "/status", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Object> getServerStatus() {
+		if (!authenticationFacade.isAdmin()) {
+			return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+		}
+
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("eventLog", eventLog.getWriterStatistics());
+		status.put("executor", testTaskExecutor.getStatistics());
+		status.put("indexes", indexManager.getIndexStatistics());
+		status.put("retention", logArchiver.getStatistics());
+		status.put("timings", TimingStatistics.getStatistics());
+		status.put("planRunner", planRunner.getStatistics());
+		status.put("registry", registry.getStatistics());
+		status.put("checkpoints", checkpointer.getStatistics());
+
+		return new ResponseEntity<>(status, HttpStatus.OK);
+	}
+
+}
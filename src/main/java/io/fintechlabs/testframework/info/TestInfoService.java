@@ -63,4 +63,20 @@ public interface TestInfoService {
 	 * @return
 	 */
 	ImmutableMap<String, String> getTestOwner(String id);
+
+	/**
+	 * Get the status of a test, as last recorded in the database.
+	 *
+	 * @param id
+	 * @return the status, or null if the test isn't known
+	 */
+	Status getTestStatus(String id);
+
+	/**
+	 * Get the result of a test, as last recorded in the database.
+	 *
+	 * @param id
+	 * @return the result, or null if the test isn't known or doesn't have one yet
+	 */
+	Result getTestResult(String id);
 }
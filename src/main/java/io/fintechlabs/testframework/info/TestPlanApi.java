@@ -14,6 +14,7 @@
 
 package io.fintechlabs.testframework.info;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -24,27 +25,24 @@ import org.apache.commons.lang3.RandomStringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.config.BeanDefinition;
-import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
-import org.springframework.core.type.filter.AnnotationTypeFilter;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
 import com.google.gson.JsonObject;
 
 import io.fintechlabs.testframework.info.TestPlanService;
-import io.fintechlabs.testframework.plan.PublishTestPlan;
-import io.fintechlabs.testframework.plan.TestPlan;
+import io.fintechlabs.testframework.runner.TestPlanRunner;
+import io.fintechlabs.testframework.runner.TestRegistry;
+import io.fintechlabs.testframework.runner.TestRegistry.TestPlanHolder;
 import io.fintechlabs.testframework.testmodule.DataUtils;
 
 /**
@@ -56,14 +54,18 @@ public class TestPlanApi implements DataUtils {
 
 	private static final Logger logger = LoggerFactory.getLogger(TestPlanApi.class);
 
-	private Supplier<Map<String, TestPlanHolder>> testPlanSupplier = Suppliers.memoize(this::findTestPlans);
-
 	@Autowired
 	private TestPlanService planService;
 
 	@Autowired
 	private SavedConfigurationService savedConfigurationService;
 
+	@Autowired
+	private TestPlanRunner planRunner;
+
+	@Autowired
+	private TestRegistry registry;
+
 	@PostMapping(value = "/plan", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
 	public ResponseEntity<Map<String, Object>> createTestPlan(@RequestParam("planName") String planName, @RequestBody JsonObject config, Model m) {
 
@@ -115,6 +117,68 @@ public class TestPlanApi implements DataUtils {
 
 	}
 
+	/**
+	 * Run all the modules of the plan on the server, concurrency at a time. Progress is returned by
+	 * GET /plan/{id}/run while the plan is running, and saved to the plan as "run".
+	 */
+	@PostMapping(value = "/plan/{id}/run", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Object> runTestPlan(@PathVariable("id") String id, @RequestParam(name = "concurrency", defaultValue = "0") int concurrency) {
+
+		Map testPlan = planService.getTestPlan(id);
+
+		if (testPlan == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		List<String> modules = new ArrayList<>();
+		for (Object module : (List) testPlan.get("modules")) {
+			modules.add((String) ((Map) module).get("testModule"));
+		}
+
+		Map<String, Object> run = planRunner.startPlanRun(id, modules, concurrency);
+
+		if (run == null) {
+			// it's already running
+			return new ResponseEntity<>(HttpStatus.CONFLICT);
+		}
+
+		return new ResponseEntity<>(run, HttpStatus.ACCEPTED);
+	}
+
+	@GetMapping(value = "/plan/{id}/run", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Object> getTestPlanRun(@PathVariable("id") String id) {
+
+		Map testPlan = planService.getTestPlan(id);
+
+		if (testPlan == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		Object run = planRunner.getPlanRunStatus(id);
+		if (run == null) {
+			// it's not running now, but may have been run before
+			run = testPlan.get("run");
+		}
+
+		if (run != null) {
+			return new ResponseEntity<>(run, HttpStatus.OK);
+		} else {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+	}
+
+	@DeleteMapping(value = "/plan/{id}/run", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Object> cancelTestPlanRun(@PathVariable("id") String id) {
+
+		Map testPlan = planService.getTestPlan(id);
+
+		if (testPlan == null || !planRunner.cancelPlanRun(id)) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		return new ResponseEntity<>(planRunner.getPlanRunStatus(id), HttpStatus.OK);
+	}
+
 	@GetMapping(value = "plan/info/{planName}")
 	public ResponseEntity<Object> getTestPlanInfo(@PathVariable("planName") String planName) {
 		TestPlanHolder holder = getTestPlans().get(planName);
@@ -152,39 +216,7 @@ public class TestPlanApi implements DataUtils {
 	}
 
 	private Map<String, TestPlanHolder> getTestPlans() {
-		return testPlanSupplier.get();
+		return registry.getTestPlans();
 	}
 
-	private Map<String, TestPlanHolder> findTestPlans() {
-		Map<String, TestPlanHolder> testPlans = new HashMap<>();
-
-		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
-		scanner.addIncludeFilter(new AnnotationTypeFilter(PublishTestPlan.class));
-		for (BeanDefinition bd : scanner.findCandidateComponents("io.fintechlabs")) {
-			try {
-				@SuppressWarnings("unchecked")
-				Class<? extends TestPlan> c = (Class<? extends TestPlan>) Class.forName(bd.getBeanClassName());
-				PublishTestPlan a = c.getDeclaredAnnotation(PublishTestPlan.class);
-
-				testPlans.put(a.testPlanName(), new TestPlanHolder(c, a));
-
-			} catch (ClassNotFoundException e) {
-				logger.error("Couldn't load test module definition: " + bd.getBeanClassName());
-			}
-		}
-
-		return testPlans;
-
-	}
-
-	private class TestPlanHolder {
-		public Class<? extends TestPlan> c;
-		public PublishTestPlan a;
-		public TestPlanHolder(Class<? extends TestPlan> c, PublishTestPlan a) {
-			this.c = c;
-			this.a = a;
-		}
-	}
-
-
 }
@@ -14,6 +14,7 @@
 
 package io.fintechlabs.testframework.info;
 
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -61,4 +62,29 @@ public interface TestPlanService {
 	 */
 	List<Map> getAllPlansForCurrentUser();
 
+	/**
+	 * Record the progress of a server-side run of the plan. This also counts as a heartbeat for the run.
+	 *
+	 * @param planId
+	 * @param run
+	 */
+	void updateTestPlanRun(String planId, Map<String, Object> run);
+
+	/**
+	 * Let the other nodes know that the given node is still working on its unfinished server-side runs
+	 *
+	 * @param node
+	 */
+	void refreshTestPlanRuns(String node);
+
+	/**
+	 * Mark unfinished server-side runs as abandoned: those of the given node, such as when it has been restarted part
+	 * way through them, and those of any node that hasn't sent a heartbeat for them since the given time, such as one
+	 * that has gone away for good or come back under a different name
+	 *
+	 * @param node the node whose runs are all abandoned, or null to only abandon runs without a recent heartbeat
+	 * @param staleBefore runs whose last heartbeat was before this are abandoned
+	 */
+	void abandonUnfinishedTestPlanRuns(String node, Date staleBefore);
+
 }
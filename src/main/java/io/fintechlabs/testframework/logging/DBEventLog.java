@@ -14,26 +14,30 @@
 
 package io.fintechlabs.testframework.logging;
 
-import java.security.SecureRandom;
 import java.util.Date;
 import java.util.Map;
-import java.util.Random;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.stereotype.Component;
 
-import com.google.common.base.Strings;
 import com.google.gson.JsonObject;
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBObject;
-import com.mongodb.util.JSON;
 
+import io.fintechlabs.testframework.info.DBImageService;
+import io.fintechlabs.testframework.info.PlaceholderTracker;
 import io.fintechlabs.testframework.info.TestInfoService;
+import io.fintechlabs.testframework.logging.EventLogWriter.BackpressurePolicy;
 
 /**
  * @author jricher
@@ -46,23 +50,57 @@ public class DBEventLog implements EventLog {
 
 	public static final String COLLECTION = "EVENT_LOG";
 
-	// a block identifier for a log entry
-	private String blockId = null;
-
-	// random number generator
-	private Random random = new SecureRandom();
-
 	@Autowired
 	private TestInfoService testInfoService;
 
 	@Autowired
 	private MongoTemplate mongoTemplate;
 
+	@Autowired
+	private PlaceholderTracker placeholderTracker;
+
+	@Autowired
+	private LogStreamer logStreamer;
+
+	@Value("${fintechlabs.eventlog.queue_size:10000}")
+	private int queueSize;
+
+	@Value("${fintechlabs.eventlog.batch_size:500}")
+	private int batchSize;
+
+	@Value("${fintechlabs.eventlog.flush_interval:100}")
+	private long flushIntervalMillis;
+
+	@Value("${fintechlabs.eventlog.flush_timeout:30000}")
+	private long flushTimeoutMillis;
+
+	@Value("${fintechlabs.eventlog.backpressure:BLOCK}")
+	private String backpressure;
+
+	// log entries are written to the database in the background
+	private EventLogWriter writer;
+
+	@PostConstruct
+	public void startWriter() {
+		writer = new EventLogWriter(mongoTemplate.getCollection(COLLECTION),
+			queueSize,
+			batchSize,
+			flushIntervalMillis,
+			BackpressurePolicy.valueOf(backpressure.trim().toUpperCase()),
+			// anyone watching a test gets its entries straight away, in the order they were numbered
+			document -> logStreamer.publish(document));
+	}
+
+	@PreDestroy
+	public void stopWriter() {
+		writer.shutdown(flushTimeoutMillis);
+	}
+
 	/* (non-Javadoc)
-	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String)
+	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String, java.lang.String, java.util.Map, java.lang.String, java.lang.String)
 	 */
 	@Override
-	public void log(String testId, String source, Map<String, String> owner, String msg) {
+	public void log(String testId, String source, Map<String, String> owner, String blockId, String msg) {
 
 		BasicDBObjectBuilder documentBuilder = BasicDBObjectBuilder.start()
 			.add("_id", testId + "-" + RandomStringUtils.randomAlphanumeric(32))
@@ -73,16 +111,16 @@ public class DBEventLog implements EventLog {
 			.add("blockId", blockId)
 			.add("msg", msg);
 
-		mongoTemplate.insert(documentBuilder.get(), COLLECTION);
+		write(documentBuilder.get());
 	}
 
 	/* (non-Javadoc)
-	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String, com.google.gson.JsonObject)
+	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String, java.lang.String, java.util.Map, java.lang.String, com.google.gson.JsonObject)
 	 */
 	@Override
-	public void log(String testId, String source, Map<String, String> owner, JsonObject obj) {
+	public void log(String testId, String source, Map<String, String> owner, String blockId, JsonObject obj) {
 
-		DBObject dbObject = (DBObject) JSON.parse(GsonObjectToBsonDocumentConverter.convertFieldsToStructure(obj).toString()); // don't touch the incoming object
+		DBObject dbObject = GsonObjectToBsonDocumentConverter.convertObject(obj); // don't touch the incoming object
 		dbObject.put("_id", testId + "-" + RandomStringUtils.randomAlphanumeric(32));
 		dbObject.put("testId", testId);
 		dbObject.put("src", source);
@@ -90,14 +128,14 @@ public class DBEventLog implements EventLog {
 		dbObject.put("time", new Date().getTime());
 		dbObject.put("blockId", blockId);
 
-		mongoTemplate.insert(dbObject, COLLECTION);
+		write(dbObject);
 	}
 
 	/* (non-Javadoc)
-	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String, java.util.Map)
+	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String, java.lang.String, java.util.Map, java.lang.String, java.util.Map)
 	 */
 	@Override
-	public void log(String testId, String source, Map<String, String> owner, Map<String, Object> map) {
+	public void log(String testId, String source, Map<String, String> owner, String blockId, Map<String, Object> map) {
 
 		BasicDBObjectBuilder documentBuilder = BasicDBObjectBuilder.start(map) // this doesn't alter the incoming map
 			.add("_id", testId + "-" + RandomStringUtils.randomAlphanumeric(32))
@@ -107,27 +145,47 @@ public class DBEventLog implements EventLog {
 			.add("time", new Date().getTime())
 			.add("blockId", blockId);
 
-		mongoTemplate.insert(documentBuilder.get(), COLLECTION);
+		write(documentBuilder.get());
 	}
 
-	@Override
-	public String startBlock() {
-		// create a random six-character hex string that we can use as a CSS color code in the logs
-		blockId = Strings.padStart(
-			Integer.toHexString(
-				random.nextInt(256 * 256 * 256))
-			, 6, '0');
+	/**
+	 * Convert the document into its stored form and hand it to the background writer.
+	 *
+	 * The conversion happens on the calling thread, the same way MongoTemplate.insert would do it, so
+	 * that anything the caller changes after logging doesn't end up in the log.
+	 */
+	private void write(DBObject document) {
+		DBObject converted = new BasicDBObject();
+		mongoTemplate.getConverter().write(document, converted);
 
+		writer.write(converted);
 
+		if (converted.containsField("upload")) {
+			// this entry is a placeholder waiting to be filled. Let the log catch up first, so that the placeholder
+			// never shows up ahead of the entries logged before it
+			writer.flush(flushTimeoutMillis);
 
-		return blockId;
+			placeholderTracker.placeholderCreated((String) converted.get("testId"), converted.get("upload").toString());
+
+			DBObject placeholder = new BasicDBObject();
+			placeholder.putAll(converted);
+			mongoTemplate.getCollection(DBImageService.COLLECTION).insert(placeholder);
+		}
 	}
 
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.logging.EventLog#flush()
+	 */
 	@Override
-	public String endBlock() {
-		String oldBlock = blockId;
-		blockId = null;
-		return oldBlock;
+	public void flush() {
+		writer.flush(flushTimeoutMillis);
+	}
+
+	/**
+	 * @return statistics about the background writer, such as queue depth and flush latency
+	 */
+	public Map<String, Object> getWriterStatistics() {
+		return writer.getStatistics();
 	}
 
 }
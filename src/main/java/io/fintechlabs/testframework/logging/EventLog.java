@@ -31,10 +31,12 @@ public interface EventLog {
 	 *            The source of the event
 	 * @param owner
 	 *            The owner of the test run
+	 * @param blockId
+	 *            The log block this event belongs to, or null if it isn't in a block
 	 * @param msg
 	 *            The message to log
 	 */
-	void log(String testId, String source, Map<String, String> owner, String msg);
+	void log(String testId, String source, Map<String, String> owner, String blockId, String msg);
 
 	/**
 	 * @param testId
@@ -43,10 +45,12 @@ public interface EventLog {
 	 *            The source of the event
 	 * @param owner
 	 *            The owner of the test run
+	 * @param blockId
+	 *            The log block this event belongs to, or null if it isn't in a block
 	 * @param obj
 	 *            The message to log
 	 */
-	void log(String testId, String source, Map<String, String> owner, JsonObject obj);
+	void log(String testId, String source, Map<String, String> owner, String blockId, JsonObject obj);
 
 	/**
 	 * @param testId
@@ -55,21 +59,43 @@ public interface EventLog {
 	 *            The source of the event
 	 * @param owner
 	 *            The owner of the test run
+	 * @param blockId
+	 *            The log block this event belongs to, or null if it isn't in a block
 	 * @param map
 	 *            The message to log
 	 */
-	void log(String testId, String source, Map<String, String> owner, Map<String, Object> map);
+	void log(String testId, String source, Map<String, String> owner, String blockId, Map<String, Object> map);
 
 	/**
-	 * Start a new log block and return its ID
+	 * Log an event that isn't part of any block.
 	 *
-	 * @return
+	 * @see #log(String, String, Map, String, String)
 	 */
-	String startBlock();
+	default void log(String testId, String source, Map<String, String> owner, String msg) {
+		log(testId, source, owner, null, msg);
+	}
 
 	/**
-	 * end a log block and return the previous block ID
+	 * Log an event that isn't part of any block.
+	 *
+	 * @see #log(String, String, Map, String, JsonObject)
+	 */
+	default void log(String testId, String source, Map<String, String> owner, JsonObject obj) {
+		log(testId, source, owner, null, obj);
+	}
+
+	/**
+	 * Log an event that isn't part of any block.
+	 *
+	 * @see #log(String, String, Map, String, Map)
+	 */
+	default void log(String testId, String source, Map<String, String> owner, Map<String, Object> map) {
+		log(testId, source, owner, null, map);
+	}
+
+	/**
+	 * Wait for any log entries that have been accepted but not yet stored to be written out.
 	 */
-	String endBlock();
+	void flush();
 
 }
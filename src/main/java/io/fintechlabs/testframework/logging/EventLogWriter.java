@@ -0,0 +1,421 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.logging;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Write-behind buffer for log entries. Callers hand over fully converted documents, which are queued
+ * in a bounded buffer and written to the collection in batches by a single background thread.
+ *
+ * A batch is written as soon as it's full, or once the flush interval has passed since its first entry
+ * was taken off the queue, whichever comes first. What happens when the buffer is full is controlled
+ * by the BackpressurePolicy.
+ *
+ * Each entry is given a sequence number as it's queued, in the "seq" field. Entries are only ever written
+ * in sequence order, and each batch is inserted in order, so anyone who has seen an entry from this node
+ * can be sure that every entry queued before it on this node can be seen too. That makes the sequence
+ * number safe to resume from, where the time of an entry (stamped by whoever logged it) isn't. Sequence
+ * numbers start from the clock, in microseconds, so they keep going up when the server is restarted.
+ *
+ * Each entry is also handed to a listener as soon as it has its number, while nobody else can be given one, so the
+ * listener sees the entries of this node in sequence order.
+ *
+ * @author jricher
+ *
+ */
+public class EventLogWriter {
+
+	public static final String SEQUENCE_FIELD = "seq";
+
+	private static final Logger logger = LoggerFactory.getLogger(EventLogWriter.class);
+
+	/**
+	 * What to do with a new entry when the buffer is full.
+	 */
+	public enum BackpressurePolicy {
+		/** wait until the writer has made room in the buffer */
+		BLOCK,
+		/** throw the entry away and count it as dropped */
+		DROP,
+		/** write a batch from the head of the buffer on the calling thread, to make room */
+		CALLER_RUNS
+	}
+
+	private final DBCollection collection;
+	private final BlockingQueue<DBObject> queue;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final BackpressurePolicy backpressurePolicy;
+	private final Consumer<DBObject> listener;
+
+	private final Thread writerThread;
+	private volatile boolean running = true;
+
+	// set once the writer thread has gone, after which whoever queues an entry writes it out
+	private volatile boolean stopped = false;
+
+	// held while giving out a sequence number and queueing the entry, so the queue is in sequence order
+	private final Object enqueueLock = new Object();
+	private long lastSequence = 0; // guarded by enqueueLock
+
+	// held while taking entries off the queue and inserting them, so they're inserted in the order they were queued
+	private final Object insertLock = new Object();
+
+	// counters used for the flush barrier: everything accepted into the queue, and everything that's been dealt with
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final Object processedMonitor = new Object();
+
+	// number of threads waiting in flush(), the writer stops lingering over a partial batch if anyone is waiting
+	private final AtomicInteger flushWaiters = new AtomicInteger();
+
+	// statistics
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong callerRuns = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+	private volatile long lastFlushNanos = 0;
+
+	/**
+	 * @param collection the collection to write entries into
+	 * @param queueSize the maximum number of entries waiting to be written
+	 * @param batchSize the maximum number of entries written in a single insert
+	 * @param flushIntervalMillis how long to wait for a partial batch to fill up before writing it anyway
+	 * @param backpressurePolicy what to do when the queue is full
+	 * @param listener called with each entry once it's been numbered and accepted, in sequence order; this is called
+	 *                 while holding the lock that hands out sequence numbers, so it must return right away
+	 */
+	public EventLogWriter(DBCollection collection, int queueSize, int batchSize, long flushIntervalMillis, BackpressurePolicy backpressurePolicy, Consumer<DBObject> listener) {
+		this.collection = collection;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.backpressurePolicy = backpressurePolicy;
+		this.listener = listener;
+
+		this.writerThread = new Thread(this::run, "event-log-writer");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	/**
+	 * Queue a document to be written, giving it its sequence number. The document must already be in its final
+	 * stored form, it is not copied or converted any further.
+	 *
+	 * @param document the document to write
+	 */
+	public void write(DBObject document) {
+		if (stopped) {
+			// there's nobody left to write the queue, do it ourselves
+			synchronized (enqueueLock) {
+				lastSequence = nextSequence();
+				document.put(SEQUENCE_FIELD, lastSequence);
+				accepted.incrementAndGet();
+				notifyListener(document);
+				synchronized (insertLock) {
+					List<DBObject> batch = new ArrayList<>();
+					queue.drainTo(batch);
+					batch.add(document);
+					writeBatch(batch);
+				}
+			}
+			return;
+		}
+
+		while (true) {
+			synchronized (enqueueLock) {
+				long sequence = nextSequence();
+				document.put(SEQUENCE_FIELD, sequence);
+
+				if (queue.offer(document)) {
+					lastSequence = sequence;
+					accepted.incrementAndGet();
+					notifyListener(document);
+					break;
+				}
+
+				// the queue is full
+				if (backpressurePolicy == BackpressurePolicy.BLOCK) {
+					// nobody else can queue anything while we wait, so we keep our place in the sequence
+					boolean interrupted = false;
+					while (true) {
+						try {
+							queue.put(document);
+							break;
+						} catch (InterruptedException e) {
+							// don't lose the entry just because the caller got interrupted
+							interrupted = true;
+						}
+					}
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+					lastSequence = sequence;
+					accepted.incrementAndGet();
+					notifyListener(document);
+					break;
+				} else if (backpressurePolicy == BackpressurePolicy.DROP) {
+					document.removeField(SEQUENCE_FIELD);
+					long count = dropped.incrementAndGet();
+					if (count == 1 || count % 1000 == 0) {
+						logger.warn("Event log buffer is full, " + count + " log entries dropped so far");
+					}
+					return;
+				}
+			}
+
+			// CALLER_RUNS: make room by writing out the oldest entries ourselves, then try again
+			callerRuns.incrementAndGet();
+			writeFromQueue(false);
+		}
+
+		if (stopped) {
+			// the writer went away while we were queueing, make sure the entry doesn't get stranded
+			writeFromQueue(true);
+		}
+	}
+
+	// called holding enqueueLock; the entry has already been accepted, so it mustn't be lost if the listener fails
+	private void notifyListener(DBObject document) {
+		try {
+			listener.accept(document);
+		} catch (RuntimeException e) {
+			logger.warn("Event log listener failed", e);
+		}
+	}
+
+	// guarded by enqueueLock; the number the next entry gets, if it makes it into the queue
+	private long nextSequence() {
+		return Math.max(lastSequence + 1, TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Wait until everything queued before this call has been written (or failed to write).
+	 *
+	 * @param timeoutMillis the maximum time to wait
+	 * @return true if all entries were processed, false if we timed out
+	 */
+	public boolean flush(long timeoutMillis) {
+		long target = accepted.get();
+		if (processed.get() >= target) {
+			return true;
+		}
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		flushWaiters.incrementAndGet();
+		try {
+			synchronized (processedMonitor) {
+				while (processed.get() < target) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						logger.warn("Timed out waiting for the event log to flush, " + (target - processed.get()) + " entries outstanding");
+						return false;
+					}
+					processedMonitor.wait(remaining);
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			flushWaiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Stop lingering over partial batches and wait for the writer to drain the buffer. The writer isn't interrupted,
+	 * so a batch that's being written when this is called is finished rather than lost.
+	 *
+	 * @param timeoutMillis the maximum time to wait for the buffer to drain
+	 */
+	public void shutdown(long timeoutMillis) {
+		running = false;
+		try {
+			writerThread.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (writerThread.isAlive()) {
+			logger.warn("Event log writer is still draining, with " + queue.size() + " entries still queued");
+		}
+	}
+
+	private void run() {
+		List<DBObject> batch = new ArrayList<>(batchSize);
+
+		try {
+			while (running || !queue.isEmpty()) {
+				synchronized (insertLock) {
+					try {
+						takeBatch(batch);
+					} catch (InterruptedException e) {
+						// nobody should be interrupting us, write what we've got and carry on
+						queue.drainTo(batch, batchSize - batch.size());
+					}
+
+					if (!batch.isEmpty()) {
+						writeBatch(batch);
+						batch.clear();
+					}
+				}
+			}
+		} finally {
+			stopped = true;
+			// anything queued before the writers noticed we'd stopped
+			writeFromQueue(true);
+		}
+	}
+
+	// guarded by insertLock; we only ever wait here while the queue isn't full, so nobody waiting to make room is held up
+	private void takeBatch(List<DBObject> batch) throws InterruptedException {
+		DBObject first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+		if (first == null) {
+			return;
+		}
+		batch.add(first);
+
+		// give the batch a chance to fill up, but don't hold anyone up who is waiting on a flush
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		while (batch.size() < batchSize) {
+			queue.drainTo(batch, batchSize - batch.size());
+
+			long remaining = deadline - System.nanoTime();
+			if (batch.size() >= batchSize || remaining <= 0 || flushWaiters.get() > 0 || !running || queue.remainingCapacity() == 0) {
+				break;
+			}
+
+			DBObject next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next == null) {
+				break;
+			}
+			batch.add(next);
+		}
+	}
+
+	// write out the oldest batch in the queue, or everything in it, from the calling thread
+	private void writeFromQueue(boolean all) {
+		synchronized (insertLock) {
+			List<DBObject> batch = new ArrayList<>(batchSize);
+			while (queue.drainTo(batch, batchSize) > 0) {
+				writeBatch(batch);
+				batch.clear();
+				if (!all) {
+					break;
+				}
+			}
+		}
+	}
+
+	// guarded by insertLock
+	private void writeBatch(List<DBObject> batch) {
+		long start = System.nanoTime();
+		try {
+			insertInOrder(batch);
+		} finally {
+			recordFlush(System.nanoTime() - start);
+
+			processed.addAndGet(batch.size());
+			synchronized (processedMonitor) {
+				processedMonitor.notifyAll();
+			}
+		}
+	}
+
+	private void insertInOrder(List<DBObject> batch) {
+		try {
+			// ordered, so that the entries become visible in sequence order
+			BulkWriteOperation insert = collection.initializeOrderedBulkOperation();
+			for (DBObject document : batch) {
+				insert.insert(document);
+			}
+			insert.execute();
+			written.addAndGet(batch.size());
+		} catch (BulkWriteException e) {
+			// everything before the bad entry made it in; skip it and carry on with the rest
+			int index = e.getWriteErrors().isEmpty() ? batch.size() - 1 : e.getWriteErrors().get(0).getIndex();
+			written.addAndGet(index);
+			failed.incrementAndGet();
+			logger.error("Couldn't write event log entry " + batch.get(index).get("_id"), e);
+
+			if (index + 1 < batch.size()) {
+				insertInOrder(batch.subList(index + 1, batch.size()));
+			}
+		} catch (MongoException e) {
+			failed.addAndGet(batch.size());
+			logger.error("Couldn't write " + batch.size() + " event log entries", e);
+		}
+	}
+
+	private void recordFlush(long nanos) {
+		batches.incrementAndGet();
+		totalFlushNanos.addAndGet(nanos);
+		lastFlushNanos = nanos;
+		maxFlushNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * @return the number of entries currently waiting to be written
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return a snapshot of the writer's counters, suitable for returning from an API
+	 */
+	public Map<String, Object> getStatistics() {
+		long batchCount = batches.get();
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("queueDepth", queue.size());
+		stats.put("queueCapacity", queue.size() + queue.remainingCapacity());
+		stats.put("backpressurePolicy", backpressurePolicy);
+		stats.put("written", written.get());
+		stats.put("failed", failed.get());
+		stats.put("dropped", dropped.get());
+		stats.put("callerRuns", callerRuns.get());
+		stats.put("batches", batchCount);
+		stats.put("lastFlushMillis", TimeUnit.NANOSECONDS.toMillis(lastFlushNanos));
+		stats.put("maxFlushMillis", TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get()));
+		stats.put("averageFlushMillis", batchCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalFlushNanos.get() / batchCount));
+		return stats;
+	}
+
+}
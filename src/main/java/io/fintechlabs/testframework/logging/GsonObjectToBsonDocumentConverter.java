@@ -14,6 +14,8 @@
 
 package io.fintechlabs.testframework.logging;
 
+import java.util.Map;
+
 import org.apache.commons.lang3.RandomStringUtils;
 import org.bson.conversions.Bson;
 import org.slf4j.Logger;
@@ -22,12 +24,13 @@ import org.springframework.core.convert.converter.Converter;
 import org.springframework.data.convert.WritingConverter;
 import org.springframework.stereotype.Component;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.mongodb.util.JSON;
+import com.google.gson.JsonPrimitive;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 
 /**
  * Convert JsonObjects from GSON into a BSON Document, wrapping problematic keys with a conversion as follows:
@@ -41,6 +44,9 @@ import com.mongodb.util.JSON;
  *      "value": "foo"
  *    }
  *
+ * The conversion is done in a single pass over the tree, without going through a JSON string. The stored types
+ * are the same ones com.mongodb.util.JSON would have parsed that string into.
+ *
  * @author jricher
  *
  */
@@ -50,45 +56,80 @@ public class GsonObjectToBsonDocumentConverter implements Converter<JsonObject,
 
 	private static final Logger log = LoggerFactory.getLogger(GsonObjectToBsonDocumentConverter.class);
 
-	private Gson gson = new GsonBuilder().create();
-
 	@Override
 	public Bson convert(JsonObject source) {
 		if (source == null) {
 			return null;
 		} else {
-			return (Bson) JSON.parse(gson.toJson(convertFieldsToStructure(source)));
+			return convertObject(source);
 		}
 	}
 
 	/**
-	 * @param source
-	 * @return
+	 * Convert a JSON object into a new document, ready to be stored. The source isn't changed.
 	 */
-	public static JsonElement convertFieldsToStructure(JsonElement source) {
-		if (source.isJsonObject()) {
-			// need to look through all the fields and convert any weird ones
-			JsonObject converted = new JsonObject();
-			for (String key : source.getAsJsonObject().keySet()) {
-				if (key.contains(".") || key.contains("$") || key.startsWith("__wrapped_key_element_")) {
-					JsonObject wrap = new JsonObject();
-					wrap.addProperty("key", key);
-					wrap.add("value", convertFieldsToStructure(source.getAsJsonObject().get(key)));
-					converted.add("__wrapped_key_element_" + RandomStringUtils.randomAlphabetic(6), wrap);
-					log.info("Wrapped " + key + " as " + wrap.toString());
-				} else {
-					converted.add(key, convertFieldsToStructure(source.getAsJsonObject().get(key)));
-				}
+	public static DBObject convertObject(JsonObject source) {
+		BasicDBObject converted = new BasicDBObject();
+		for (Map.Entry<String, JsonElement> field : source.entrySet()) {
+			String key = field.getKey();
+			if (key.contains(".") || key.contains("$") || key.startsWith("__wrapped_key_element_")) {
+				BasicDBObject wrap = new BasicDBObject("key", key)
+					.append("value", convertElement(field.getValue()));
+				converted.put("__wrapped_key_element_" + RandomStringUtils.randomAlphabetic(6), wrap);
+				log.info("Wrapped " + key + " as " + wrap.toString());
+			} else {
+				converted.put(key, convertElement(field.getValue()));
 			}
-			return converted;
+		}
+		return converted;
+	}
+
+	/**
+	 * Convert a JSON array into a new list, ready to be stored. The source isn't changed.
+	 */
+	public static BasicDBList convertArray(JsonArray source) {
+		BasicDBList converted = new BasicDBList();
+		for (JsonElement element : source) {
+			converted.add(convertElement(element));
+		}
+		return converted;
+	}
+
+	/**
+	 * Convert any JSON element into its stored form: a document, a list, a string, a boolean, a number or null.
+	 */
+	public static Object convertElement(JsonElement source) {
+		if (source == null || source.isJsonNull()) {
+			return null;
+		} else if (source.isJsonObject()) {
+			return convertObject(source.getAsJsonObject());
 		} else if (source.isJsonArray()) {
-			JsonArray converted = new JsonArray();
-			for (JsonElement element : source.getAsJsonArray()) {
-				converted.add(convertFieldsToStructure(element));
+			return convertArray(source.getAsJsonArray());
+		} else {
+			return convertPrimitive(source.getAsJsonPrimitive());
+		}
+	}
+
+	private static Object convertPrimitive(JsonPrimitive source) {
+		if (source.isBoolean()) {
+			return source.getAsBoolean();
+		} else if (source.isNumber()) {
+			// numbers are typed by how they're written, the way the JSON parser used to do it
+			String number = source.getAsString();
+			if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+				try {
+					long value = Long.parseLong(number);
+					if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+						return (int) value;
+					}
+					return value;
+				} catch (NumberFormatException e) {
+					// too big for a long, fall through
+				}
 			}
-			return converted;
+			return Double.valueOf(number);
 		} else {
-			return source;
+			return source.getAsString();
 		}
 	}
 
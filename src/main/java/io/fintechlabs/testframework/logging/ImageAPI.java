@@ -15,30 +15,40 @@
 package io.fintechlabs.testframework.logging;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.lang3.RandomStringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
-import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBObject;
 
 import io.fintechlabs.testframework.info.ImageService;
 import io.fintechlabs.testframework.info.TestInfoService;
+import io.fintechlabs.testframework.runner.TestRequestForwarder;
 import io.fintechlabs.testframework.runner.TestRunnerSupport;
 import io.fintechlabs.testframework.security.AuthenticationFacade;
 import io.fintechlabs.testframework.testmodule.TestModule;
@@ -51,9 +61,6 @@ import io.fintechlabs.testframework.testmodule.TestModule.Result;
 @Controller
 public class ImageAPI {
 
-	@Autowired
-	private MongoTemplate mongoTemplate;
-
 	@Autowired
 	private TestInfoService testInfoService;
 
@@ -66,31 +73,31 @@ public class ImageAPI {
 	@Autowired
 	private ImageService imageService;
 
+	@Autowired
+	private LogArchiver logArchiver;
+
+	@Autowired
+	private TestRequestForwarder forwarder;
+
 	@PostMapping(path = "/log/{id}/images")
 	public ResponseEntity<Object> uploadImageToNewLogEntry(@RequestBody String encoded,
 		@PathVariable(name = "id") String testId,
-		@RequestParam(name = "description", required = false) String description) throws IOException {
+		@RequestParam(name = "description", required = false) String description,
+		HttpServletRequest req,
+		@RequestHeader(name = HttpHeaders.CONTENT_TYPE, required = false) MediaType contentType) throws IOException {
 
 		ImmutableMap<String, String> testOwner = testInfoService.getTestOwner(testId);
 
 		if (authenticationFacade.isAdmin() ||
 			authenticationFacade.getPrincipal().equals(testOwner)) {
 
-			String entryId = testId + "-" + RandomStringUtils.randomAlphanumeric(32);
+			ResponseEntity<Object> forwarded = forwardToOwningNode(testId, req, encoded, contentType);
+			if (forwarded != null) {
+				return forwarded;
+			}
 
-			// create a new entry in the database
-			BasicDBObjectBuilder documentBuilder = BasicDBObjectBuilder.start()
-				.add("_id", entryId)
-				.add("testId", testId)
-				.add("testOwner", testOwner)
-				.add("src", "_image-api")
-				.add("time", new Date().getTime())
-				.add("msg", Strings.emptyToNull(description))
-				.add("img", encoded);
-
-			mongoTemplate.insert(documentBuilder.get(), DBEventLog.COLLECTION);
-
-			DBObject updated = mongoTemplate.getCollection(DBEventLog.COLLECTION).findOne(entryId);
+			// store the image, and a new log entry for it
+			DBObject updated = imageService.addImage(testId, testOwner, description, encoded);
 
 			// an image was uploaded, the test needs to be reviewed
 			setTestReviewNeeded(testId);
@@ -104,13 +111,21 @@ public class ImageAPI {
 	@PostMapping(path = "/log/{id}/images/{placeholder}")
 	public ResponseEntity<Object> uploadImageToExistingLogEntry(@RequestBody String encoded,
 		@PathVariable(name = "id") String testId,
-		@PathVariable(name = "placeholder") String placeholder) throws IOException {
+		@PathVariable(name = "placeholder") String placeholder,
+		HttpServletRequest req,
+		@RequestHeader(name = HttpHeaders.CONTENT_TYPE, required = false) MediaType contentType) throws IOException {
 
 		ImmutableMap<String, String> testOwner = testInfoService.getTestOwner(testId);
 
 		if (authenticationFacade.isAdmin() ||
 			authenticationFacade.getPrincipal().equals(testOwner)) {
 
+			// the test waiting for this placeholder is told about it by the node it's running on
+			ResponseEntity<Object> forwarded = forwardToOwningNode(testId, req, encoded, contentType);
+			if (forwarded != null) {
+				return forwarded;
+			}
+
 			Map<String, Object> update = ImmutableMap.of("img", encoded, "updatedAt", new Date().getTime());
 
 			DBObject result = imageService.fillPlaceholder(testId, placeholder, update, false);
@@ -136,6 +151,9 @@ public class ImageAPI {
 		if (authenticationFacade.isAdmin() ||
 			authenticationFacade.getPrincipal().equals(testOwner)) {
 
+			// bring the images back from the archive if they have expired
+			logArchiver.restoreArchivedLog(testId);
+
 			List<DBObject> images = imageService.getAllImagesForTestId(testId, false);
 
 			return new ResponseEntity<>(images, HttpStatus.OK);
@@ -145,6 +163,87 @@ public class ImageAPI {
 
 	}
 
+	/**
+	 * Get the content of a single image, as the image itself rather than as a data URL. An image never changes once
+	 * it has been uploaded, so browsers are allowed to keep it.
+	 */
+	@GetMapping(path = "/log/{id}/images/{imageId}/content")
+	public ResponseEntity<StreamingResponseBody> getImageContent(@PathVariable(name = "id") String testId,
+		@PathVariable(name = "imageId") String imageId,
+		@RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+
+		ImmutableMap<String, String> testOwner = testInfoService.getTestOwner(testId);
+
+		if (!authenticationFacade.isAdmin() &&
+			!authenticationFacade.getPrincipal().equals(testOwner)) {
+			return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+		}
+
+		String etag = "\"" + imageId + "\"";
+
+		CacheControl cacheControl = CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate();
+
+		if (etag.equals(ifNoneMatch)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cacheControl).build();
+		}
+
+		logArchiver.restoreArchivedLog(testId);
+
+		DBObject image = imageService.getImage(testId, imageId, false);
+		if (image == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		// images are stored as data URLs: "data:<content type>;base64,<data>"
+		String img = image.get("img").toString();
+		int comma = img.indexOf(',');
+		if (!img.startsWith("data:") || comma < 0 || !img.substring(0, comma).endsWith(";base64")) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		MediaType contentType;
+		try {
+			contentType = MediaType.parseMediaType(img.substring("data:".length(), comma - ";base64".length()));
+		} catch (InvalidMediaTypeException e) {
+			contentType = MediaType.APPLICATION_OCTET_STREAM;
+		}
+
+		// decode straight from the stored string as we go, rather than building the whole image in memory again, either
+		// as the encoded bytes or the decoded ones
+		StreamingResponseBody responseBody = (out) -> {
+			InputStream in = Base64.getMimeDecoder().wrap(new AsciiInputStream(img, comma + 1, img.length()));
+			StreamUtils.copy(in, out);
+		};
+
+		return ResponseEntity.ok()
+			.contentType(contentType)
+			.eTag(etag)
+			.cacheControl(cacheControl)
+			.body(responseBody);
+	}
+
+	/**
+	 * Send an upload for a test that's running on another node of the cluster to that node, so that the test sees it
+	 * straight away.
+	 *
+	 * Sessions aren't shared between nodes, so only requests with their own credentials can be forwarded; anything
+	 * else is stored here, and the test's node finds it in the database the next time it checks its placeholders.
+	 *
+	 * @return the other node's response, or null if the upload should be handled here
+	 */
+	private ResponseEntity<Object> forwardToOwningNode(String testId, HttpServletRequest req, String body, MediaType contentType) {
+		if (Strings.isNullOrEmpty(req.getHeader(HttpHeaders.AUTHORIZATION))) {
+			return null;
+		}
+
+		ResponseEntity<byte[]> forwarded = forwarder.forward(testId, req, body, contentType);
+		if (forwarded == null) {
+			return null;
+		}
+
+		return new ResponseEntity<>(forwarded.getBody(), forwarded.getHeaders(), forwarded.getStatusCode());
+	}
+
 	/**
 	 * @param testId
 	 */
@@ -152,10 +251,59 @@ public class ImageAPI {
 		// first, see if it's currently running; if so we update the running object
 		TestModule test = testRunnerSupport.getRunningTestById(testId);
 		if (test != null) {
-			test.fireTestReviewNeeded();
-		} else {
-			// otherwise we need to do it directly in the database
-			testInfoService.updateTestResult(testId, Result.REVIEW);
+			try {
+				// the result belongs to the test, so change it in turn with whatever else the test is doing
+				test.getTestExecutionManager().runInOrder(() -> {
+					test.fireTestReviewNeeded();
+					return "done";
+				});
+				return;
+			} catch (RejectedExecutionException e) {
+				// we're shutting down, so the test won't get to it; fall through and record it in the database
+			}
+		}
+		// otherwise we need to do it directly in the database
+		testInfoService.updateTestResult(testId, Result.REVIEW);
+	}
+
+	/**
+	 * Reads part of a string of ASCII characters, such as base64 data, as bytes, without copying it.
+	 */
+	private static class AsciiInputStream extends InputStream {
+
+		private final String source;
+		private final int end;
+		private int pos;
+
+		AsciiInputStream(String source, int start, int end) {
+			this.source = source;
+			this.pos = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() {
+			return pos < end ? source.charAt(pos++) & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (pos >= end) {
+				return -1;
+			}
+			int count = Math.min(len, end - pos);
+			for (int i = 0; i < count; i++) {
+				b[off + i] = (byte) source.charAt(pos++);
+			}
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return end - pos;
 		}
 	}
 
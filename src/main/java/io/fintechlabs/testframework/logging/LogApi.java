@@ -14,19 +14,16 @@
 
 package io.fintechlabs.testframework.logging;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.util.ArrayList;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
@@ -37,21 +34,25 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
-import org.springframework.util.Base64Utils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
-import com.google.gson.Gson;
+import com.google.common.collect.ImmutableSet;
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 
-import io.fintechlabs.testframework.CollapsingGsonHttpMessageConverter;
 import io.fintechlabs.testframework.info.DBTestInfoService;
+import io.fintechlabs.testframework.info.TestInfoService;
 import io.fintechlabs.testframework.security.AuthenticationFacade;
-import io.fintechlabs.testframework.security.KeyManager;
 
 /**
  * @author jricher
@@ -60,12 +61,32 @@ import io.fintechlabs.testframework.security.KeyManager;
 @Controller
 public class LogApi {
 
+	// potentially large fields that callers can ask to have left out of log entries
+	private static final Set<String> LARGE_FIELDS = ImmutableSet.of("img", "request_body", "response_body", "incoming_body", "outgoing_body");
+
+	// fields the list of tests can be sorted on, by the name used in the API
+	private static final Map<String, String> SORTABLE_FIELDS = ImmutableMap.<String, String>builder()
+		.put("testId", "_id")
+		.put("testName", "testName")
+		.put("description", "description")
+		.put("started", DBTestInfoService.STARTED_AT_FIELD)
+		.put("planId", "planId")
+		.put("status", "status")
+		.put("result", "result")
+		.build();
+
 	@Value("${fintechlabs.base_url:http://localhost:8080}")
 	private String baseUrl;
 
 	@Value("${fintechlabs.version}")
 	private String version;
 
+	@Value("${fintechlabs.log.default_page_size:100}")
+	private int defaultPageSize;
+
+	@Value("${fintechlabs.log.max_page_size:1000}")
+	private int maxPageSize;
+
 	@Autowired
 	private MongoTemplate mongoTemplate;
 
@@ -73,53 +94,234 @@ public class LogApi {
 	private AuthenticationFacade authenticationFacade;
 
 	@Autowired
-	private KeyManager keyManager;
+	private TestInfoService testInfoService;
 
-	private Gson gson = CollapsingGsonHttpMessageConverter.getDbObjectCollapsingGson();
+	@Autowired
+	private EventLog eventLog;
+
+	@Autowired
+	private LogStreamer logStreamer;
 
+	@Autowired
+	private LogExporter logExporter;
+
+	@Autowired
+	private LogArchiver logArchiver;
+
+	/**
+	 * List the tests the current user can see, from TEST_INFO.
+	 *
+	 * Without a page length, the first page of the default size is returned as a list, so that existing callers
+	 * still get the shape they expect without the server loading every test there is. With one, a single page is
+	 * returned along with the total counts, in the shape DataTables expects for server-side processing.
+	 *
+	 * @param start the offset of the first test on the page
+	 * @param length the number of tests on the page, at most the maximum page size
+	 * @param sort the field to sort on, one of SORTABLE_FIELDS
+	 * @param order "asc" or "desc"
+	 * @param search only return tests with these words, as a phrase, in their ID, name, description, alias, plan ID, status or result
+	 * @param draw echoed back, for DataTables
+	 */
 	@GetMapping(value = "/log", produces = MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<List<DBObject>> getAllTests() {
+	public ResponseEntity<Object> getAllTests(
+		@RequestParam(value = "start", required = false, defaultValue = "0") int start,
+		@RequestParam(value = "length", required = false) Integer length,
+		@RequestParam(value = "sort", required = false, defaultValue = "started") String sort,
+		@RequestParam(value = "order", required = false, defaultValue = "desc") String order,
+		@RequestParam(value = "search", required = false) String search,
+		@RequestParam(value = "draw", required = false) Integer draw) {
+
+		String sortField = SORTABLE_FIELDS.get(sort);
+		if (sortField == null || start < 0 || (length != null && length <= 0)) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+		int direction = "asc".equalsIgnoreCase(order) ? 1 : -1;
 
-		DBObject queryFilter;
+		DBObject ownerFilter;
 		if (authenticationFacade.isAdmin()) {
-			queryFilter = BasicDBObjectBuilder.start().get();
+			ownerFilter = BasicDBObjectBuilder.start().get();
 		} else {
 			ImmutableMap<String, String> owner = authenticationFacade.getPrincipal();
-			queryFilter = BasicDBObjectBuilder.start().add("testOwner", owner).get();
+			ownerFilter = BasicDBObjectBuilder.start().add("owner", owner).get();
 		}
 
-		@SuppressWarnings("unchecked")
-		List<String> testIds = mongoTemplate.getCollection(DBEventLog.COLLECTION).distinct("testId", queryFilter);
+		BasicDBObject query = new BasicDBObject();
+		query.putAll(ownerFilter);
+		if (!Strings.isNullOrEmpty(search)) {
+			// this goes through the text index on TEST_INFO
+			query.put("$text", new BasicDBObject("$search", "\"" + search.replace("\"", "") + "\""));
+		}
 
-		List<DBObject> results = new ArrayList<>(testIds.size());
+		DBCollection testInfoCollection = mongoTemplate.getCollection(DBTestInfoService.COLLECTION);
 
-		for (String testId : testIds) {
-			// fetch the test object from the info log if available
-			DBObject testInfo = mongoTemplate.getCollection(DBTestInfoService.COLLECTION).findOne(testId);
+		DBCursor cursor = testInfoCollection.find(query)
+			.sort(BasicDBObjectBuilder.start()
+				.add(sortField, direction)
+				.add("_id", direction) // keep the order stable between pages
+				.get());
 
-			if (testInfo == null) {
-				// make a fake document with just the ID
-				results.add(BasicDBObjectBuilder.start("_id", testId).get());
-			} else {
-				// otherwise, add everything
-				results.add(testInfo);
-			}
+		if (length == null) {
+			return new ResponseEntity<>(cursor.skip(start).limit(defaultPageSize).toArray(), HttpStatus.OK);
 		}
 
-		return new ResponseEntity<>(results, HttpStatus.OK);
+		List<DBObject> page = cursor.skip(start).limit(Math.min(length, maxPageSize)).toArray();
 
+		long total = testInfoCollection.count(ownerFilter);
+		long filtered = Strings.isNullOrEmpty(search) ? total : testInfoCollection.count(query);
+
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("draw", draw);
+		response.put("recordsTotal", total);
+		response.put("recordsFiltered", filtered);
+		response.put("data", page);
+
+		return new ResponseEntity<>(response, HttpStatus.OK);
 	}
 
+	/**
+	 * Get the log entries for a test, in order. The entries are streamed straight from the database cursor.
+	 *
+	 * @param since only return entries logged after this time, in milliseconds
+	 * @param afterSeq only return entries after this one, by its sequence number (the "seq" field). Unlike the time,
+	 *                 this is safe to poll with, as an entry never shows up after one with a higher number from the same
+	 *                 node. Numbers are only ordered per node though: an entry logged by another node of the cluster can
+	 *                 have a lower number and show up later, and a cursor past it skips it.
+	 * @param after only return entries after this one; the cursor of an entry is its time and its _id, separated by a "."
+	 * @param limit the maximum number of entries to return; ask for the next page with the cursor of the last entry returned
+	 * @param exclude large fields (img and the HTTP bodies) to leave out, for callers that don't need them
+	 * @param download the entries are being saved rather than viewed; images kept apart from the log are put back into
+	 *                 the entries that refer to them unless img is excluded, so that the file stands on its own
+	 */
 	@GetMapping(value = "/log/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
-	public ResponseEntity<List<DBObject>> getLogResults(@PathVariable("id") String id, @RequestParam(value = "since", required = false) Long since) {
-		List<DBObject> results = getTestResults(id, since);
+	public ResponseEntity<StreamingResponseBody> getLogResults(@PathVariable("id") String id,
+		@RequestParam(value = "since", required = false) Long since,
+		@RequestParam(value = "afterSeq", required = false) Long afterSeq,
+		@RequestParam(value = "after", required = false) String after,
+		@RequestParam(value = "limit", required = false) Integer limit,
+		@RequestParam(value = "exclude", required = false) List<String> exclude,
+		@RequestParam(value = "dl", required = false, defaultValue = "false") boolean download) {
+
+		Criteria criteria = createTestResultsCriteria(id, since, afterSeq);
+
+		if (!Strings.isNullOrEmpty(after)) {
+			int separator = after.indexOf('.');
+			if (separator < 0) {
+				return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+			}
+
+			long afterTime;
+			try {
+				afterTime = Long.parseLong(after.substring(0, separator));
+			} catch (NumberFormatException e) {
+				return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+			}
+			String afterId = after.substring(separator + 1);
+
+			// entries are ordered by time then _id, so this picks up exactly where the last page left off
+			criteria.orOperator(
+				Criteria.where("time").gt(afterTime),
+				new Criteria().andOperator(
+					Criteria.where("time").is(afterTime),
+					Criteria.where("_id").gt(afterId)));
+		}
 
-		return ResponseEntity.ok().body(results);
+		if (limit != null && limit <= 0) {
+			return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+		}
+
+		DBObject query = criteria.getCriteriaObject();
+
+		DBObject fields = new BasicDBObject(LogArchiver.EXPIRY_FIELD, 0);
+		if (exclude != null) {
+			for (String field : exclude) {
+				if (LARGE_FIELDS.contains(field)) {
+					fields.put(field, 0);
+				}
+			}
+		}
+
+		// bring the log back from the archive if it has expired, but only for someone who's allowed to see it
+		if (authenticationFacade.isAdmin() || authenticationFacade.getPrincipal().equals(testInfoService.getTestOwner(id))) {
+			logArchiver.restoreArchivedLog(id);
+		}
+
+		boolean withImages = download && (exclude == null || !exclude.contains("img"));
+
+		StreamingResponseBody responseBody = (out) -> {
+			DBCursor cursor = mongoTemplate.getCollection(DBEventLog.COLLECTION).find(query, fields)
+				.sort(BasicDBObjectBuilder.start()
+					.add("time", 1)
+					.add("_id", 1)
+					.get());
+
+			if (limit != null) {
+				cursor.limit(limit);
+			}
+
+			try {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+				logExporter.writeJsonArray(cursor, writer, withImages);
+				writer.flush();
+			} finally {
+				cursor.close();
+			}
+		};
+
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(responseBody);
+	}
+
+	/**
+	 * Stream the log entries for a test as server-sent events, starting with the ones already stored.
+	 *
+	 * The ID of each event is the sequence number of its log entry. Resuming from a cursor (the afterSeq parameter, or
+	 * the Last-Event-ID header sent by a reconnecting browser) includes the entry with that number again, so that none
+	 * are lost; clients should skip entries whose _id they have already seen. Sequence numbers are only ordered per
+	 * node, so entries logged by other nodes of the cluster aren't streamed live, and a resumed stream can miss one
+	 * that was logged elsewhere with a lower number; the since parameter (a time, as for getLogResults) limits the
+	 * stored entries that are replayed without that problem.
+	 */
+	@GetMapping(value = "/log/{id}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<SseEmitter> streamLogResults(@PathVariable("id") String id,
+		@RequestParam(value = "since", required = false) Long since,
+		@RequestParam(value = "afterSeq", required = false) Long afterSeq,
+		@RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+
+		if (!authenticationFacade.isAdmin()) {
+			ImmutableMap<String, String> testOwner = testInfoService.getTestOwner(id);
+			if (testOwner == null || !testOwner.equals(authenticationFacade.getPrincipal())) {
+				return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+			}
+		}
+
+		Long cursor = (lastEventId != null) ? lastEventId : afterSeq;
+
+		logArchiver.restoreArchivedLog(id);
+
+		SseEmitter emitter = logStreamer.openStream(id, cursor, (from) -> {
+			// make sure everything logged so far can be found
+			eventLog.flush();
+
+			Criteria criteria = new Criteria();
+			criteria.and("testId").is(id);
+			if (from != null) {
+				criteria.and(EventLogWriter.SEQUENCE_FIELD).gte(from);
+			}
+			if (since != null) {
+				criteria.and("time").gt(since);
+			}
+
+			return mongoTemplate.getCollection(DBEventLog.COLLECTION).find(criteria.getCriteriaObject(), new BasicDBObject(LogArchiver.EXPIRY_FIELD, 0))
+				.sort(BasicDBObjectBuilder.start()
+					.add(EventLogWriter.SEQUENCE_FIELD, 1)
+					.get());
+		});
+
+		return ResponseEntity.ok().body(emitter);
 	}
 
 	@GetMapping(value = "/log/export/{id}", produces = "application/x-gtar")
 	public ResponseEntity<StreamingResponseBody> export(@PathVariable("id") String id) {
-		List<DBObject> results = getTestResults(id);
+		DBObject query = createTestResultsCriteria(id, null, null).getCriteriaObject();
 
 		DBObject testInfo = null;
 		if (authenticationFacade.isAdmin()) {
@@ -135,78 +337,29 @@ public class LogApi {
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
 
+		logArchiver.restoreArchivedLog(id);
+
 		HttpHeaders headers = new HttpHeaders();
 
 		headers.add("Content-Disposition", "attachment; filename=\"test-log-" + id + ".tar.bz2\"");
 
-		final Map<String, Object> export = new HashMap<>();
+		// everything but the results, which are streamed in after these
+		final Map<String, Object> export = new LinkedHashMap<>();
 
 		export.put("exportedAt", new Date());
 		export.put("exportedFrom", baseUrl);
 		export.put("exportedBy", authenticationFacade.getPrincipal());
 		export.put("exportedVersion", version);
 		export.put("testInfo", testInfo);
-		export.put("results", results);
-
-		StreamingResponseBody responseBody = new StreamingResponseBody() {
-
-			@Override
-			public void writeTo(OutputStream out) throws IOException {
-
-				try {
-					BZip2CompressorOutputStream compressorOutputStream = new BZip2CompressorOutputStream(out);
-
-					TarArchiveOutputStream archiveOutputStream = new TarArchiveOutputStream(compressorOutputStream);
-
-					TarArchiveEntry testLog = new TarArchiveEntry("test-log-" + id + ".json");
-
-					Signature signature = Signature.getInstance("SHA1withRSA");
-					signature.initSign(keyManager.getSigningPrivateKey());
-
-					SignatureOutputStream signatureOutputStream = new SignatureOutputStream(archiveOutputStream, signature);
-
-					String json = gson.toJson(export);
-
-					testLog.setSize(json.getBytes().length);
-					archiveOutputStream.putArchiveEntry(testLog);
-
-					signatureOutputStream.write(json.getBytes());
-
-					signatureOutputStream.flush();
-					signatureOutputStream.close();
-
-					archiveOutputStream.closeArchiveEntry();
-
-					TarArchiveEntry signatureFile = new TarArchiveEntry("test-log-" + id + ".sig");
-
-					String encodedSignature = Base64Utils.encodeToUrlSafeString(signature.sign());
-					signatureFile.setSize(encodedSignature.getBytes().length);
-
-					archiveOutputStream.putArchiveEntry(signatureFile);
-
-					archiveOutputStream.write(encodedSignature.getBytes());
 
-					archiveOutputStream.closeArchiveEntry();
-
-					archiveOutputStream.close();
-				} catch (Exception ex) {
-					throw new IOException(ex);
-				}
-			}
-		};
+		StreamingResponseBody responseBody = (out) -> logExporter.writeArchive(id, export, query, out);
 
 		return ResponseEntity.ok().headers(headers).body(responseBody);
 	}
 
-	/**
-	 * @param id
-	 * @return
-	 */
-	private List<DBObject> getTestResults(String id) {
-		return getTestResults(id, null);
-	}
-
-	private List<DBObject> getTestResults(String id, Long since) {
+	// the entries of the test that the current user can see, logged after the given time and after the given sequence
+	// number if there are either
+	private Criteria createTestResultsCriteria(String id, Long since, Long afterSeq) {
 		Criteria criteria = new Criteria();
 		criteria.and("testId").is(id);
 
@@ -218,64 +371,12 @@ public class LogApi {
 			criteria.and("time").gt(since);
 		}
 
-		List<DBObject> results = mongoTemplate.getCollection(DBEventLog.COLLECTION).find(criteria.getCriteriaObject())
-			.sort(BasicDBObjectBuilder.start()
-				.add("time", 1)
-				.get())
-			.toArray();
-		return results;
-	}
-
-	private static class SignatureOutputStream extends OutputStream {
-
-		private OutputStream target;
-		private Signature sig;
-
-		/**
-		 * creates a new SignatureOutputStream which writes to
-		 * a target OutputStream and updates the Signature object.
-		 */
-		public SignatureOutputStream(OutputStream target, Signature sig) {
-			this.target = target;
-			this.sig = sig;
+		if (afterSeq != null) {
+			// entries can be written in a different order to the one they were logged in, but not to the one they were numbered in
+			criteria.and(EventLogWriter.SEQUENCE_FIELD).gt(afterSeq);
 		}
 
-		public void write(int b)
-			throws IOException
-		{
-			write(new byte[]{(byte)b});
-		}
-
-		public void write(byte[] b)
-			throws IOException
-		{
-			write(b, 0, b.length);
-		}
-
-		public void write(byte[] b, int offset, int len)
-			throws IOException
-		{
-			target.write(b, offset, len);
-			try {
-				sig.update(b, offset, len);
-			}
-			catch(SignatureException ex) {
-				throw new IOException(ex);
-			}
-		}
-
-		public void flush()
-			throws IOException
-		{
-			target.flush();
-		}
-
-		public void close()
-			throws IOException
-		{
-			// we don't close the target stream when we're done because we might keep writing to it later
-			//target.close();
-		}
+		return criteria;
 	}
 
 }
@@ -0,0 +1,421 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.gridfs.GridFS;
+import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSInputFile;
+
+import io.fintechlabs.testframework.info.DBImageService;
+import io.fintechlabs.testframework.info.DBTestInfoService;
+import io.fintechlabs.testframework.runner.TestOwnershipService;
+import io.fintechlabs.testframework.runner.TestRunnerSupport;
+import io.fintechlabs.testframework.testmodule.TestModule.Status;
+
+/**
+ * Moves the logs of old tests out of the event log and into an archive, and brings them back when they're asked for.
+ *
+ * A sweep runs every so often and archives each test that started more than archive_after_days ago, in the same
+ * signed tar.bz2 format as an export, into the LOG_ARCHIVE GridFS bucket. The test's log entries and images are
+ * then stamped with the time they were archived, and a TTL index removes them hot_retention_days later.
+ *
+ * When an archived log is read again and its entries have expired, they're restored from the archive into the
+ * event log, where they stay for another hot_retention_days. Readers call restoreArchivedLog before querying, and
+ * otherwise don't need to know about any of this.
+ *
+ * Archiving is off unless archive_after_days is set.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class LogArchiver {
+
+	private static final Logger logger = LoggerFactory.getLogger(LogArchiver.class);
+
+	public static final String BUCKET = "LOG_ARCHIVE";
+
+	/**
+	 * The field archived log entries and images are stamped with, which they expire from
+	 */
+	public static final String EXPIRY_FIELD = "archivedAt";
+
+	// number of entries restored in one bulk write
+	private static final int RESTORE_BATCH_SIZE = 500;
+
+	@Value("${fintechlabs.retention.archive_after_days:0}")
+	private int archiveAfterDays;
+
+	@Value("${fintechlabs.retention.sweep_interval_minutes:60}")
+	private long sweepIntervalMinutes;
+
+	@Value("${fintechlabs.retention.batch_size:50}")
+	private int batchSize;
+
+	@Value("${fintechlabs.base_url:http://localhost:8080}")
+	private String baseUrl;
+
+	@Value("${fintechlabs.version}")
+	private String version;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@Autowired
+	private LogExporter logExporter;
+
+	@Autowired
+	private EventLog eventLog;
+
+	@Autowired
+	private TestRunnerSupport testRunnerSupport;
+
+	@Autowired
+	private TestOwnershipService ownershipService;
+
+	private ScheduledExecutorService sweeper;
+
+	// so that only one request restores any one test
+	private Striped<Lock> restoreLocks = Striped.lock(64);
+
+	// statistics
+	private AtomicLong archived = new AtomicLong();
+	private AtomicLong archiveFailures = new AtomicLong();
+	private AtomicLong restored = new AtomicLong();
+	private volatile Date lastSweep;
+
+	@PostConstruct
+	public void start() {
+		if (archiveAfterDays <= 0) {
+			logger.info("Log archiving is turned off");
+			return;
+		}
+
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("log-archiver-%d")
+			.setDaemon(true)
+			.build());
+
+		// give the server a minute to settle down before the first sweep
+		sweeper.scheduleWithFixedDelay(this::sweep, 1, sweepIntervalMinutes, TimeUnit.MINUTES);
+
+		logger.info("Archiving logs of tests started more than " + archiveAfterDays + " days ago");
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+		}
+	}
+
+	/**
+	 * Archive the next batch of old tests.
+	 *
+	 * Tests that are still running, or that fail to archive, are stepped over rather than counted against the batch,
+	 * so they can't hold the rest back; they're tried again on the next sweep.
+	 */
+	public void sweep() {
+		try {
+			Date cutoff = Date.from(Instant.now().minus(archiveAfterDays, ChronoUnit.DAYS));
+
+			int archivedThisSweep = 0;
+			DBObject last = null;
+
+			while (archivedThisSweep < batchSize) {
+				BasicDBObject query = new BasicDBObject(DBTestInfoService.STARTED_AT_FIELD, new BasicDBObject("$lt", cutoff))
+					.append(EXPIRY_FIELD, new BasicDBObject("$exists", false));
+				if (last != null) {
+					// carry on after the last test we looked at, by start time then _id
+					query.append("$or", Arrays.asList(
+						new BasicDBObject(DBTestInfoService.STARTED_AT_FIELD, new BasicDBObject("$gt", last.get(DBTestInfoService.STARTED_AT_FIELD))),
+						new BasicDBObject(DBTestInfoService.STARTED_AT_FIELD, last.get(DBTestInfoService.STARTED_AT_FIELD))
+							.append("_id", new BasicDBObject("$gt", last.get("_id")))));
+				}
+
+				DBCursor cursor = mongoTemplate.getCollection(DBTestInfoService.COLLECTION).find(query)
+					.sort(BasicDBObjectBuilder.start()
+						.add(DBTestInfoService.STARTED_AT_FIELD, 1)
+						.add("_id", 1)
+						.get())
+					.limit(batchSize);
+
+				int seen = 0;
+				try {
+					while (cursor.hasNext() && archivedThisSweep < batchSize) {
+						DBObject testInfo = cursor.next();
+						last = testInfo;
+						seen++;
+						try {
+							if (archive(testInfo)) {
+								archivedThisSweep++;
+							}
+						} catch (IOException | MongoException e) {
+							archiveFailures.incrementAndGet();
+							logger.error("Couldn't archive the log of test " + testInfo.get("_id"), e);
+						}
+					}
+				} finally {
+					cursor.close();
+				}
+
+				if (seen < batchSize) {
+					// nothing more to look at
+					break;
+				}
+			}
+
+			lastSweep = new Date();
+		} catch (RuntimeException e) {
+			// don't let this escape, or the sweep won't be run again
+			logger.error("Log archiving sweep failed", e);
+		}
+	}
+
+	/**
+	 * Check whether a test might still be logging, on this node or any other. A test that hasn't finished according to
+	 * TEST_INFO is only taken to have stopped if no live node has it, such as when the node it was on went away.
+	 */
+	private boolean isStillRunning(String id, DBObject testInfo) {
+		if (testRunnerSupport.getRunningTestById(id) != null) {
+			return true;
+		}
+
+		Object status = testInfo.get("status");
+		if (Status.FINISHED.toString().equals(status) || Status.INTERRUPTED.toString().equals(status)) {
+			return false;
+		}
+
+		return ownershipService.isTestOwnedByLiveNode(id);
+	}
+
+	/**
+	 * @return true if the test was archived, false if it was left for a later sweep
+	 */
+	private boolean archive(DBObject testInfo) throws IOException {
+		String id = (String) testInfo.get("_id");
+
+		if (isStillRunning(id, testInfo)) {
+			// it's still going, leave it for a later sweep
+			return false;
+		}
+
+		// make sure everything that's been logged is in the database
+		eventLog.flush();
+
+		Date now = new Date();
+
+		Map<String, Object> export = new LinkedHashMap<>();
+		export.put("exportedAt", now);
+		export.put("exportedFrom", baseUrl);
+		export.put("exportedVersion", version);
+		export.put("testInfo", testInfo);
+
+		// anything logged from here on stays in the event log
+		DBObject query = BasicDBObjectBuilder.start()
+			.add("testId", id)
+			.add("time", new BasicDBObject("$lte", now.getTime()))
+			.get();
+
+		File spool = File.createTempFile("test-log-" + id + "-", ".tar.bz2");
+
+		long entries;
+		try {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spool))) {
+				entries = logExporter.writeArchive(id, export, query, out);
+			}
+
+			GridFS archive = new GridFS(mongoTemplate.getDb(), BUCKET);
+
+			// left over from an attempt that didn't finish
+			archive.remove(new BasicDBObject("metadata.testId", id));
+
+			GridFSInputFile file = archive.createFile(spool);
+			file.setFilename("test-log-" + id + ".tar.bz2");
+			file.setContentType("application/x-gtar");
+			file.setMetaData(BasicDBObjectBuilder.start()
+				.add("testId", id)
+				.add("owner", testInfo.get("owner"))
+				.add("entries", entries)
+				.get());
+			file.save();
+		} finally {
+			Files.deleteIfExists(spool.toPath());
+		}
+
+		// only now that the archive is safely stored can the entries be let go of
+		DBObject expire = new BasicDBObject("$set", new BasicDBObject(EXPIRY_FIELD, now));
+
+		mongoTemplate.getCollection(DBEventLog.COLLECTION).updateMulti(
+			BasicDBObjectBuilder.start()
+				.add("testId", id)
+				.add("time", new BasicDBObject("$lte", now.getTime()))
+				.add(EXPIRY_FIELD, new BasicDBObject("$exists", false))
+				.get(),
+			expire);
+
+		mongoTemplate.getCollection(DBImageService.COLLECTION).updateMulti(
+			BasicDBObjectBuilder.start()
+				.add("testId", id)
+				.add(EXPIRY_FIELD, new BasicDBObject("$exists", false))
+				.get(),
+			expire);
+
+		mongoTemplate.getCollection(DBTestInfoService.COLLECTION).update(
+			new BasicDBObject("_id", id),
+			new BasicDBObject("$set", BasicDBObjectBuilder.start()
+				.add(EXPIRY_FIELD, now)
+				.add("archivedEntries", entries)
+				.get()));
+
+		archived.incrementAndGet();
+		logger.info("Archived " + entries + " log entries of test " + id);
+		return true;
+	}
+
+	/**
+	 * Make sure the log of the given test is in the event log, restoring it from the archive if it has expired.
+	 * This is quick for tests that have never been archived, and for ones whose entries are still there.
+	 */
+	public void restoreArchivedLog(String testId) {
+		DBObject testInfo = mongoTemplate.getCollection(DBTestInfoService.COLLECTION).findOne(
+			new BasicDBObject("_id", testId),
+			BasicDBObjectBuilder.start()
+				.add(EXPIRY_FIELD, 1)
+				.add("archivedEntries", 1)
+				.get());
+
+		if (testInfo == null || !testInfo.containsField(EXPIRY_FIELD)) {
+			// this is almost every test
+			return;
+		}
+
+		long entries = ((Number) testInfo.get("archivedEntries")).longValue();
+
+		Lock lock = restoreLocks.get(testId);
+		lock.lock();
+		try {
+			DBCollection collection = mongoTemplate.getCollection(DBEventLog.COLLECTION);
+
+			long present = collection.count(BasicDBObjectBuilder.start()
+				.add("testId", testId)
+				.add(EXPIRY_FIELD, new BasicDBObject("$exists", true))
+				.get());
+
+			if (present >= entries) {
+				// they haven't expired yet, or somebody else has just restored them
+				return;
+			}
+
+			GridFSDBFile file = new GridFS(mongoTemplate.getDb(), BUCKET).findOne(new BasicDBObject("metadata.testId", testId));
+			if (file == null) {
+				logger.error("The archived log of test " + testId + " is missing");
+				return;
+			}
+
+			// restored entries expire again in their own time
+			Date now = new Date();
+			List<DBObject> batch = new ArrayList<>();
+
+			try (InputStream in = file.getInputStream()) {
+				logExporter.readArchive(testId, in, (entry) -> {
+					entry.put(EXPIRY_FIELD, now);
+					batch.add(entry);
+					if (batch.size() >= RESTORE_BATCH_SIZE) {
+						restoreBatch(collection, batch);
+					}
+				});
+			}
+			restoreBatch(collection, batch);
+
+			restored.incrementAndGet();
+			logger.info("Restored the archived log of test " + testId);
+		} catch (IOException | MongoException e) {
+			logger.error("Couldn't restore the archived log of test " + testId, e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// write the entries, replacing any that are still there, and empty the batch
+	private void restoreBatch(DBCollection collection, List<DBObject> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+		for (DBObject entry : batch) {
+			bulk.find(new BasicDBObject("_id", entry.get("_id"))).upsert().replaceOne(entry);
+		}
+		bulk.execute();
+
+		batch.clear();
+	}
+
+	/**
+	 * @return a snapshot of the archiver's counters, suitable for returning from an API
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("enabled", sweeper != null);
+		stats.put("archiveAfterDays", archiveAfterDays);
+		stats.put("lastSweep", lastSweep);
+		stats.put("archived", archived.get());
+		stats.put("archiveFailures", archiveFailures.get());
+		stats.put("restored", restored.get());
+		return stats;
+	}
+
+}
@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Base64Utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.BasicDBList;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import io.fintechlabs.testframework.CollapsingGsonHttpMessageConverter;
+import io.fintechlabs.testframework.info.DBImageService;
+import io.fintechlabs.testframework.security.KeyManager;
+
+/**
+ * Writes the log of a test out as a signed archive: a bzip2 compressed tar holding the log as JSON, along with
+ * a signature over it. This is both what users export and what old logs are archived as, and archives can be
+ * read back in again.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class LogExporter {
+
+	// number of entries whose images are fetched from the database together
+	private static final int IMAGE_BLOCK_SIZE = 50;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@Autowired
+	private KeyManager keyManager;
+
+	private Gson gson = CollapsingGsonHttpMessageConverter.getDbObjectCollapsingGson();
+
+	/**
+	 * Write a signed archive of a test's log.
+	 *
+	 * @param id the test ID
+	 * @param export fields to write before the results, such as the test info
+	 * @param query the log entries to include
+	 * @param out where to write the archive; this is closed once the archive is finished
+	 * @return the number of log entries in the archive
+	 */
+	public long writeArchive(String id, Map<String, Object> export, DBObject query, OutputStream out) throws IOException {
+
+		long entries;
+
+		// the tar entry needs its size up front, so the log is spooled to disk first to keep memory use flat
+		File spool = File.createTempFile("test-log-" + id + "-", ".json");
+
+		try {
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spool), StandardCharsets.UTF_8))) {
+				entries = writeExport(export, query, writer);
+			}
+
+			BZip2CompressorOutputStream compressorOutputStream = new BZip2CompressorOutputStream(out);
+
+			TarArchiveOutputStream archiveOutputStream = new TarArchiveOutputStream(compressorOutputStream);
+
+			TarArchiveEntry testLog = new TarArchiveEntry("test-log-" + id + ".json");
+
+			Signature signature = Signature.getInstance("SHA1withRSA");
+			signature.initSign(keyManager.getSigningPrivateKey());
+
+			SignatureOutputStream signatureOutputStream = new SignatureOutputStream(archiveOutputStream, signature);
+
+			testLog.setSize(spool.length());
+			archiveOutputStream.putArchiveEntry(testLog);
+
+			Files.copy(spool.toPath(), signatureOutputStream);
+
+			signatureOutputStream.flush();
+			signatureOutputStream.close();
+
+			archiveOutputStream.closeArchiveEntry();
+
+			TarArchiveEntry signatureFile = new TarArchiveEntry("test-log-" + id + ".sig");
+
+			String encodedSignature = Base64Utils.encodeToUrlSafeString(signature.sign());
+			signatureFile.setSize(encodedSignature.getBytes().length);
+
+			archiveOutputStream.putArchiveEntry(signatureFile);
+
+			archiveOutputStream.write(encodedSignature.getBytes());
+
+			archiveOutputStream.closeArchiveEntry();
+
+			archiveOutputStream.close();
+		} catch (IOException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new IOException(ex);
+		} finally {
+			Files.deleteIfExists(spool.toPath());
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Read the log entries back out of an archive written by writeArchive, one at a time, in their stored form.
+	 *
+	 * The signature isn't checked; this is meant for our own archives, not for ones uploaded from elsewhere.
+	 *
+	 * @param id the test ID
+	 * @param in the archive; this is not closed
+	 * @param entryHandler called with each log entry in turn
+	 * @throws IOException if the archive can't be read or has no log for the test in it
+	 */
+	public void readArchive(String id, InputStream in, Consumer<DBObject> entryHandler) throws IOException {
+		TarArchiveInputStream archiveInputStream = new TarArchiveInputStream(new BZip2CompressorInputStream(in));
+
+		TarArchiveEntry entry;
+		while ((entry = archiveInputStream.getNextTarEntry()) != null) {
+			if (!entry.getName().equals("test-log-" + id + ".json")) {
+				continue;
+			}
+
+			JsonReader reader = new JsonReader(new InputStreamReader(archiveInputStream, StandardCharsets.UTF_8));
+			JsonParser parser = new JsonParser();
+
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!reader.nextName().equals("results")) {
+					reader.skipValue();
+					continue;
+				}
+
+				reader.beginArray();
+				while (reader.hasNext()) {
+					JsonElement result = parser.parse(reader);
+					// wrap up any keys that can't be stored as they are, the same way they were when first logged
+					entryHandler.accept(GsonObjectToBsonDocumentConverter.convertObject(result.getAsJsonObject()));
+				}
+				reader.endArray();
+			}
+			reader.endObject();
+			return;
+		}
+
+		throw new IOException("No log for test " + id + " in archive");
+	}
+
+	/**
+	 * Write the documents from the cursor out as a JSON array, a small block at a time, without holding on to the rest.
+	 *
+	 * @param withImages fetch the images that entries refer to by imageId, and write them out as the img of the entry;
+	 *                   the images for each block of entries are fetched together
+	 * @return the number of documents written
+	 */
+	public long writeJsonArray(DBCursor cursor, Writer writer, boolean withImages) throws IOException {
+		long count = 0;
+		List<DBObject> block = new ArrayList<>(IMAGE_BLOCK_SIZE);
+		writer.write('[');
+		while (cursor.hasNext()) {
+			block.add(cursor.next());
+			if (block.size() == IMAGE_BLOCK_SIZE || !cursor.hasNext()) {
+				if (withImages) {
+					fillImages(block);
+				}
+				for (DBObject document : block) {
+					if (count > 0) {
+						writer.write(',');
+					}
+					gson.toJson(document, writer);
+					count++;
+				}
+				block.clear();
+			}
+		}
+		writer.write(']');
+		return count;
+	}
+
+	/**
+	 * Put the images that the entries refer to by imageId into the entries, with a single query.
+	 */
+	private void fillImages(List<DBObject> entries) {
+		Map<Object, List<DBObject>> entriesByImage = new HashMap<>();
+		for (DBObject document : entries) {
+			if (document.containsField("imageId") && !document.containsField("img")) {
+				entriesByImage.computeIfAbsent(document.get("imageId"), k -> new ArrayList<>()).add(document);
+			}
+		}
+		if (entriesByImage.isEmpty()) {
+			return;
+		}
+
+		BasicDBList imageIds = new BasicDBList();
+		imageIds.addAll(entriesByImage.keySet());
+
+		DBCursor images = mongoTemplate.getCollection(DBImageService.COLLECTION)
+			.find(new BasicDBObject("_id", new BasicDBObject("$in", imageIds)), new BasicDBObject("img", 1));
+		try {
+			while (images.hasNext()) {
+				DBObject image = images.next();
+				for (DBObject document : entriesByImage.getOrDefault(image.get("_id"), Collections.emptyList())) {
+					document.put("img", image.get("img"));
+				}
+			}
+		} finally {
+			images.close();
+		}
+	}
+
+	/**
+	 * Write the export document: the given header fields, then all the results matching the query, streamed from the database.
+	 *
+	 * @return the number of results written
+	 */
+	private long writeExport(Map<String, Object> export, DBObject query, Writer writer) throws IOException {
+		writer.write('{');
+
+		for (Map.Entry<String, Object> field : export.entrySet()) {
+			if (field.getValue() == null) {
+				// gson leaves out null map values, so do the same
+				continue;
+			}
+			gson.toJson(field.getKey(), writer);
+			writer.write(':');
+			gson.toJson(field.getValue(), writer);
+			writer.write(',');
+		}
+
+		gson.toJson("results", writer);
+		writer.write(':');
+
+		long entries;
+		DBCursor cursor = mongoTemplate.getCollection(DBEventLog.COLLECTION).find(query, new BasicDBObject(LogArchiver.EXPIRY_FIELD, 0))
+			.sort(BasicDBObjectBuilder.start()
+				.add("time", 1)
+				.get());
+		try {
+			entries = writeJsonArray(cursor, writer, true);
+		} finally {
+			cursor.close();
+		}
+
+		writer.write('}');
+
+		return entries;
+	}
+
+	private static class SignatureOutputStream extends OutputStream {
+
+		private OutputStream target;
+		private Signature sig;
+
+		/**
+		 * creates a new SignatureOutputStream which writes to
+		 * a target OutputStream and updates the Signature object.
+		 */
+		public SignatureOutputStream(OutputStream target, Signature sig) {
+			this.target = target;
+			this.sig = sig;
+		}
+
+		public void write(int b)
+			throws IOException
+		{
+			write(new byte[]{(byte)b});
+		}
+
+		public void write(byte[] b)
+			throws IOException
+		{
+			write(b, 0, b.length);
+		}
+
+		public void write(byte[] b, int offset, int len)
+			throws IOException
+		{
+			target.write(b, offset, len);
+			try {
+				sig.update(b, offset, len);
+			}
+			catch(SignatureException ex) {
+				throw new IOException(ex);
+			}
+		}
+
+		public void flush()
+			throws IOException
+		{
+			target.flush();
+		}
+
+		public void close()
+			throws IOException
+		{
+			// we don't close the target stream when we're done because we might keep writing to it later
+			//target.close();
+		}
+	}
+
+}
@@ -0,0 +1,418 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.logging;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import io.fintechlabs.testframework.CollapsingGsonHttpMessageConverter;
+
+/**
+ * Pushes log entries to browsers as server-sent events, as they are written.
+ *
+ * Each stream starts by replaying the entries already stored for the test from a cursor (the sequence number of
+ * the last entry the client has seen), then carries on with live entries handed over from the event log's
+ * write path. Live entries that arrive during the replay are held back and sent afterwards, without
+ * duplicating anything the replay already sent.
+ *
+ * Every event carries the sequence number of its entry as the event ID, so a client that reconnects with Last-Event-ID
+ * picks up where it left off. A client that can't keep up has its stream closed, and resumes the same way.
+ *
+ * Live entries are handed to each stream through a bounded queue, and the logging thread never waits: when a stream's
+ * queue is full the client is disconnected. Sender threads take turns between streams, sending at most a few events
+ * at a time, and a send that's been stuck for longer than the send timeout gets its stream closed. Replays read from
+ * the database and can take a while, so they have a pool of their own and never hold up the live streams.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class LogStreamer {
+
+	private static final Logger logger = LoggerFactory.getLogger(LogStreamer.class);
+
+	@Value("${fintechlabs.logstream.timeout:1800000}")
+	private long timeoutMillis;
+
+	@Value("${fintechlabs.logstream.threads:8}")
+	private int threads;
+
+	@Value("${fintechlabs.logstream.replay_threads:4}")
+	private int replayThreads;
+
+	@Value("${fintechlabs.logstream.max_pending:10000}")
+	private int maxPending;
+
+	@Value("${fintechlabs.logstream.send_timeout:10000}")
+	private long sendTimeoutMillis;
+
+	// the most events a sender sends to one stream before giving the other streams a turn
+	private static final int SEND_BATCH = 100;
+
+	private Gson gson = CollapsingGsonHttpMessageConverter.getDbObjectCollapsingGson();
+
+	// open streams, by test ID
+	private Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+	// sends events, so that neither the request thread nor the thread doing the logging waits on a slow client
+	private ExecutorService senders;
+
+	// reads the stored entries for new streams
+	private ThreadPoolExecutor replayers;
+
+	// closes streams whose client has stopped reading
+	private ScheduledExecutorService watchdog;
+
+	private AtomicInteger openStreams = new AtomicInteger();
+
+	@PostConstruct
+	public void start() {
+		senders = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+			.setNameFormat("log-stream-%d")
+			.setDaemon(true)
+			.build());
+
+		replayers = new ThreadPoolExecutor(replayThreads, replayThreads,
+			60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(maxPending),
+			new ThreadFactoryBuilder()
+				.setNameFormat("log-replay-%d")
+				.setDaemon(true)
+				.build());
+		replayers.allowCoreThreadTimeOut(true);
+
+		watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("log-stream-watchdog-%d")
+			.setDaemon(true)
+			.build());
+		watchdog.scheduleWithFixedDelay(this::closeStuckStreams, sendTimeoutMillis, Math.max(sendTimeoutMillis / 4, 100), TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		watchdog.shutdownNow();
+		replayers.shutdownNow();
+		senders.shutdownNow();
+	}
+
+	/**
+	 * Open a stream of log entries for a test.
+	 *
+	 * @param testId the test to stream entries for; the caller must already have checked that the user can see it
+	 * @param since the sequence number of the last entry the client has already seen, or null to start from the beginning
+	 * @param history returns a cursor over the stored entries for the test from the given sequence number onwards, in sequence order
+	 * @return the emitter to return from the controller
+	 */
+	public SseEmitter openStream(String testId, Long since, Function<Long, DBCursor> history) {
+		SseEmitter emitter = new SseEmitter(timeoutMillis);
+		Subscriber subscriber = new Subscriber(testId, emitter);
+
+		// register before we read the history, so that nothing written in between gets lost
+		subscribers.compute(testId, (k, testSubscribers) -> {
+			if (testSubscribers == null) {
+				testSubscribers = ConcurrentHashMap.newKeySet();
+			}
+			testSubscribers.add(subscriber);
+			return testSubscribers;
+		});
+		openStreams.incrementAndGet();
+
+		emitter.onCompletion(subscriber::close);
+		emitter.onTimeout(subscriber::close);
+
+		try {
+			replayers.execute(() -> subscriber.replay(since, history));
+		} catch (RejectedExecutionException e) {
+			// too many streams starting at once, the client will try again
+			subscriber.fail(e);
+		}
+
+		return emitter;
+	}
+
+	/**
+	 * Hand a log entry to any open streams for its test. This is called from the logging thread and returns right away.
+	 *
+	 * @param document the entry, in its final stored form
+	 */
+	public void publish(DBObject document) {
+		Object testId = document.get("testId");
+		if (testId == null) {
+			return;
+		}
+
+		Set<Subscriber> testSubscribers = subscribers.get(testId.toString());
+		if (testSubscribers == null) {
+			// nobody is watching, which is most of the time
+			return;
+		}
+
+		for (Subscriber subscriber : testSubscribers) {
+			subscriber.offer(document);
+		}
+	}
+
+	/**
+	 * Close any stream that's been stuck sending a single event for longer than the send timeout.
+	 */
+	private void closeStuckStreams() {
+		long now = System.currentTimeMillis();
+		for (Set<Subscriber> testSubscribers : subscribers.values()) {
+			for (Subscriber subscriber : testSubscribers) {
+				long sendingSince = subscriber.sendingSince;
+				if (sendingSince != 0 && now - sendingSince > sendTimeoutMillis) {
+					subscriber.abandon();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of streams currently open
+	 */
+	public int getOpenStreams() {
+		return openStreams.get();
+	}
+
+	private class Subscriber {
+
+		private final String testId;
+		private final SseEmitter emitter;
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private boolean replaying = true; // guarded by lock
+		private Map<Object, DBObject> heldBack = new LinkedHashMap<>(); // guarded by lock, live entries that arrived during the replay
+
+		private final BlockingQueue<DBObject> outbox = new ArrayBlockingQueue<>(maxPending);
+		private final AtomicBoolean draining = new AtomicBoolean();
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		// when the send in progress started, or 0 if we're not sending
+		private volatile long sendingSince;
+
+		// set by the watchdog when a send has been stuck for too long
+		private volatile boolean abandoned;
+
+		public Subscriber(String testId, SseEmitter emitter) {
+			this.testId = testId;
+			this.emitter = emitter;
+		}
+
+		private void replay(Long since, Function<Long, DBCursor> history) {
+			try (DBCursor cursor = history.apply(since)) {
+				while (cursor.hasNext() && !closed.get()) {
+					DBObject document = cursor.next();
+
+					lock.lock();
+					try {
+						// the replay got to this one first
+						heldBack.remove(document.get("_id"));
+					} finally {
+						lock.unlock();
+					}
+
+					send(document);
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+				return;
+			}
+
+			lock.lock();
+			try {
+				for (DBObject document : heldBack.values()) {
+					enqueue(document);
+				}
+				heldBack = null;
+				replaying = false;
+			} finally {
+				lock.unlock();
+			}
+
+			drain();
+		}
+
+		private void offer(DBObject document) {
+			lock.lock();
+			try {
+				if (replaying) {
+					if (heldBack.size() < maxPending) {
+						heldBack.put(document.get("_id"), document);
+					} else {
+						// the replay is taking too long, this counts as falling behind too
+						disconnect();
+					}
+					return;
+				}
+				enqueue(document);
+			} finally {
+				lock.unlock();
+			}
+
+			drain();
+		}
+
+		private void enqueue(DBObject document) {
+			if (!outbox.offer(document)) {
+				// the client isn't keeping up, let it reconnect and catch up from the database instead
+				disconnect();
+			}
+		}
+
+		/**
+		 * Close the stream of a client that's fallen too far behind. The emitter is completed by a sender, as it
+		 * might be in the middle of a send and we're on the logging thread.
+		 */
+		private void disconnect() {
+			if (closed.get()) {
+				return;
+			}
+			logger.info("Closing log stream for test " + testId + ", client is too slow");
+			close();
+			try {
+				senders.execute(() -> {
+					try {
+						emitter.complete();
+					} catch (RuntimeException e) {
+						logger.debug("Couldn't complete log stream for test " + testId, e);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// we're shutting down anyway
+			}
+		}
+
+		// make sure exactly one sender is working through the outbox, so that events go out in order
+		private void drain() {
+			if (closed.get() || !draining.compareAndSet(false, true)) {
+				return;
+			}
+
+			try {
+				senders.execute(() -> {
+					try {
+						DBObject document;
+						int sent = 0;
+						while (sent < SEND_BATCH && !closed.get() && (document = outbox.poll()) != null) {
+							send(document);
+							sent++;
+						}
+					} catch (IOException | RuntimeException e) {
+						fail(e);
+					} finally {
+						draining.set(false);
+					}
+
+					// pick up anything that came in after we stopped looking, or that's waiting for our next turn
+					if (!outbox.isEmpty()) {
+						drain();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// we're shutting down
+				draining.set(false);
+				close();
+			}
+		}
+
+		private void send(DBObject document) throws IOException {
+			SseEmitter.SseEventBuilder event = SseEmitter.event()
+				.name("log")
+				.data(gson.toJson(document));
+
+			Object sequence = document.get(EventLogWriter.SEQUENCE_FIELD);
+			if (sequence != null) {
+				event.id(sequence.toString());
+			}
+
+			sendingSince = System.currentTimeMillis();
+			try {
+				emitter.send(event);
+			} finally {
+				sendingSince = 0;
+			}
+
+			if (abandoned) {
+				// the watchdog gave up on this client while we were stuck, finish it off now the emitter is free
+				emitter.complete();
+				throw new IOException("Client stopped reading");
+			}
+		}
+
+		/**
+		 * Give up on a client that's stopped reading. The emitter can't be touched while a send is stuck in it,
+		 * so this only stops anything more being queued up; the sender closes the stream when the send returns.
+		 */
+		private void abandon() {
+			logger.info("Closing log stream for test " + testId + ", client stopped reading");
+			abandoned = true;
+			close();
+		}
+
+		private void fail(Exception e) {
+			if (closed.get()) {
+				return;
+			}
+			// this is usually just the browser going away
+			logger.debug("Log stream for test " + testId + " failed", e);
+			close();
+			emitter.completeWithError(e);
+		}
+
+		private void close() {
+			if (!closed.compareAndSet(false, true)) {
+				return;
+			}
+
+			subscribers.computeIfPresent(testId, (k, testSubscribers) -> {
+				testSubscribers.remove(this);
+				return testSubscribers.isEmpty() ? null : testSubscribers;
+			});
+			openStreams.decrementAndGet();
+			outbox.clear();
+		}
+	}
+
+}
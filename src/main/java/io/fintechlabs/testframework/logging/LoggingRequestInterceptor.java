@@ -31,8 +31,11 @@ public class LoggingRequestInterceptor implements ClientHttpRequestInterceptor,
 	@Override
 	public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
 		logRequest(request, body);
-		WrappedClientHttpResponse response = new WrappedClientHttpResponse(execution.execute(request, body));
-		logResponse(response);
+		long start = System.nanoTime();
+		WrappedClientHttpResponse response = new WrappedClientHttpResponse(execution.execute(request, body)); // reads the whole body
+		long elapsed = System.nanoTime() - start;
+		TimingStatistics.record(TimingStatistics.HOSTS, request.getURI().getHost(), elapsed);
+		logResponse(response, elapsed);
 		return response;
 	}
 
@@ -52,7 +55,7 @@ public class LoggingRequestInterceptor implements ClientHttpRequestInterceptor,
 		log.log(source, o);
 	}
 
-	private void logResponse(WrappedClientHttpResponse response) throws IOException {
+	private void logResponse(WrappedClientHttpResponse response, long elapsed) throws IOException {
 		JsonObject o = new JsonObject();
 		o.addProperty("response_status_code", response.getStatusCode().toString());
 		o.addProperty("response_status_text", response.getStatusText());
@@ -60,6 +63,7 @@ public class LoggingRequestInterceptor implements ClientHttpRequestInterceptor,
 		if (response.body != null) {
 			o.addProperty("response_body", new String(response.body, "UTF-8"));
 		}
+		o.addProperty("elapsed_ms", TimingStatistics.toMillis(elapsed));
 		o.addProperty("msg", "HTTP response");
 		o.addProperty("http", "response");
 		log.log(source, o);
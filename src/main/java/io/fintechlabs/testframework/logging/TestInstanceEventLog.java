@@ -14,7 +14,9 @@
 
 package io.fintechlabs.testframework.logging;
 
+import java.security.SecureRandom;
 import java.util.Map;
+import java.util.Random;
 
 import com.google.common.base.Strings;
 import com.google.gson.JsonObject;
@@ -24,6 +26,9 @@ import io.fintechlabs.testframework.testmodule.DataUtils;
 /**
  * A wrapper around an EventLog that remebers the test ID and Owner information so the caller doesn't need to
  *
+ * This also keeps track of the current log block for the test instance. The event log itself is shared by
+ * all running tests, so the block can't be kept there.
+ *
  * @author jricher
  *
  */
@@ -33,6 +38,12 @@ public class TestInstanceEventLog implements DataUtils {
 	private Map<String, String> owner;
 	private EventLog eventLog;
 
+	// the block identifier for log entries from this test, null if we're not in a block
+	private volatile String blockId = null;
+
+	// random number generator, shared by all tests
+	private static final Random random = new SecureRandom();
+
 	/**
 	 * @param testId
 	 * @param owner
@@ -50,7 +61,7 @@ public class TestInstanceEventLog implements DataUtils {
 	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String, java.lang.String, java.util.Map, java.lang.String)
 	 */
 	public void log(String source, String msg) {
-		eventLog.log(testId, source, owner, msg);
+		eventLog.log(testId, source, owner, blockId, msg);
 	}
 
 	/**
@@ -59,7 +70,7 @@ public class TestInstanceEventLog implements DataUtils {
 	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String, java.lang.String, java.util.Map, com.google.gson.JsonObject)
 	 */
 	public void log(String source, JsonObject obj) {
-		eventLog.log(testId, source, owner, obj);
+		eventLog.log(testId, source, owner, blockId, obj);
 	}
 
 	/**
@@ -68,34 +79,68 @@ public class TestInstanceEventLog implements DataUtils {
 	 * @see io.fintechlabs.testframework.logging.EventLog#log(java.lang.String, java.lang.String, java.util.Map, java.util.Map)
 	 */
 	public void log(String source, Map<String, Object> map) {
-		eventLog.log(testId, source, owner, map);
+		eventLog.log(testId, source, owner, blockId, map);
 	}
 
+	/**
+	 * @see io.fintechlabs.testframework.logging.EventLog#flush()
+	 */
+	public void flush() {
+		eventLog.flush();
+	}
 
 	public String startBlock() {
 		return startBlock(null);
 	}
 
 	/**
-	 * @return
-	 * @see io.fintechlabs.testframework.logging.EventLog#startBlock()
+	 * Start a new log block and return its ID. All entries logged through this object are tagged with
+	 * the block ID until endBlock is called.
+	 *
+	 * @param message if not empty, logged as the first entry in the block
+	 * @return the new block ID
 	 */
 	public String startBlock(String message) {
-		String blockId = eventLog.startBlock();
+		// create a random six-character hex string that we can use as a CSS color code in the logs
+		String newBlockId = Strings.padStart(
+			Integer.toHexString(
+				random.nextInt(256 * 256 * 256))
+			, 6, '0');
+
+		blockId = newBlockId;
 
 		if (!Strings.isNullOrEmpty(message)) {
 			log("-START-BLOCK-", args("msg", message, "startBlock", true));
 		}
 
-		return blockId;
+		return newBlockId;
 	}
 
 	/**
-	 * @return
-	 * @see io.fintechlabs.testframework.logging.EventLog#endBlock()
+	 * End the current log block.
+	 *
+	 * @return the ID of the block that was ended, or null if we weren't in a block
 	 */
 	public String endBlock() {
-		return eventLog.endBlock();
+		String oldBlock = blockId;
+		blockId = null;
+		return oldBlock;
+	}
+
+	/**
+	 * @return the current block ID, or null if we're not in a block
+	 */
+	public String getBlockId() {
+		return blockId;
+	}
+
+	/**
+	 * Carry on logging in a block that was started earlier, such as before the test was restored from a checkpoint.
+	 *
+	 * @param blockId the block ID, or null to not be in a block
+	 */
+	public void resumeBlock(String blockId) {
+		this.blockId = blockId;
 	}
 
 }
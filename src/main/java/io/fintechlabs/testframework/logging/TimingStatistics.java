@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.logging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a latency histogram for each of the things we time: conditions, the test modules calling them, outgoing HTTP
+ * exchanges by remote host, incoming requests by test module, and test state changes.
+ *
+ * Conditions and test modules aren't Spring beans, so this is kept statically rather than injected. Recording is
+ * lock free, and cheap enough to do on every call.
+ *
+ * @author jricher
+ *
+ */
+public final class TimingStatistics {
+
+	public static final String CONDITIONS = "conditions";
+	public static final String MODULES = "modules";
+	public static final String HOSTS = "hosts";
+	public static final String DISPATCH = "dispatch";
+	public static final String STATUS = "status";
+
+	// upper bounds of the histogram buckets, in milliseconds; anything slower goes in the last bucket
+	private static final long[] BUCKET_BOUNDS = { 1, 10, 100, 1000, 10000 };
+
+	// the most names kept in any one category, so that a stream of new remote hosts can't use up all our memory
+	private static final int MAX_NAMES = 1000;
+
+	private static final String OTHER = "(other)";
+
+	private static final ConcurrentMap<String, ConcurrentMap<String, Timer>> timers = new ConcurrentHashMap<>();
+
+	private TimingStatistics() {
+		// not instantiable
+	}
+
+	/**
+	 * Record how long something took.
+	 *
+	 * @param category the kind of thing that was timed, one of the constants above
+	 * @param name what was timed, such as the condition class or remote host
+	 * @param nanos the time it took, from System.nanoTime()
+	 */
+	public static void record(String category, String name, long nanos) {
+		ConcurrentMap<String, Timer> byName = timers.computeIfAbsent(category, (k) -> new ConcurrentHashMap<>());
+
+		if (name == null) {
+			name = OTHER;
+		}
+
+		Timer timer = byName.get(name);
+		if (timer == null) {
+			if (byName.size() >= MAX_NAMES) {
+				name = OTHER;
+			}
+			timer = byName.computeIfAbsent(name, (k) -> new Timer());
+		}
+
+		timer.record(nanos);
+	}
+
+	/**
+	 * Convert a duration from System.nanoTime() to milliseconds, to the nearest microsecond, for putting into a log
+	 * entry.
+	 */
+	public static double toMillis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0;
+	}
+
+	/**
+	 * @return a snapshot of every histogram, by category then name, suitable for returning from an API
+	 */
+	public static Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		for (String category : new String[] { CONDITIONS, MODULES, HOSTS, DISPATCH, STATUS }) {
+			Map<String, Object> categoryStats = new TreeMap<>();
+			ConcurrentMap<String, Timer> byName = timers.get(category);
+			if (byName != null) {
+				for (Map.Entry<String, Timer> entry : byName.entrySet()) {
+					categoryStats.put(entry.getKey(), entry.getValue().getStatistics());
+				}
+			}
+			stats.put(category, categoryStats);
+		}
+		return stats;
+	}
+
+	private static class Timer {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+
+		public Timer() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		public void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+
+			long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			int bucket = 0;
+			while (bucket < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[bucket]) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+		}
+
+		public Map<String, Object> getStatistics() {
+			long n = count.sum();
+
+			Map<String, Object> histogram = new LinkedHashMap<>();
+			for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+				histogram.put("<" + BUCKET_BOUNDS[i] + "ms", buckets[i].sum());
+			}
+			histogram.put(">=" + BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1] + "ms", buckets[BUCKET_BOUNDS.length].sum());
+
+			Map<String, Object> stats = new LinkedHashMap<>();
+			stats.put("count", n);
+			stats.put("totalMs", toMillis(totalNanos.sum()));
+			stats.put("meanMs", n > 0 ? toMillis(totalNanos.sum() / n) : 0.0);
+			stats.put("maxMs", toMillis(maxNanos.get()));
+			stats.put("histogram", histogram);
+			return stats;
+		}
+	}
+
+}
@@ -76,7 +76,7 @@ public abstract class AbstractOBEnsureMATLSRequiredCodeIdToken extends AbstractO
 	protected Object performPostAuthorizationFlow() {
 		setStatus(Status.WAITING);
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			setStatus(Status.RUNNING);
 			// call the token endpoint and expect an error, since this request does not
 			// meet any of the OB requirements for client authentication
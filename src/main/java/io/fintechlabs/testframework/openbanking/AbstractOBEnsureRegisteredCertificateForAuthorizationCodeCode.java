@@ -17,7 +17,7 @@ public abstract class AbstractOBEnsureRegisteredCertificateForAuthorizationCodeC
 	protected Object performPostAuthorizationFlow() {
 		setStatus(Status.WAITING);
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			setStatus(Status.RUNNING);
 			createAuthorizationCodeRequest();
 
@@ -24,7 +24,7 @@ public abstract class AbstractOBEnsureRegisteredCertificateForAuthorizationCodeC
 	protected Object performPostAuthorizationFlow() {
 		setStatus(Status.WAITING);
 
-		getTestExecutionManager().runInBackground(() -> {
+		getTestExecutionManager().runInOrder(() -> {
 			setStatus(Status.RUNNING);
 			callAndStopOnFailure(ExtractIdTokenFromAuthorizationResponse.class, "FAPI-RW-5.2.2-3");
 
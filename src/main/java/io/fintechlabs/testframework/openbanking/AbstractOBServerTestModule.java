@@ -104,6 +104,22 @@ public abstract class AbstractOBServerTestModule extends AbstractTestModule {
 
 	private int whichClient;
 
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.AbstractTestModule#saveModuleState(com.google.gson.JsonObject)
+	 */
+	@Override
+	protected void saveModuleState(JsonObject state) {
+		state.addProperty("whichClient", whichClient);
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.AbstractTestModule#restoreModuleState(com.google.gson.JsonObject)
+	 */
+	@Override
+	protected void restoreModuleState(JsonObject state) {
+		whichClient = state.get("whichClient").getAsInt();
+	}
+
 	/* (non-Javadoc)
 	 * @see io.fintechlabs.testframework.testmodule.TestModule#configure(com.google.gson.JsonObject, java.lang.String)
 	 */
@@ -313,7 +329,7 @@ public abstract class AbstractOBServerTestModule extends AbstractTestModule {
 		if (whichClient == 1) {
 			setStatus(Status.WAITING);
 
-			getTestExecutionManager().runInBackground(() -> {
+			getTestExecutionManager().runInOrder(() -> {
 				setStatus(Status.RUNNING);
 				// call the token endpoint and complete the flow
 
@@ -394,7 +410,7 @@ public abstract class AbstractOBServerTestModule extends AbstractTestModule {
 		} else {
 			setStatus(Status.WAITING);
 
-			getTestExecutionManager().runInBackground(() -> {
+			getTestExecutionManager().runInOrder(() -> {
 				setStatus(Status.RUNNING);
 
 				// call the token endpoint and complete the flow
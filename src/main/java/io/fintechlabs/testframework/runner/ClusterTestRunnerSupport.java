@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.mongodb.MongoException;
+
+import io.fintechlabs.testframework.testmodule.TestModule;
+
+/**
+ * Keeps track of running tests when the suite is run on more than one node. The tests themselves are kept in
+ * memory on the node that created them, as for a single node, and which node that is gets recorded with the
+ * TestOwnershipService so that the other nodes can send requests for the test there.
+ *
+ * Aliases are shared across the cluster: a test on any node can be found by its alias, and the most recent test to
+ * be given an alias has it on every node.
+ *
+ * Nothing is released when the node shuts down, as its tests may still be handling requests until the very end. The
+ * node's records go stale once its heartbeat stops, and only then can another node pick its tests up from their
+ * checkpoints.
+ *
+ * @author jricher
+ *
+ */
+public class ClusterTestRunnerSupport extends InMemoryTestRunnerSupport {
+
+	private static Logger logger = LoggerFactory.getLogger(ClusterTestRunnerSupport.class);
+
+	@Autowired
+	private TestOwnershipService ownershipService;
+
+	@PostConstruct
+	public void releaseStaleTests() {
+		// anything recorded for this node is from before it was restarted, and those tests are gone
+		try {
+			ownershipService.releaseAllTests();
+		} catch (MongoException e) {
+			logger.error("Couldn't release tests from a previous run of node " + ownershipService.getNodeId(), e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.InMemoryTestRunnerSupport#addRunningTest(java.lang.String, io.fintechlabs.testframework.testmodule.TestModule)
+	 */
+	@Override
+	public void addRunningTest(String id, TestModule test) {
+		super.addRunningTest(id, test);
+		try {
+			ownershipService.claimTest(id, test.getOwner());
+		} catch (MongoException e) {
+			// the test still works through this node, it just can't be reached through the others
+			logger.error("Couldn't record test " + id + " as running on node " + ownershipService.getNodeId(), e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.InMemoryTestRunnerSupport#claimTestForRestore(java.lang.String, java.util.Map)
+	 */
+	@Override
+	public boolean claimTestForRestore(String testId, Map<String, String> owner) {
+		try {
+			return ownershipService.claimUnownedTest(testId, owner);
+		} catch (MongoException e) {
+			// we can't tell whether another node has it, so don't risk running it twice
+			logger.error("Couldn't claim test " + testId + " for node " + ownershipService.getNodeId(), e);
+			return false;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.InMemoryTestRunnerSupport#addAlias(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void addAlias(String alias, String id) {
+		super.addAlias(alias, id);
+		try {
+			ownershipService.claimAlias(alias, id);
+		} catch (MongoException e) {
+			logger.error("Couldn't record alias " + alias + " for test " + id, e);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.InMemoryTestRunnerSupport#getTestIdForAlias(java.lang.String)
+	 */
+	@Override
+	public String getTestIdForAlias(String alias) {
+		// the alias may have been taken by a test on another node since it was given to one of ours
+		try {
+			String testId = ownershipService.getTestIdForAlias(alias);
+			if (testId != null) {
+				return testId;
+			}
+		} catch (MongoException e) {
+			logger.error("Couldn't look up alias " + alias, e);
+		}
+		return super.getTestIdForAlias(alias);
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.InMemoryTestRunnerSupport#removeRunningTest(java.lang.String)
+	 */
+	@Override
+	public void removeRunningTest(String testId) {
+		super.removeRunningTest(testId);
+		try {
+			ownershipService.releaseTest(testId);
+		} catch (MongoException e) {
+			// it'll expire eventually
+			logger.error("Couldn't release test " + testId, e);
+		}
+	}
+
+}
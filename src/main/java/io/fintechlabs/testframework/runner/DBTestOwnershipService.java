@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoException;
+
+/**
+ * Keeps the node each test is running on in the database, where every node can see it.
+ *
+ * Each test has a document with the ID of its node, the URL the node can be reached on by the other nodes, its
+ * alias and its owner. Documents are removed when the test is.
+ *
+ * While clustering is on, each node refreshes the update time of all of its documents every few seconds. A node
+ * that hasn't done so for longer than the node timeout is taken to have gone away without removing them: its tests
+ * are treated as not running anywhere, so that another node can pick them up from their checkpoints, and the
+ * documents themselves expire an hour later.
+ *
+ * @author jricher
+ *
+ */
+@Service
+public class DBTestOwnershipService implements TestOwnershipService {
+
+	public static final String COLLECTION = "TEST_OWNERSHIP";
+
+	// the field the documents expire on
+	public static final String UPDATED_FIELD = "updated";
+
+	private static final Logger logger = LoggerFactory.getLogger(DBTestOwnershipService.class);
+
+	@Value("${fintechlabs.cluster.node_id:}")
+	private String nodeId;
+
+	@Value("${fintechlabs.cluster.node_url:}")
+	private String nodeUrl;
+
+	@Value("${server.port:8080}")
+	private int serverPort;
+
+	@Value("${fintechlabs.cluster.enabled:false}")
+	private boolean clusterEnabled;
+
+	@Value("${fintechlabs.cluster.heartbeat_seconds:10}")
+	private long heartbeatSeconds;
+
+	@Value("${fintechlabs.cluster.node_timeout_seconds:60}")
+	private long nodeTimeoutSeconds;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	private ScheduledExecutorService heartbeat;
+
+	@PostConstruct
+	public void identifyNode() {
+		if (Strings.isNullOrEmpty(nodeId) || Strings.isNullOrEmpty(nodeUrl)) {
+			String hostName = "localhost";
+			String hostAddress = "127.0.0.1";
+			try {
+				InetAddress local = InetAddress.getLocalHost();
+				hostName = local.getHostName();
+				hostAddress = local.getHostAddress();
+			} catch (UnknownHostException e) {
+				logger.warn("Couldn't find the local host name, using " + hostName, e);
+			}
+
+			if (Strings.isNullOrEmpty(nodeId)) {
+				nodeId = hostName;
+			}
+			if (Strings.isNullOrEmpty(nodeUrl)) {
+				nodeUrl = "http://" + hostAddress + ":" + serverPort;
+			}
+		}
+	}
+
+	@PostConstruct
+	public void startHeartbeat() {
+		if (!clusterEnabled) {
+			return;
+		}
+
+		heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("test-ownership-heartbeat")
+			.setDaemon(true)
+			.build());
+		heartbeat.scheduleWithFixedDelay(this::refreshTests, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void stopHeartbeat() {
+		if (heartbeat != null) {
+			heartbeat.shutdownNow();
+		}
+	}
+
+	/**
+	 * Let the other nodes know that this node is still running its tests. This is called periodically by the
+	 * heartbeat.
+	 */
+	protected void refreshTests() {
+		try {
+			mongoTemplate.getCollection(COLLECTION).updateMulti(
+				new BasicDBObject("node", nodeId),
+				new BasicDBObject("$set", new BasicDBObject(UPDATED_FIELD, new Date())));
+		} catch (MongoException e) {
+			// don't let an exception stop the heartbeat from being scheduled again
+			logger.error("Couldn't refresh the tests of node " + nodeId, e);
+		}
+	}
+
+	// documents that haven't been refreshed since this belong to a node that has gone away
+	private Date staleBefore() {
+		return new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(nodeTimeoutSeconds));
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#getNodeId()
+	 */
+	@Override
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#claimTest(java.lang.String, java.util.Map)
+	 */
+	@Override
+	public void claimTest(String testId, Map<String, String> owner) {
+		DBObject document = BasicDBObjectBuilder.start()
+			.add("_id", testId)
+			.add("node", nodeId)
+			.add("nodeUrl", nodeUrl)
+			.add("owner", owner)
+			.add(UPDATED_FIELD, new Date())
+			.get();
+
+		mongoTemplate.getCollection(COLLECTION).save(document);
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#claimUnownedTest(java.lang.String, java.util.Map)
+	 */
+	@Override
+	public boolean claimUnownedTest(String testId, Map<String, String> owner) {
+		// take the document over if it's ours already or its node has gone away; if it doesn't match either, the
+		// upsert tries to insert a second document with the same _id, which the database refuses
+		DBObject query = BasicDBObjectBuilder.start()
+			.add("_id", testId)
+			.add("$or", Arrays.asList(
+				new BasicDBObject("node", nodeId),
+				new BasicDBObject(UPDATED_FIELD, new BasicDBObject("$lt", staleBefore()))))
+			.get();
+
+		DBObject update = new BasicDBObject("$set", BasicDBObjectBuilder.start()
+			.add("node", nodeId)
+			.add("nodeUrl", nodeUrl)
+			.add("owner", owner)
+			.add(UPDATED_FIELD, new Date())
+			.get());
+
+		try {
+			mongoTemplate.getCollection(COLLECTION).update(query, update, true, false);
+			return true;
+		} catch (DuplicateKeyException e) {
+			// another node is running it
+			return false;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#claimAlias(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public void claimAlias(String alias, String testId) {
+		// take the alias away from whichever test had it, wherever it's running
+		mongoTemplate.getCollection(COLLECTION).updateMulti(
+			BasicDBObjectBuilder.start()
+				.add("alias", alias)
+				.add("_id", new BasicDBObject("$ne", testId))
+				.get(),
+			new BasicDBObject("$unset", new BasicDBObject("alias", "")));
+
+		mongoTemplate.getCollection(COLLECTION).update(
+			new BasicDBObject("_id", testId),
+			new BasicDBObject("$set", BasicDBObjectBuilder.start()
+				.add("alias", alias)
+				.add(UPDATED_FIELD, new Date())
+				.get()));
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#releaseTest(java.lang.String)
+	 */
+	@Override
+	public void releaseTest(String testId) {
+		mongoTemplate.getCollection(COLLECTION).remove(BasicDBObjectBuilder.start()
+			.add("_id", testId)
+			.add("node", nodeId)
+			.get());
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#releaseAllTests()
+	 */
+	@Override
+	public void releaseAllTests() {
+		mongoTemplate.getCollection(COLLECTION).remove(new BasicDBObject("node", nodeId));
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#getTestIdForAlias(java.lang.String)
+	 */
+	@Override
+	public String getTestIdForAlias(String alias) {
+		// there should only ever be one, but if two nodes claimed it at once, the newest wins
+		DBCursor cursor = mongoTemplate.getCollection(COLLECTION)
+			.find(BasicDBObjectBuilder.start()
+				.add("alias", alias)
+				.add(UPDATED_FIELD, new BasicDBObject("$gte", staleBefore()))
+				.get(), new BasicDBObject("_id", 1))
+			.sort(new BasicDBObject(UPDATED_FIELD, -1))
+			.limit(1);
+		try {
+			return cursor.hasNext() ? (String) cursor.next().get("_id") : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#getNodeUrlForTest(java.lang.String)
+	 */
+	@Override
+	public String getNodeUrlForTest(String testId) {
+		DBObject document = mongoTemplate.getCollection(COLLECTION).findOne(new BasicDBObject("_id", testId));
+
+		if (document == null || nodeId.equals(document.get("node"))) {
+			return null;
+		}
+
+		Date updated = (Date) document.get(UPDATED_FIELD);
+		if (updated == null || updated.before(staleBefore())) {
+			// its node has stopped sending heartbeats, so there's nothing there to forward to
+			return null;
+		}
+
+		return (String) document.get("nodeUrl");
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestOwnershipService#isTestOwnedByLiveNode(java.lang.String)
+	 */
+	@Override
+	public boolean isTestOwnedByLiveNode(String testId) {
+		DBObject document = mongoTemplate.getCollection(COLLECTION).findOne(new BasicDBObject("_id", testId));
+
+		if (document == null) {
+			return false;
+		}
+
+		if (nodeId.equals(document.get("node"))) {
+			// our own records aren't refreshed unless we're part of a cluster, but we know we're alive
+			return true;
+		}
+
+		Date updated = (Date) document.get(UPDATED_FIELD);
+		return updated != null && !updated.before(staleBefore());
+	}
+
+}
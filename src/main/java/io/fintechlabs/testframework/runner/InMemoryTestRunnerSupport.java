@@ -16,38 +16,80 @@ package io.fintechlabs.testframework.runner;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import io.fintechlabs.testframework.info.PlaceholderTracker;
 import io.fintechlabs.testframework.security.AuthenticationFacade;
 import io.fintechlabs.testframework.testmodule.TestModule;
 import io.fintechlabs.testframework.testmodule.TestModule.Status;
 
 /**
+ * Keeps track of running tests in memory. All lookups are served from concurrent maps, indexed by test ID,
+ * by alias and by owner. Finished tests are expired by a background sweeper rather than on every lookup.
+ *
  * @author jricher
  *
  */
 public class InMemoryTestRunnerSupport implements TestRunnerSupport {
 
+	private static Logger logger = LoggerFactory.getLogger(InMemoryTestRunnerSupport.class);
+
 	private Duration closedTestTimeout = Duration.ofMinutes(15);
 
+	private Duration sweepInterval = Duration.ofMinutes(1);
+
 	@Autowired
 	private AuthenticationFacade authenticationFacade;
 
+	@Autowired
+	private PlaceholderTracker placeholderTracker;
+
 	// collection of all currently running tests
-	private Map<String, TestModule> runningTests = new LinkedHashMap<>();
+	private Map<String, TestModule> runningTests = new ConcurrentHashMap<>();
 
 	// collection of aliases assigned to tests
-	private Map<String, String> aliases = new HashMap<>();
+	private Map<String, String> aliases = new ConcurrentHashMap<>();
+
+	// IDs of the running tests, indexed by the owner of the test
+	private Map<Map<String, String>, Set<String>> testsByOwner = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService sweeper;
+
+	@PostConstruct
+	public void startSweeper() {
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("test-expiry-sweeper")
+			.setDaemon(true)
+			.build());
+		sweeper.scheduleWithFixedDelay(this::expireOldTests, sweepInterval.toMillis(), sweepInterval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stopSweeper() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+		}
+	}
 
 	/* (non-Javadoc)
 	 * @see io.fintechlabs.testframework.runner.TestRunnerSupport#addRunningTest(java.lang.String, io.fintechlabs.testframework.testmodule.TestModule)
@@ -55,6 +97,23 @@ public class InMemoryTestRunnerSupport implements TestRunnerSupport {
 	@Override
 	public void addRunningTest(String id, TestModule test) {
 		runningTests.put(id, test);
+		if (test.getOwner() != null) {
+			// compute is atomic for the key, so this can't race with the owner's last test being removed
+			testsByOwner.compute(test.getOwner(), (owner, ids) -> {
+				Set<String> updated = (ids == null) ? ConcurrentHashMap.newKeySet() : ids;
+				updated.add(id);
+				return updated;
+			});
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.runner.TestRunnerSupport#claimTestForRestore(java.lang.String, java.util.Map)
+	 */
+	@Override
+	public boolean claimTestForRestore(String testId, Map<String, String> owner) {
+		// there's only this node
+		return true;
 	}
 
 	/* (non-Javadoc)
@@ -70,8 +129,11 @@ public class InMemoryTestRunnerSupport implements TestRunnerSupport {
 	 */
 	@Override
 	public TestModule getRunningTestByAlias(String alias) {
-		expireOldTests();
-		return getRunningTestById(getTestIdForAlias(alias));
+		String testId = getTestIdForAlias(alias);
+		if (testId == null) {
+			return null;
+		}
+		return getRunningTestById(testId);
 	}
 
 	/* (non-Javadoc)
@@ -87,14 +149,13 @@ public class InMemoryTestRunnerSupport implements TestRunnerSupport {
 	 */
 	@Override
 	public TestModule getRunningTestById(String testId) {
-		expireOldTests();
+		TestModule test = runningTests.get(testId);
 
 		if (authenticationFacade.getPrincipal() == null || 	// if the user's not logged in at all (it's a back-channel or Selenium call)
 			authenticationFacade.isAdmin()) { 				// of if they're admin
-			return runningTests.get(testId); 				// just send the results
+			return test; 									// just send the results
 		} else {
-			TestModule test = runningTests.get(testId);		// otherwise make sure only the current user can get the test information
-			if (test != null &&
+			if (test != null &&								// otherwise make sure only the current user can get the test information
 				test.getOwner().equals(authenticationFacade.getPrincipal())) {
 				return test;
 			}
@@ -107,24 +168,24 @@ public class InMemoryTestRunnerSupport implements TestRunnerSupport {
 	 */
 	@Override
 	public Set<String> getAllRunningTestIds() {
-		expireOldTests();
-
 		if (authenticationFacade.getPrincipal() == null || 	// if the user's not logged in at all (it's a back-channel or Selenium call)
 			authenticationFacade.isAdmin()) { 				// of if they're admin
-			return runningTests.entrySet().stream()
-				.sorted((e1, e2) -> e2.getValue().getCreated().compareTo(e1.getValue().getCreated())) // this sorts to newest-first
-				.map(e -> e.getValue().getId())
-				.collect(Collectors.toCollection(() -> new LinkedHashSet<>()));
+			return sortNewestFirst(runningTests.keySet());
 		} else {
 			ImmutableMap<String, String> owner = authenticationFacade.getPrincipal();
-			return runningTests.entrySet().stream()
-				.filter(map -> map.getValue().getOwner().equals(owner))
-				.sorted((e1, e2) -> e2.getValue().getCreated().compareTo(e1.getValue().getCreated())) // this sorts to newest-first
-				.map(e -> e.getValue().getId())
-				.collect(Collectors.toCollection(() -> new LinkedHashSet<>()));
+			return sortNewestFirst(testsByOwner.getOrDefault(owner, Collections.emptySet()));
 		}
 	}
 
+	private Set<String> sortNewestFirst(Collection<String> testIds) {
+		return testIds.stream()
+			.map(runningTests::get)
+			.filter(Objects::nonNull) // the test might have been removed while we were looking
+			.sorted((t1, t2) -> t2.getCreated().compareTo(t1.getCreated())) // this sorts to newest-first
+			.map(TestModule::getId)
+			.collect(Collectors.toCollection(() -> new LinkedHashSet<>()));
+	}
+
 	/* (non-Javadoc)
 	 * @see io.fintechlabs.testframework.runner.TestRunnerSupport#getTestIdForAlias(java.lang.String)
 	 */
@@ -138,7 +199,6 @@ public class InMemoryTestRunnerSupport implements TestRunnerSupport {
 	 */
 	@Override
 	public boolean hasTestId(String testId) {
-		expireOldTests();
 		return runningTests.containsKey(testId);
 	}
 
@@ -147,19 +207,42 @@ public class InMemoryTestRunnerSupport implements TestRunnerSupport {
 	 */
 	@Override
 	public void removeRunningTest(String testId) {
-		runningTests.remove(testId);
+		TestModule test = runningTests.remove(testId);
+
+		if (test != null && test.getOwner() != null) {
+			testsByOwner.computeIfPresent(test.getOwner(), (owner, ids) -> {
+				ids.remove(testId);
+				return ids.isEmpty() ? null : ids; // drop the owner once they have no tests left
+			});
+		}
+
+		// drop any aliases still pointing at this test, a newer test may have taken the alias over already
+		aliases.values().removeIf(testId::equals);
+
+		placeholderTracker.removeTest(testId);
 	}
 
-	private void expireOldTests() {
-		for (Map.Entry<String, TestModule> entry : new HashSet<>(runningTests.entrySet())) {
-			// if the test has been finished or interrupted, we check to see if it's timed out yet
-			if ((entry.getValue().getStatus().equals(Status.FINISHED)
-				|| entry.getValue().getStatus().equals(Status.INTERRUPTED))
-					&& entry.getValue().getStatusUpdated().plus(getClosedTestTimeout()).isBefore(Instant.now())) {
+	/**
+	 * Remove tests that have been finished or interrupted for longer than the closed test timeout.
+	 * This is called periodically by the sweeper.
+	 */
+	protected void expireOldTests() {
+		try {
+			Instant cutoff = Instant.now().minus(getClosedTestTimeout());
 
-				removeRunningTest(entry.getKey());
+			for (TestModule test : runningTests.values()) {
+				// if the test has been finished or interrupted, we check to see if it's timed out yet
+				if ((test.getStatus().equals(Status.FINISHED)
+					|| test.getStatus().equals(Status.INTERRUPTED))
+						&& test.getStatusUpdated().isBefore(cutoff)) {
 
+					removeRunningTest(test.getId());
+
+				}
 			}
+		} catch (Exception e) {
+			// don't let an exception stop the sweeper from being scheduled again
+			logger.error("Error while expiring old tests", e);
 		}
 	}
 
@@ -178,4 +261,19 @@ public class InMemoryTestRunnerSupport implements TestRunnerSupport {
 		this.closedTestTimeout = closedTestTimeout;
 	}
 
+	/**
+	 * @return how often finished tests are checked for expiry
+	 */
+	public Duration getSweepInterval() {
+		return sweepInterval;
+	}
+
+	/**
+	 * @param sweepInterval
+	 *            how often finished tests are checked for expiry; only takes effect before the sweeper is started
+	 */
+	public void setSweepInterval(Duration sweepInterval) {
+		this.sweepInterval = sweepInterval;
+	}
+
 }
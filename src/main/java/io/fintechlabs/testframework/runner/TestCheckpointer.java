@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import io.fintechlabs.testframework.testmodule.Environment;
+
+/**
+ * Saves the state of running tests to the database whenever they start waiting for something from outside, so that
+ * a test can be brought back on any node if the node it was running on is restarted or goes away.
+ *
+ * A checkpoint is the test's lifecycle state, as written by the test module, along with its environment. The
+ * environment is a snapshot taken by the module as it starts waiting, so writing it out and compressing it happens
+ * on a background thread instead of holding up the test. Checkpoints are written and discarded in the order they're
+ * asked for, so a finished test's checkpoint can't be written after it's been discarded.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class TestCheckpointer {
+
+	public static final String COLLECTION = "TEST_CHECKPOINT";
+
+	// the field the checkpoints expire on
+	public static final String UPDATED_FIELD = "updated";
+
+	private static final Logger logger = LoggerFactory.getLogger(TestCheckpointer.class);
+
+	@Value("${fintechlabs.checkpoint.enabled:true}")
+	private boolean enabled;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	private ExecutorService writer;
+
+	private AtomicLong saved = new AtomicLong();
+	private AtomicLong savedBytes = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong loaded = new AtomicLong();
+
+	@PostConstruct
+	public void start() {
+		writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("test-checkpoint-%d")
+			.setDaemon(true)
+			.build());
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		// let the last checkpoints get written, as we're probably being shut down to be replaced
+		writer.shutdown();
+		if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+			logger.warn("Gave up waiting for checkpoints to be written");
+			writer.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return true if tests should be checkpointed
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Save a checkpoint of a test, in the background.
+	 *
+	 * @param testId the test
+	 * @param state the test's lifecycle state, which must include "testName"
+	 * @param env a snapshot of the test's environment, which nothing else will use
+	 */
+	public void save(String testId, JsonObject state, Environment env) {
+		if (!enabled) {
+			return;
+		}
+
+		try {
+			writer.execute(() -> write(testId, state, env));
+		} catch (RejectedExecutionException e) {
+			// we're shutting down
+			failed.incrementAndGet();
+			logger.warn("Couldn't checkpoint test " + testId + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Remove a test's checkpoint, in the background, once it can no longer be needed.
+	 */
+	public void discard(String testId) {
+		if (!enabled) {
+			return;
+		}
+
+		try {
+			writer.execute(() -> {
+				try {
+					mongoTemplate.getCollection(COLLECTION).remove(new BasicDBObject("_id", testId));
+				} catch (MongoException e) {
+					// it'll expire eventually
+					logger.error("Couldn't discard checkpoint of test " + testId, e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("Couldn't discard checkpoint of test " + testId + ": " + e.getMessage());
+		}
+	}
+
+	private void write(String testId, JsonObject state, Environment env) {
+		try {
+			state.add("env", env.toJson());
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+				out.write(state.toString());
+			}
+
+			DBObject document = BasicDBObjectBuilder.start()
+				.add("_id", testId)
+				.add("testName", state.get("testName").getAsString())
+				.add("status", state.has("status") ? state.get("status").getAsString() : null)
+				.add("data", bytes.toByteArray())
+				.add(UPDATED_FIELD, new Date())
+				.get();
+			if (state.has("alias")) {
+				// only set when there is one, so that the alias index only covers these
+				document.put("alias", state.get("alias").getAsString());
+			}
+
+			mongoTemplate.getCollection(COLLECTION).save(document);
+
+			saved.incrementAndGet();
+			savedBytes.addAndGet(bytes.size());
+
+		} catch (IOException | RuntimeException e) {
+			// the test carries on, it just can't be restored to this point
+			failed.incrementAndGet();
+			logger.error("Couldn't checkpoint test " + testId, e);
+		}
+	}
+
+	/**
+	 * Load the latest checkpoint of a test.
+	 *
+	 * @return the checkpoint, as saved with its environment under "env", or null if there isn't one
+	 */
+	public JsonObject load(String testId) {
+		if (!enabled) {
+			return null;
+		}
+
+		DBObject document = mongoTemplate.getCollection(COLLECTION).findOne(new BasicDBObject("_id", testId));
+		if (document == null) {
+			return null;
+		}
+
+		try (Reader in = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream((byte[]) document.get("data"))), StandardCharsets.UTF_8)) {
+			JsonObject checkpoint = new JsonParser().parse(in).getAsJsonObject();
+			loaded.incrementAndGet();
+			return checkpoint;
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			logger.error("Couldn't read checkpoint of test " + testId, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the ID of the most recently checkpointed test with the alias, or null if there isn't one
+	 */
+	public String getTestIdForAlias(String alias) {
+		if (!enabled) {
+			return null;
+		}
+
+		DBCursor cursor = mongoTemplate.getCollection(COLLECTION)
+			.find(new BasicDBObject("alias", alias), new BasicDBObject("_id", 1))
+			.sort(new BasicDBObject(UPDATED_FIELD, -1))
+			.limit(1);
+		try {
+			return cursor.hasNext() ? (String) cursor.next().get("_id") : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return a snapshot of the checkpointer's counters, suitable for returning from an API
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("enabled", enabled);
+		stats.put("saved", saved.get());
+		stats.put("savedBytes", savedBytes.get());
+		stats.put("failed", failed.get());
+		stats.put("loaded", loaded.get());
+		return stats;
+	}
+
+}
@@ -14,8 +14,10 @@
 
 package io.fintechlabs.testframework.runner;
 
-import java.lang.reflect.Method;
-import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -24,33 +26,31 @@ import javax.servlet.http.HttpSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
-import org.springframework.util.AntPathMatcher;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.servlet.HandlerMapping;
 import org.springframework.web.servlet.view.RedirectView;
 
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 import io.fintechlabs.testframework.condition.Condition.ConditionResult;
 import io.fintechlabs.testframework.condition.ConditionError;
 import io.fintechlabs.testframework.logging.EventLog;
-import io.fintechlabs.testframework.testmodule.AbstractTestModule;
+import io.fintechlabs.testframework.logging.TimingStatistics;
 import io.fintechlabs.testframework.testmodule.DataUtils;
 import io.fintechlabs.testframework.testmodule.TestFailureException;
 import io.fintechlabs.testframework.testmodule.TestModule;
-import io.fintechlabs.testframework.testmodule.UserFacing;
 
 /**
  * @author jricher
@@ -64,12 +64,24 @@ public class TestDispatcher implements DataUtils {
 	public static final String TEST_PATH = "/test/"; // path for incoming test requests
 	public static final String TEST_MTLS_PATH = "/test-mtls/"; // path for incoming MTLS requests
 
+	@Value("${fintechlabs.dispatch.timeout_seconds:300}")
+	private long timeoutSeconds;
+
 	@Autowired
 	private TestRunnerSupport support;
 
 	@Autowired
 	private EventLog eventLog;
 
+	@Autowired
+	private TestRegistry registry;
+
+	@Autowired
+	private TestRequestForwarder forwarder;
+
+	@Autowired
+	private TestRunner testRunner;
+
 	/**
 	 * Dispatch a request to a running test. This came in on the /test/ URL either as /test/test-id-string or /test/a/test-alias.
 	 * This requests may or may not be user-facing so we don't assume anything about the response.
@@ -91,30 +103,39 @@ public class TestDispatcher implements DataUtils {
 
 		String path = (String) req.getAttribute(
 			HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
-		String bestMatchPattern = (String) req.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
 
-		AntPathMatcher apm = new AntPathMatcher();
-		String finalPath = apm.extractPathWithinPattern(bestMatchPattern, path);
+		Route route = Route.parse(path);
+		if (route == null) {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
 
-		Iterator<String> pathParts = Splitter.on("/").split(finalPath).iterator();
+		String testId = route.testId; // used to route to the right test
+		if (route.alias != null) {
+			// it's an aliased test, look it up
+			testId = support.getTestIdForAlias(route.alias);
+		}
 
-		String testId = pathParts.next(); // used to route to the right test
+		TestModule test = testId != null ? support.getRunningTestById(testId) : null;
+		if (test == null) {
+			// it might be running on another node
+			ResponseEntity<byte[]> forwarded = testId != null ? forwarder.forward(testId, req, body, contentType) : null;
+			if (forwarded != null) {
+				return forwarded;
+			}
 
-		if (testId.equals("a")) {
-			// it's an aliased test, look it up
-			String alias = pathParts.next();
-			if (!support.hasAlias(alias)) {
+			// or it might have been running on a node that's gone, and have a checkpoint we can pick it up from
+			test = testRunner.restoreTest(testId, route.alias);
+			if (test == null) {
+				// another node may have restored it just before us
+				forwarded = testId != null ? forwarder.forward(testId, req, body, contentType) : null;
+				if (forwarded != null) {
+					return forwarded;
+				}
 				return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 			}
-			testId = support.getTestIdForAlias(alias);
-		}
-
-		if (!support.hasTestId(testId)) {
-			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
 
-		// wrap up all the rest of the path as a string again, stripping off the initial bits
-		String restOfPath = Joiner.on("/").join(pathParts);
+		String restOfPath = route.restOfPath;
 
 		// convert the parameters and headers into a JSON object to make it easier for the test modules to ingest
 		JsonObject requestParts = new JsonObject();
@@ -135,21 +156,133 @@ public class TestDispatcher implements DataUtils {
 			}
 		}
 
-		TestModule test = support.getRunningTestById(testId);
-		if (test != null) {
+		logIncomingHttpRequest(test, restOfPath, requestParts);
+
+		if (test.isReadOnlyPath(restOfPath)) {
+			// this doesn't change the test, and the test may be in the middle of a call that's waiting on it, so it
+			// can't wait its turn in the mailbox; answer it straight away on this thread instead
+			long start = System.nanoTime();
 			Object response;
-			logIncomingHttpRequest(test, restOfPath, requestParts);
-			if (path.startsWith(TEST_PATH)) {
-				response = test.handleHttp(restOfPath, req, res, session, requestParts);
-			} else if (path.startsWith(TEST_MTLS_PATH)) {
+			if (route.mtls) {
 				response = test.handleHttpMtls(restOfPath, req, res, session, requestParts);
 			} else {
-				throw new TestFailureException(test.getId(), "Failure to route to path " + path);
+				response = test.handleHttp(restOfPath, req, res, session, requestParts);
 			}
+			TimingStatistics.record(TimingStatistics.DISPATCH, test.getName(), System.nanoTime() - start);
 			logOutgoingHttpResponse(test, restOfPath, response);
 			return response;
-		} else {
-			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+
+		// the test handles the request through its mailbox, in turn with anything else it's doing; the container
+		// thread is let go in the meantime, and the response is sent once the test has come up with it
+		TestModule target = test;
+		DeferredResult<Object> result = new DeferredResult<>(TimeUnit.SECONDS.toMillis(timeoutSeconds), new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE));
+		long start = System.nanoTime();
+		CompletableFuture<Object> handled;
+		try {
+			// the request can time out before the test gets to it, after which the container recycles its request,
+			// response and session; so they're not handed to the test here, and it works from requestParts alone
+			handled = target.getTestExecutionManager().post(() -> {
+				if (route.mtls) {
+					return target.handleHttpMtls(restOfPath, null, null, null, requestParts);
+				} else {
+					return target.handleHttp(restOfPath, null, null, null, requestParts);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("Couldn't hand request to test " + target.getId() + ": " + e.getMessage());
+			return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+		}
+		// nobody is waiting for the answer any more, so don't let the test act on the request if it hasn't yet
+		result.onTimeout(() -> handled.cancel(false));
+		handled.whenComplete((response, error) -> {
+			if (error instanceof CancellationException) {
+				// the request timed out and has already been answered
+				return;
+			}
+			// this includes any time spent waiting for the test to get to the request
+			TimingStatistics.record(TimingStatistics.DISPATCH, target.getName(), System.nanoTime() - start);
+			if (error != null) {
+				// this goes to the exception handlers below, as if the handler had thrown it here
+				result.setErrorResult(error);
+			} else {
+				logOutgoingHttpResponse(target, restOfPath, response);
+				result.setResult(response);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Where an incoming request is going, worked out from its path in a single pass: /test/{id}/{rest} or
+	 * /test/a/{alias}/{rest}, or the same under /test-mtls/. Empty path segments are skipped.
+	 */
+	static class Route {
+		final boolean mtls;
+		final String testId; // null if the test is aliased
+		final String alias;
+		final String restOfPath;
+
+		private Route(boolean mtls, String testId, String alias, String restOfPath) {
+			this.mtls = mtls;
+			this.testId = testId;
+			this.alias = alias;
+			this.restOfPath = restOfPath;
+		}
+
+		/**
+		 * @return the route, or null if the path doesn't name a test
+		 */
+		static Route parse(String path) {
+			boolean mtls;
+			int pos;
+			if (path.startsWith(TEST_PATH)) {
+				mtls = false;
+				pos = TEST_PATH.length();
+			} else if (path.startsWith(TEST_MTLS_PATH)) {
+				mtls = true;
+				pos = TEST_MTLS_PATH.length();
+			} else {
+				return null;
+			}
+
+			String testId = null;
+			String alias = null;
+			boolean aliased = false;
+			StringBuilder rest = new StringBuilder();
+
+			int length = path.length();
+			while (pos < length) {
+				int end = path.indexOf('/', pos);
+				if (end < 0) {
+					end = length;
+				}
+
+				if (end > pos) {
+					if (testId == null && !aliased) {
+						if (end - pos == 1 && path.charAt(pos) == 'a') {
+							aliased = true;
+						} else {
+							testId = path.substring(pos, end);
+						}
+					} else if (aliased && alias == null) {
+						alias = path.substring(pos, end);
+					} else {
+						if (rest.length() > 0) {
+							rest.append('/');
+						}
+						rest.append(path, pos, end);
+					}
+				}
+
+				pos = end + 1;
+			}
+
+			if (testId == null && alias == null) {
+				return null;
+			}
+
+			return new Route(mtls, testId, alias, rest.toString());
 		}
 	}
 
@@ -192,39 +325,42 @@ public class TestDispatcher implements DataUtils {
 			TestModule test = support.getRunningTestById(error.getTestId());
 			if (test != null) {
 				logger.error("Caught an error while running the test, stopping the test: " + error.getMessage());
-				if (!(error.getCause() != null && error.getCause().getClass().equals(ConditionError.class))) {
-					// if the root error isn't a ConditionError, set this so the UI can display the underlying error in detail
-					// ConditionError will get handled by the logging system, no need to display with stacktrace
-					test.setFinalError(error);
-					eventLog.log(test.getId(), "TEST-DISPATCHER", test.getOwner(), ex(error,
-						args(
-							"result", ConditionResult.FAILURE,
-							"msg", error.getCause() != null ? error.getCause().getMessage() : error.getMessage())
-						));
-				}
+				// through the mailbox, so that the test isn't stopped in the middle of something else
+				test.getTestExecutionManager().post(() -> {
+					if (!(error.getCause() != null && error.getCause().getClass().equals(ConditionError.class))) {
+						// if the root error isn't a ConditionError, set this so the UI can display the underlying error in detail
+						// ConditionError will get handled by the logging system, no need to display with stacktrace
+						test.setFinalError(error);
+						eventLog.log(test.getId(), "TEST-DISPATCHER", test.getOwner(), ex(error,
+							args(
+								"result", ConditionResult.FAILURE,
+								"msg", error.getCause() != null ? error.getCause().getMessage() : error.getMessage())
+							));
+					}
 
-				test.fireTestFailure();
-				test.stop();
+					test.fireTestFailure();
+					test.stop();
+					return "failed";
+				}).whenComplete((result, e) -> {
+					if (e != null && !(e instanceof CancellationException)) {
+						logger.error("Error while stopping test " + test.getId(), e);
+					}
+				});
 			}
 
-			for (StackTraceElement ste : error.getCause().getStackTrace()) {
-				// look for the user-facing annotation in the stack
-				Class<?> clz = Class.forName(ste.getClassName());
-
-				if (clz.equals(getClass())) {
-					// stop if we hit the dispatcher, no need to go further up the stack
-					break;
-				}
-
-				// check only the TestModule classes
-				if (!clz.equals(AbstractTestModule.class) && TestModule.class.isAssignableFrom(clz)) {
-					for (Method m : clz.getDeclaredMethods()) {
-						if (m.getName().equals(ste.getMethodName()) && m.isAnnotationPresent(UserFacing.class)) {
-							// if this is user-facing, return a user-facing view
-							//return new ModelAndView("testError", ImmutableMap.of("error", error));
-							return new RedirectView("/log-detail.html?log=" + error.getTestId());
-						}
+			if (error.getCause() != null) {
+				for (StackTraceElement ste : error.getCause().getStackTrace()) {
+					// look for the user-facing annotation in the stack
+					if (ste.getClassName().equals(TestDispatcher.class.getName())) {
+						// stop if we hit the dispatcher, no need to go further up the stack
+						break;
+					}
 
+					// the registry only knows about methods in the TestModule classes
+					if (registry.isUserFacing(ste.getClassName(), ste.getMethodName())) {
+						// if this is user-facing, return a user-facing view
+						//return new ModelAndView("testError", ImmutableMap.of("error", error));
+						return new RedirectView("/log-detail.html?log=" + error.getTestId());
 					}
 				}
 			}
@@ -14,11 +14,19 @@
 
 package io.fintechlabs.testframework.runner;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.springframework.security.core.Authentication;
 
@@ -26,18 +34,30 @@ import io.fintechlabs.testframework.security.AuthenticationFacade;
 import io.fintechlabs.testframework.testmodule.TestFailureException;
 
 /**
+ * Runs the work of a single test instance on the shared TestTaskExecutor.
+ *
+ * Work that drives the test forward -- handling incoming requests, and the background steps that carry on from them
+ * -- is posted to the test's mailbox. The mailbox runs one item at a time, in the order they were posted, so the test
+ * never has two of these going at once, and nobody has to block a thread waiting for their turn: whoever posts the
+ * work gets a future for it instead. Work that has to happen alongside the test, such as driving a browser, is run
+ * in the background directly.
+ *
+ * Nothing should hold a thread just to wait. A test that's waiting for something registers a callback that posts to
+ * its mailbox when the thing happens, and uses schedule() for a timer to give up or check again, so that a waiting
+ * test costs no thread at all.
+ *
  * @author jricher
  *
  */
 public class TestExecutionManager {
 
 
-	private class BackgroundTask implements Callable {
+	private class BackgroundTask implements Callable<Object> {
 		private String testId;
-		private Callable myCallable;
+		private Callable<?> myCallable;
 		private Authentication savedAuthentication;
 
-		public BackgroundTask(String testId, Callable callable) {
+		public BackgroundTask(String testId, Callable<?> callable) {
 			this.testId = testId;
 			this.myCallable = callable;
 			// save the authentication context for use when we run it later
@@ -60,17 +80,57 @@ public class TestExecutionManager {
 		}
 	}
 
+	/**
+	 * An item of work in the mailbox.
+	 */
+	private class Message<T> {
+		private Callable<T> myCallable;
+		private Authentication savedAuthentication;
+		private CompletableFuture<T> result = new CompletableFuture<>();
+
+		public Message(Callable<T> callable) {
+			this.myCallable = callable;
+			// save the authentication context for use when we run it later
+			savedAuthentication = authenticationFacade.getContextAuthentication();
+		}
+
+		public void run() {
+			if (result.isDone()) {
+				// it was cancelled while it was waiting
+				return;
+			}
+			// restore the authentication context that was in place when this was posted
+			authenticationFacade.setLocalAuthentication(savedAuthentication);
+			try {
+				result.complete(myCallable.call());
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			} catch (Error e) {
+				result.completeExceptionally(e);
+				throw e;
+			}
+		}
+	}
+
 	private String testId;
 
-	private List<Future> futures = new ArrayList<>();
+	private Map<String, String> owner;
+
+	// tasks that haven't finished yet; they remove themselves when they're done
+	private Set<Future<?>> futures = ConcurrentHashMap.newKeySet();
+
+	// work waiting its turn, and whether there's a task running it; see post()
+	private Queue<Message<?>> mailbox = new ConcurrentLinkedQueue<>();
+	private AtomicBoolean draining = new AtomicBoolean();
 
-	private ExecutorCompletionService executorCompletionService;
+	private TestTaskExecutor executor;
 
 	private AuthenticationFacade authenticationFacade;
 
-	public TestExecutionManager(String testId, ExecutorCompletionService executorCompletionService, AuthenticationFacade authenticationFacade) {
+	public TestExecutionManager(String testId, Map<String, String> owner, TestTaskExecutor executor, AuthenticationFacade authenticationFacade) {
 		this.testId = testId;
-		this.executorCompletionService = executorCompletionService;
+		this.owner = owner;
+		this.executor = executor;
 		this.authenticationFacade = authenticationFacade;
 	}
 
@@ -82,16 +142,124 @@ public class TestExecutionManager {
 	}
 
 	/**
-	 * @return the futures
+	 * @return the background tasks and mailbox items for this test that haven't finished yet
 	 */
-	public List<Future> getFutures() {
+	public Set<Future<?>> getFutures() {
 		return futures;
 	}
 
-	@SuppressWarnings("unchecked")
-	public void runInBackground(Callable callable) {
-		futures.add(executorCompletionService.submit(new BackgroundTask(testId, callable)));
+	/**
+	 * Run a task in the background on the shared test executor.
+	 *
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor is too busy to take the task
+	 */
+	public void runInBackground(Callable<?> callable) {
+		Future<?> future = executor.submit(testId, owner, new BackgroundTask(testId, callable), futures::remove);
+		futures.add(future);
+		if (future.isDone()) {
+			// it may have finished before we could add it
+			futures.remove(future);
+		}
 	}
 
+	/**
+	 * Post some work to the test's mailbox, to be run on the shared test executor once everything posted before it
+	 * has finished.
+	 *
+	 * @return a future for the result of the work, completed with whatever the work returned or threw
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor is shutting down
+	 */
+	public <T> CompletableFuture<T> post(Callable<T> callable) {
+		Message<T> message = new Message<>(callable);
+		futures.add(message.result);
+		message.result.whenComplete((result, error) -> futures.remove(message.result));
+
+		mailbox.add(message);
+		scheduleMailbox();
+
+		return message.result;
+	}
+
+	/**
+	 * Start a timer for the test. The returned future is completed when the delay is up, on the executor's scheduler
+	 * thread, so anything chained on to it should only post work to the mailbox. It can also be completed early by
+	 * whoever is waiting on it, which stops the timer. It's cancelled along with the test's other work.
+	 *
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor is shutting down
+	 */
+	public CompletableFuture<Void> schedule(long delay, TimeUnit unit) {
+		CompletableFuture<Void> timer = new CompletableFuture<>();
+		futures.add(timer);
+
+		ScheduledFuture<?> scheduled;
+		try {
+			scheduled = executor.schedule(testId, () -> timer.complete(null), delay, unit);
+		} catch (RejectedExecutionException e) {
+			futures.remove(timer);
+			throw e;
+		}
+
+		timer.whenComplete((result, error) -> {
+			futures.remove(timer);
+			// it may have been completed or cancelled before the delay was up
+			scheduled.cancel(false);
+		});
+
+		return timer;
+	}
+
+	/**
+	 * Run a task in the background through the test's mailbox, after everything posted before it. Failures are
+	 * handled in the same way as for runInBackground.
+	 *
+	 * @throws java.util.concurrent.RejectedExecutionException if the executor is shutting down
+	 */
+	public void runInOrder(Callable<?> callable) {
+		post(new BackgroundTask(testId, callable)).whenComplete((result, error) -> {
+			if (error != null && !(error instanceof CancellationException)) {
+				executor.reportFailure(testId, error);
+			}
+		});
+	}
+
+	/**
+	 * Start a task to run what's in the mailbox, unless there's nothing there or one is already running. Only the
+	 * task that gets the draining flag reads from the mailbox, so there's only ever one item running.
+	 */
+	private void scheduleMailbox() {
+		if (mailbox.isEmpty() || !draining.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			// the task isn't tracked in futures, so cancelling the test's tasks can't leave the mailbox without a reader
+			executor.executeMailbox(testId, this::drainMailbox);
+		} catch (RejectedExecutionException e) {
+			draining.set(false);
+
+			// we're shutting down and nothing's going to run what's waiting now, so let whoever posted it know
+			Message<?> message;
+			while ((message = mailbox.poll()) != null) {
+				message.result.completeExceptionally(e);
+			}
+
+			throw e;
+		}
+	}
+
+	private void drainMailbox() {
+		try {
+			Message<?> message;
+			while ((message = mailbox.poll()) != null) {
+				message.run();
+			}
+		} finally {
+			draining.set(false);
+
+			// something may have been posted after we last looked but before we let go of the flag, and if a message
+			// threw an Error, whatever's left behind it still needs a reader
+			scheduleMailbox();
+		}
+	}
 
 }
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.util.Map;
+
+/**
+ * Records which node of the cluster each running test is on, so that requests for it can be sent there.
+ *
+ * @author jricher
+ *
+ */
+public interface TestOwnershipService {
+
+	/**
+	 * @return the ID of this node
+	 */
+	String getNodeId();
+
+	/**
+	 * Record that a test is running on this node
+	 *
+	 * @param testId
+	 * @param owner
+	 */
+	void claimTest(String testId, Map<String, String> owner);
+
+	/**
+	 * Record that a test is running on this node, but only if no other live node already has it. This is atomic,
+	 * so of several nodes trying to take the same test at once only one succeeds.
+	 *
+	 * @param testId
+	 * @param owner
+	 * @return true if this node now has the test
+	 */
+	boolean claimUnownedTest(String testId, Map<String, String> owner);
+
+	/**
+	 * Point an alias at a test, taking it from any other test that had it
+	 *
+	 * @param alias
+	 * @param testId
+	 */
+	void claimAlias(String alias, String testId);
+
+	/**
+	 * Forget about a test that was running on this node
+	 *
+	 * @param testId
+	 */
+	void releaseTest(String testId);
+
+	/**
+	 * Forget about every test that was running on this node, such as when it has been restarted
+	 */
+	void releaseAllTests();
+
+	/**
+	 * @param alias
+	 * @return the ID of the test with the alias on any node, or null if there isn't one
+	 */
+	String getTestIdForAlias(String alias);
+
+	/**
+	 * @param testId
+	 * @return the base URL of the node the test is running on, or null if it's running on this node or isn't known
+	 */
+	String getNodeUrlForTest(String testId);
+
+	/**
+	 * @param testId
+	 * @return true if the test is running on this node, or on another node that's still sending heartbeats
+	 */
+	boolean isTestOwnedByLiveNode(String testId);
+
+}
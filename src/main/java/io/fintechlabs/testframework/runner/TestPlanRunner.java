@@ -0,0 +1,451 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonObject;
+import com.mongodb.MongoException;
+
+import io.fintechlabs.testframework.info.TestInfoService;
+import io.fintechlabs.testframework.info.TestPlanService;
+import io.fintechlabs.testframework.security.AuthenticationFacade;
+import io.fintechlabs.testframework.testmodule.TestModule;
+import io.fintechlabs.testframework.testmodule.TestModule.Result;
+import io.fintechlabs.testframework.testmodule.TestModule.Status;
+
+/**
+ * Runs all the modules of a test plan on the server, several at a time, instead of leaving it to the caller to
+ * create each module and wait for it to finish before creating the next.
+ *
+ * Modules are created in plan order, as if the plan's owner had created them, until the run's concurrency is
+ * reached. Two modules with the same alias are never run at the same time, as creating the second would stop the
+ * first. If the executor is too busy to take another module, it's tried again later.
+ *
+ * The progress of each run, and a count of its results, is saved to the plan as it changes.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class TestPlanRunner {
+
+	private static final Logger logger = LoggerFactory.getLogger(TestPlanRunner.class);
+
+	@Value("${fintechlabs.plan_runner.concurrency:4}")
+	private int defaultConcurrency;
+
+	@Value("${fintechlabs.plan_runner.max_concurrency:16}")
+	private int maxConcurrency;
+
+	@Value("${fintechlabs.plan_runner.poll_interval_seconds:5}")
+	private long pollIntervalSeconds;
+
+	@Value("${fintechlabs.cluster.node_timeout_seconds:60}")
+	private long nodeTimeoutSeconds;
+
+	@Autowired
+	private TestRunner testRunner;
+
+	@Autowired
+	private TestRunnerSupport support;
+
+	@Autowired
+	private TestPlanService planService;
+
+	@Autowired
+	private TestInfoService testInfoService;
+
+	@Autowired
+	private TestOwnershipService ownershipService;
+
+	@Autowired
+	private AuthenticationFacade authenticationFacade;
+
+	private ScheduledExecutorService scheduler;
+
+	// runs that haven't finished yet, by plan id
+	private ConcurrentMap<String, PlanRun> runs = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	public void start() {
+		// runs are only kept in memory, so any this node didn't finish before it stopped never will, and nor will
+		// those of any other node that's stopped sending heartbeats for its runs
+		try {
+			planService.abandonUnfinishedTestPlanRuns(ownershipService.getNodeId(), staleBefore());
+		} catch (MongoException e) {
+			logger.error("Couldn't mark unfinished plan runs as abandoned", e);
+		}
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("plan-runner-%d")
+			.setDaemon(true)
+			.build());
+
+		scheduler.scheduleWithFixedDelay(this::advanceAll, pollIntervalSeconds, pollIntervalSeconds, TimeUnit.SECONDS);
+		scheduler.scheduleWithFixedDelay(this::abandonStaleRuns, nodeTimeoutSeconds, nodeTimeoutSeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Start running every module of a plan. This needs to be called by the plan's owner, as the modules are created
+	 * on their behalf.
+	 *
+	 * @param planId the plan to run
+	 * @param modules the names of the modules in the plan, in order
+	 * @param concurrency how many modules to run at once, or 0 for the default
+	 * @return the initial status of the run, or null if the plan is already being run
+	 */
+	public Map<String, Object> startPlanRun(String planId, List<String> modules, int concurrency) {
+		if (concurrency <= 0) {
+			concurrency = defaultConcurrency;
+		}
+		concurrency = Math.min(concurrency, maxConcurrency);
+
+		PlanRun run = new PlanRun(planId, ownershipService.getNodeId(), concurrency, authenticationFacade.getContextAuthentication());
+		for (String module : modules) {
+			JsonObject config = planService.getModuleConfig(planId, module);
+			String alias = null;
+			if (config != null && config.has("alias") && config.get("alias").isJsonPrimitive()) {
+				alias = Strings.emptyToNull(config.get("alias").getAsString());
+			}
+			run.modules.add(new ModuleRun(module, alias));
+		}
+
+		if (runs.putIfAbsent(planId, run) != null) {
+			return null;
+		}
+
+		logger.info("Running " + modules.size() + " modules of plan " + planId + ", " + concurrency + " at a time");
+
+		// get the first modules going straight away
+		scheduler.execute(() -> advance(run));
+
+		return run.getStatus();
+	}
+
+	/**
+	 * @return the status of the plan's run, or null if it isn't being run
+	 */
+	public Map<String, Object> getPlanRunStatus(String planId) {
+		PlanRun run = runs.get(planId);
+		return run != null ? run.getStatus() : null;
+	}
+
+	/**
+	 * Stop a plan's run: modules that haven't been started won't be, and those that are running are stopped.
+	 *
+	 * @return false if the plan isn't being run
+	 */
+	public boolean cancelPlanRun(String planId) {
+		PlanRun run = runs.get(planId);
+		if (run == null) {
+			return false;
+		}
+
+		run.cancelled = true;
+		scheduler.execute(() -> advance(run));
+		return true;
+	}
+
+	/**
+	 * @return a snapshot of the runner's state, suitable for returning from an API
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("runs", runs.size());
+		stats.put("defaultConcurrency", defaultConcurrency);
+		stats.put("maxConcurrency", maxConcurrency);
+		return stats;
+	}
+
+	private void advanceAll() {
+		for (PlanRun run : runs.values()) {
+			advance(run);
+		}
+
+		if (!runs.isEmpty()) {
+			// the heartbeat for our runs, so that other nodes can tell we're still working on them
+			try {
+				planService.refreshTestPlanRuns(ownershipService.getNodeId());
+			} catch (MongoException e) {
+				// don't let an exception stop the runs from being advanced again
+				logger.error("Couldn't refresh the plan runs of node " + ownershipService.getNodeId(), e);
+			}
+		}
+	}
+
+	// the runs of a node that went away for good, or came back with a different ID, are only noticed by another node
+	private void abandonStaleRuns() {
+		try {
+			planService.abandonUnfinishedTestPlanRuns(null, staleBefore());
+		} catch (MongoException e) {
+			logger.error("Couldn't mark stale plan runs as abandoned", e);
+		}
+	}
+
+	// runs that haven't had a heartbeat since this belong to a node that has gone away
+	private Date staleBefore() {
+		return new Date(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(nodeTimeoutSeconds));
+	}
+
+	// only ever called on the scheduler thread, so the state of a run is never changed by two threads at once
+	private void advance(PlanRun run) {
+		if (run.finished != null) {
+			return;
+		}
+
+		// act as the plan's owner, as TestExecutionManager does for a test's background tasks
+		authenticationFacade.setLocalAuthentication(run.authentication);
+		try {
+			boolean changed = false;
+
+			Set<String> aliasesInUse = new HashSet<>();
+			int active = 0;
+
+			for (ModuleRun module : run.modules) {
+				if (module.testId != null && module.finished == null) {
+					changed |= check(run, module);
+				}
+				if (module.testId != null && module.finished == null) {
+					active++;
+					if (module.alias != null) {
+						aliasesInUse.add(module.alias);
+					}
+				}
+			}
+
+			for (ModuleRun module : run.modules) {
+				if (run.cancelled) {
+					if (module.testId == null && module.finished == null) {
+						module.error = "Cancelled";
+						module.finished = Instant.now();
+						changed = true;
+					}
+				} else if (active < run.concurrency && module.testId == null && module.finished == null
+					&& (module.alias == null || !aliasesInUse.contains(module.alias))) {
+
+					if (!launch(run, module)) {
+						// the executor is full, try again next time round
+						break;
+					}
+					changed = true;
+					if (module.finished == null) {
+						active++;
+						if (module.alias != null) {
+							aliasesInUse.add(module.alias);
+						}
+					}
+				}
+			}
+
+			if (run.modules.stream().allMatch(m -> m.finished != null)) {
+				run.finished = Instant.now();
+				runs.remove(run.planId);
+				changed = true;
+				logger.info("Finished running plan " + run.planId + ": " + run.countResults());
+			}
+
+			if (changed) {
+				planService.updateTestPlanRun(run.planId, run.getStatus());
+			}
+		} catch (RuntimeException e) {
+			// don't let this escape, or the scheduler will stop advancing every run
+			logger.error("Error while running plan " + run.planId, e);
+		} finally {
+			authenticationFacade.setLocalAuthentication(null);
+		}
+	}
+
+	// create and start the module's test; returns false if it couldn't be scheduled yet
+	private boolean launch(PlanRun run, ModuleRun module) {
+		try {
+			ResponseEntity<Map<String, String>> response = testRunner.createTest(module.testModule, run.planId, null, null);
+
+			if (response.getStatusCode() == HttpStatus.CREATED) {
+				module.testId = response.getBody().get("id");
+				module.started = Instant.now();
+			} else {
+				module.error = "Couldn't create test: " + response.getStatusCode();
+				module.finished = Instant.now();
+			}
+		} catch (RejectedExecutionException e) {
+			logger.info("Executor is busy, will start " + module.testModule + " of plan " + run.planId + " later");
+			return false;
+		} catch (RuntimeException e) {
+			logger.error("Couldn't create test " + module.testModule + " of plan " + run.planId, e);
+			module.error = "Couldn't create test: " + e.getMessage();
+			module.finished = Instant.now();
+		}
+		return true;
+	}
+
+	// see if the module's test has finished; returns true if anything changed
+	private boolean check(PlanRun run, ModuleRun module) {
+		TestModule test = support.getRunningTestById(module.testId);
+
+		if (test == null) {
+			// it's been cleaned up since we last looked, so it's done; what it finished with is in the database
+			module.status = testInfoService.getTestStatus(module.testId);
+			module.result = testInfoService.getTestResult(module.testId);
+			module.finished = Instant.now();
+			return true;
+		}
+
+		if (run.cancelled && !module.stopped) {
+			try {
+				testRunner.stopTest(test, "Stopping test because its plan run was cancelled");
+				module.stopped = true;
+			} catch (RejectedExecutionException e) {
+				// try again next time round
+				logger.warn("Couldn't stop test " + module.testId + " yet: " + e.getMessage());
+			}
+		}
+
+		Status status = test.getStatus();
+		Result result = test.getResult();
+		boolean changed = status != module.status || result != module.result;
+		module.status = status;
+		module.result = result;
+
+		if (status == Status.FINISHED || status == Status.INTERRUPTED) {
+			module.finished = Instant.now();
+			changed = true;
+		}
+
+		return changed;
+	}
+
+	private static class PlanRun {
+		private final String planId;
+		private final String node;
+		private final int concurrency;
+		private final Authentication authentication;
+		private final Instant started = Instant.now();
+		private final List<ModuleRun> modules = new ArrayList<>();
+
+		private volatile boolean cancelled;
+		private volatile Instant finished;
+
+		public PlanRun(String planId, String node, int concurrency, Authentication authentication) {
+			this.planId = planId;
+			this.node = node;
+			this.concurrency = concurrency;
+			this.authentication = authentication;
+		}
+
+		public Map<Result, Integer> countResults() {
+			Map<Result, Integer> counts = new EnumMap<>(Result.class);
+			for (ModuleRun module : modules) {
+				if (module.result != null) {
+					counts.merge(module.result, 1, Integer::sum);
+				}
+			}
+			return counts;
+		}
+
+		// everything is turned into strings and numbers so that it can be stored as it is
+		public Map<String, Object> getStatus() {
+			List<Map<String, Object>> moduleStatus = new ArrayList<>();
+			int done = 0;
+			for (ModuleRun module : modules) {
+				moduleStatus.add(module.getStatus());
+				if (module.finished != null) {
+					done++;
+				}
+			}
+
+			Map<String, Object> results = new LinkedHashMap<>();
+			for (Map.Entry<Result, Integer> entry : countResults().entrySet()) {
+				results.put(entry.getKey().toString(), entry.getValue());
+			}
+
+			Map<String, Object> status = new LinkedHashMap<>();
+			status.put("node", node);
+			status.put("concurrency", concurrency);
+			status.put("started", started.toString());
+			status.put("finished", finished != null ? finished.toString() : null);
+			status.put("cancelled", cancelled);
+			status.put("total", modules.size());
+			status.put("done", done);
+			status.put("results", results);
+			status.put("modules", moduleStatus);
+			return status;
+		}
+	}
+
+	private static class ModuleRun {
+		private final String testModule;
+		private final String alias;
+
+		private volatile String testId;
+		private volatile Status status;
+		private volatile Result result;
+		private volatile String error;
+		private volatile Instant started;
+		private volatile Instant finished;
+		private volatile boolean stopped;
+
+		public ModuleRun(String testModule, String alias) {
+			this.testModule = testModule;
+			this.alias = alias;
+		}
+
+		public Map<String, Object> getStatus() {
+			Map<String, Object> map = new LinkedHashMap<>();
+			map.put("testModule", testModule);
+			map.put("testId", testId);
+			map.put("status", status != null ? status.toString() : null);
+			map.put("result", result != null ? result.toString() : null);
+			map.put("error", error);
+			map.put("started", started != null ? started.toString() : null);
+			map.put("finished", finished != null ? finished.toString() : null);
+			return map;
+		}
+	}
+
+}
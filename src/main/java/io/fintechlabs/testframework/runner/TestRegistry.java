@@ -0,0 +1,246 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.AnnotatedBeanDefinition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.AnnotationMetadata;
+import org.springframework.core.type.filter.AnnotationTypeFilter;
+import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.io.Resources;
+
+import io.fintechlabs.testframework.condition.Condition;
+import io.fintechlabs.testframework.plan.PublishTestPlan;
+import io.fintechlabs.testframework.plan.TestPlan;
+import io.fintechlabs.testframework.testmodule.AbstractTestModule;
+import io.fintechlabs.testframework.testmodule.PublishTestModule;
+import io.fintechlabs.testframework.testmodule.TestModule;
+import io.fintechlabs.testframework.testmodule.UserFacing;
+
+/**
+ * Everything we need to know about the classes on the classpath: the published test modules and test plans, which
+ * test module methods are user-facing, and how many conditions there are.
+ *
+ * The classes are normally listed in an index written by TestRegistryProcessor when they were compiled, so the
+ * server doesn't have to scan the classpath when it starts; if there's no index, we scan instead. Conditions aren't
+ * loaded here, their metadata is worked out lazily by ConditionMetadata the first time each one is used.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class TestRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(TestRegistry.class);
+
+	private static final String BASE_PACKAGE = "io.fintechlabs";
+
+	private Map<String, TestModuleHolder> testModules = Collections.emptyMap();
+
+	private Map<String, TestPlanHolder> testPlans = Collections.emptyMap();
+
+	// class name and method name, joined with a '#'
+	private Set<String> userFacingMethods = Collections.emptySet();
+
+	private int conditionCount;
+
+	@PostConstruct
+	public void scan() {
+		long start = System.currentTimeMillis();
+
+		// class names, by kind
+		Multimap<String, String> found = readIndex();
+		String source = "the build-time index";
+		if (found == null) {
+			found = scanClasspath();
+			source = "a classpath scan";
+		}
+
+		Map<String, TestModuleHolder> modules = new HashMap<>();
+		Map<String, TestPlanHolder> plans = new HashMap<>();
+		Set<String> userFacing = new HashSet<>();
+
+		for (String className : found.get(TestRegistryProcessor.MODULE)) {
+			Class<?> c = load(className);
+			PublishTestModule module = c != null ? c.getDeclaredAnnotation(PublishTestModule.class) : null;
+			if (module != null && TestModule.class.isAssignableFrom(c)) {
+				modules.put(module.testName(), new TestModuleHolder(c.asSubclass(TestModule.class), module));
+				findUserFacingMethods(c, userFacing);
+			}
+		}
+
+		for (String className : found.get(TestRegistryProcessor.PLAN)) {
+			Class<?> c = load(className);
+			PublishTestPlan plan = c != null ? c.getDeclaredAnnotation(PublishTestPlan.class) : null;
+			if (plan != null && TestPlan.class.isAssignableFrom(c)) {
+				plans.put(plan.testPlanName(), new TestPlanHolder(c.asSubclass(TestPlan.class), plan));
+			}
+		}
+
+		// conditions aren't loaded here, their metadata is worked out when each one is first used
+		int conditions = found.get(TestRegistryProcessor.CONDITION).size();
+
+		testModules = Collections.unmodifiableMap(modules);
+		testPlans = Collections.unmodifiableMap(plans);
+		userFacingMethods = Collections.unmodifiableSet(userFacing);
+		conditionCount = conditions;
+
+		logger.info("Found " + modules.size() + " test modules, " + plans.size() + " test plans and "
+			+ conditions + " conditions from " + source + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	// read the index written by TestRegistryProcessor when the classes were compiled, or null if there isn't one
+	private Multimap<String, String> readIndex() {
+		URL index = getClass().getClassLoader().getResource(TestRegistryProcessor.INDEX);
+		if (index == null) {
+			return null;
+		}
+
+		try {
+			Multimap<String, String> found = HashMultimap.create();
+			for (String line : Resources.readLines(index, StandardCharsets.UTF_8)) {
+				List<String> parts = Splitter.on(' ').trimResults().omitEmptyStrings().splitToList(line);
+				if (parts.size() == 2) {
+					found.put(parts.get(0), parts.get(1));
+				}
+			}
+			return found;
+		} catch (IOException e) {
+			logger.error("Couldn't read " + TestRegistryProcessor.INDEX + ", scanning the classpath instead", e);
+			return null;
+		}
+	}
+
+	// find the same classes as TestRegistryProcessor does, for when the classes were compiled without it
+	private Multimap<String, String> scanClasspath() {
+		Multimap<String, String> found = HashMultimap.create();
+
+		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
+		scanner.addIncludeFilter(new AnnotationTypeFilter(PublishTestModule.class));
+		scanner.addIncludeFilter(new AnnotationTypeFilter(PublishTestPlan.class));
+		scanner.addIncludeFilter(new AssignableTypeFilter(Condition.class));
+		for (BeanDefinition bd : scanner.findCandidateComponents(BASE_PACKAGE)) {
+			// this reads the class files without loading the classes
+			AnnotationMetadata metadata = ((AnnotatedBeanDefinition) bd).getMetadata();
+			if (metadata.hasAnnotation(PublishTestModule.class.getName())) {
+				found.put(TestRegistryProcessor.MODULE, bd.getBeanClassName());
+			} else if (metadata.hasAnnotation(PublishTestPlan.class.getName())) {
+				found.put(TestRegistryProcessor.PLAN, bd.getBeanClassName());
+			} else {
+				// the only other filter it can have matched
+				found.put(TestRegistryProcessor.CONDITION, bd.getBeanClassName());
+			}
+		}
+
+		return found;
+	}
+
+	private Class<?> load(String className) {
+		try {
+			return Class.forName(className);
+		} catch (ClassNotFoundException | LinkageError e) {
+			logger.error("Couldn't load class definition: " + className);
+			return null;
+		}
+	}
+
+	// a module's user-facing methods may be declared on any of its superclasses, but not on AbstractTestModule
+	private void findUserFacingMethods(Class<?> c, Set<String> userFacing) {
+		for (Class<?> clz = c; clz != null && !clz.equals(AbstractTestModule.class) && TestModule.class.isAssignableFrom(clz); clz = clz.getSuperclass()) {
+			for (Method m : clz.getDeclaredMethods()) {
+				if (m.isAnnotationPresent(UserFacing.class)) {
+					userFacing.add(clz.getName() + "#" + m.getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the published test modules, by test name
+	 */
+	public Map<String, TestModuleHolder> getTestModules() {
+		return testModules;
+	}
+
+	/**
+	 * @return the published test plans, by plan name
+	 */
+	public Map<String, TestPlanHolder> getTestPlans() {
+		return testPlans;
+	}
+
+	/**
+	 * Check whether a stack frame is in a user-facing method of a test module.
+	 *
+	 * @param className the name of the class, as in a StackTraceElement
+	 * @param methodName the name of the method, as in a StackTraceElement
+	 */
+	public boolean isUserFacing(String className, String methodName) {
+		return userFacingMethods.contains(className + "#" + methodName);
+	}
+
+	/**
+	 * @return counts of what was found, suitable for returning from an API
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new HashMap<>();
+		stats.put("testModules", testModules.size());
+		stats.put("testPlans", testPlans.size());
+		stats.put("conditions", conditionCount);
+		return stats;
+	}
+
+	public static class TestModuleHolder {
+		public Class<? extends TestModule> c;
+		public PublishTestModule a;
+
+		public TestModuleHolder(Class<? extends TestModule> c, PublishTestModule a) {
+			this.c = c;
+			this.a = a;
+		}
+	}
+
+	public static class TestPlanHolder {
+		public Class<? extends TestPlan> c;
+		public PublishTestPlan a;
+
+		public TestPlanHolder(Class<? extends TestPlan> c, PublishTestPlan a) {
+			this.c = c;
+			this.a = a;
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes the index that TestRegistry reads at startup, while the classes are being compiled: every published test
+ * module and test plan, and every condition class. The server then doesn't have to scan the classpath to find them.
+ *
+ * Each line of the index is a kind ("module", "plan" or "condition") and a binary class name, separated by a space.
+ *
+ * This runs in the build's second compiler pass, after the processor itself has been compiled in the first. It
+ * only refers to the classes it looks for by name, so that the first pass doesn't need anything else.
+ *
+ * @author jricher
+ *
+ */
+@SupportedAnnotationTypes("*")
+public class TestRegistryProcessor extends AbstractProcessor {
+
+	public static final String INDEX = "META-INF/fintechlabs/test-registry.idx";
+
+	public static final String MODULE = "module";
+	public static final String PLAN = "plan";
+	public static final String CONDITION = "condition";
+
+	private static final String PUBLISH_TEST_MODULE = "io.fintechlabs.testframework.testmodule.PublishTestModule";
+	private static final String PUBLISH_TEST_PLAN = "io.fintechlabs.testframework.plan.PublishTestPlan";
+	private static final String CONDITION_TYPE = "io.fintechlabs.testframework.condition.Condition";
+
+	// sorted, so that the same sources always give the same index
+	private final Set<String> entries = new TreeSet<>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			writeIndex();
+			return false;
+		}
+
+		TypeElement condition = processingEnv.getElementUtils().getTypeElement(CONDITION_TYPE);
+		TypeMirror conditionType = condition != null ? processingEnv.getTypeUtils().erasure(condition.asType()) : null;
+
+		for (Element element : roundEnv.getRootElements()) {
+			visit(element, conditionType);
+		}
+
+		// we only read the annotations, other processors can still have them
+		return false;
+	}
+
+	private void visit(Element element, TypeMirror conditionType) {
+		if (element.getKind() != ElementKind.CLASS) {
+			return;
+		}
+
+		TypeElement type = (TypeElement) element;
+		String name = processingEnv.getElementUtils().getBinaryName(type).toString();
+
+		for (AnnotationMirror annotation : type.getAnnotationMirrors()) {
+			String annotationName = ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+			if (annotationName.equals(PUBLISH_TEST_MODULE)) {
+				entries.add(MODULE + " " + name);
+			} else if (annotationName.equals(PUBLISH_TEST_PLAN)) {
+				entries.add(PLAN + " " + name);
+			}
+		}
+
+		if (conditionType != null
+			&& !type.getModifiers().contains(Modifier.ABSTRACT)
+			&& processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(type.asType()), conditionType)) {
+			entries.add(CONDITION + " " + name);
+		}
+
+		// static nested classes can be found on the classpath as well, so they go in the index too
+		for (Element enclosed : type.getEnclosedElements()) {
+			if (enclosed.getModifiers().contains(Modifier.STATIC)) {
+				visit(enclosed, conditionType);
+			}
+		}
+	}
+
+	private void writeIndex() {
+		if (entries.isEmpty()) {
+			// nothing of ours was compiled, such as in a test compile
+			return;
+		}
+
+		try {
+			FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+			try (Writer writer = index.openWriter()) {
+				for (String entry : entries) {
+					writer.write(entry);
+					writer.write('\n');
+				}
+			}
+		} catch (IOException e) {
+			// TestRegistry scans the classpath instead when there's no index, so this doesn't break anything
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Couldn't write " + INDEX + ": " + e);
+		}
+	}
+
+}
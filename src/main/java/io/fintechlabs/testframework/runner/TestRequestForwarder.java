@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.http.Header;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.mongodb.MongoException;
+
+import io.fintechlabs.testframework.logging.TimingStatistics;
+
+/**
+ * Sends requests for tests that are running on another node of the cluster to that node, and passes back whatever
+ * it responds with.
+ *
+ * Requests are sent on as they came in, apart from cookies: each node has its own sessions, so forwarding them would
+ * log the user out of the node they came in on. A header marks forwarded requests so that they're never forwarded a
+ * second time, even if the nodes disagree about where a test is.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class TestRequestForwarder {
+
+	public static final String FORWARDED_HEADER = "X-Test-Forwarded-By";
+
+	private static final Logger logger = LoggerFactory.getLogger(TestRequestForwarder.class);
+
+	// headers that only apply to a single connection, or that the client sets for us
+	private static final Set<String> SKIPPED_HEADERS = ImmutableSet.of(
+		"connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding",
+		"upgrade", "host", "content-length", "cookie", "set-cookie", FORWARDED_HEADER.toLowerCase());
+
+	@Value("${fintechlabs.cluster.enabled:false}")
+	private boolean enabled;
+
+	@Value("${fintechlabs.cluster.forward_timeout_seconds:30}")
+	private int timeoutSeconds;
+
+	@Autowired
+	private TestOwnershipService ownershipService;
+
+	private CloseableHttpClient client;
+
+	@PostConstruct
+	public void createClient() {
+		if (!enabled) {
+			return;
+		}
+
+		int timeout = (int) TimeUnit.SECONDS.toMillis(timeoutSeconds);
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(200);
+		connectionManager.setDefaultMaxPerRoute(50);
+
+		client = HttpClientBuilder.create()
+			.setConnectionManager(connectionManager)
+			.setDefaultRequestConfig(RequestConfig.custom()
+				.setConnectTimeout(timeout)
+				.setSocketTimeout(timeout)
+				.build())
+			// the client needs to see redirects, compressed bodies and cookies exactly as the test sent them
+			.disableRedirectHandling()
+			.disableContentCompression()
+			.disableCookieManagement()
+			.useSystemProperties()
+			.build();
+	}
+
+	@PreDestroy
+	public void closeClient() throws IOException {
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	/**
+	 * @return true if requests can be forwarded to other nodes
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Forward a request to the node the test is running on, if it's running on another node.
+	 *
+	 * @param testId the test the request is for
+	 * @param req the incoming request
+	 * @param body the body of the incoming request, if any
+	 * @param contentType the content type of the incoming request, if any
+	 * @return the other node's response, or null if the test isn't running on any other node
+	 */
+	public ResponseEntity<byte[]> forward(String testId, HttpServletRequest req, String body, MediaType contentType) {
+		if (!enabled || req.getHeader(FORWARDED_HEADER) != null) {
+			return null;
+		}
+
+		String nodeUrl;
+		try {
+			nodeUrl = ownershipService.getNodeUrlForTest(testId);
+		} catch (MongoException e) {
+			logger.error("Couldn't look up the node for test " + testId, e);
+			return null;
+		}
+		if (nodeUrl == null) {
+			return null;
+		}
+
+		String uri = nodeUrl + req.getRequestURI();
+		if (!Strings.isNullOrEmpty(req.getQueryString())) {
+			uri += "?" + req.getQueryString();
+		}
+
+		RequestBuilder builder = RequestBuilder.create(req.getMethod()).setUri(uri);
+		for (String name : Collections.list(req.getHeaderNames())) {
+			if (!SKIPPED_HEADERS.contains(name.toLowerCase())) {
+				for (String value : Collections.list(req.getHeaders(name))) {
+					builder.addHeader(name, value);
+				}
+			}
+		}
+		builder.addHeader(FORWARDED_HEADER, ownershipService.getNodeId());
+
+		if (body != null) {
+			// turn the body back into the bytes it was read from
+			Charset charset = contentType != null && contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.ISO_8859_1;
+			builder.setEntity(new ByteArrayEntity(body.getBytes(charset)));
+		}
+
+		HttpUriRequest request = builder.build();
+
+		long start = System.nanoTime();
+		try (CloseableHttpResponse response = client.execute(request)) {
+
+			HttpHeaders headers = new HttpHeaders();
+			for (Header header : response.getAllHeaders()) {
+				if (!SKIPPED_HEADERS.contains(header.getName().toLowerCase())) {
+					headers.add(header.getName(), header.getValue());
+				}
+			}
+
+			byte[] responseBody = response.getEntity() != null ? EntityUtils.toByteArray(response.getEntity()) : null;
+
+			HttpStatus status = HttpStatus.valueOf(response.getStatusLine().getStatusCode());
+
+			return new ResponseEntity<>(responseBody, headers, status);
+
+		} catch (IOException | IllegalArgumentException e) {
+			logger.error("Couldn't forward request for test " + testId + " to " + nodeUrl, e);
+			return new ResponseEntity<>(HttpStatus.BAD_GATEWAY);
+		} finally {
+			TimingStatistics.record(TimingStatistics.DISPATCH, "(forwarded)", System.nanoTime() - start);
+		}
+	}
+
+}
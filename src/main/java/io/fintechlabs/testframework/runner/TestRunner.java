@@ -19,23 +19,22 @@ import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+
 import org.apache.commons.lang3.RandomStringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.beans.factory.config.BeanDefinition;
-import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
-import org.springframework.core.type.filter.AnnotationTypeFilter;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -52,8 +51,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.util.UriUtils;
 
 import com.google.common.base.Strings;
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import io.fintechlabs.testframework.condition.Condition.ConditionResult;
@@ -65,9 +63,9 @@ import io.fintechlabs.testframework.info.TestInfoService;
 import io.fintechlabs.testframework.info.TestPlanService;
 import io.fintechlabs.testframework.logging.EventLog;
 import io.fintechlabs.testframework.logging.TestInstanceEventLog;
+import io.fintechlabs.testframework.runner.TestRegistry.TestModuleHolder;
 import io.fintechlabs.testframework.security.AuthenticationFacade;
 import io.fintechlabs.testframework.testmodule.DataUtils;
-import io.fintechlabs.testframework.testmodule.PublishTestModule;
 import io.fintechlabs.testframework.testmodule.TestFailureException;
 import io.fintechlabs.testframework.testmodule.TestModule;
 
@@ -114,75 +112,103 @@ public class TestRunner implements DataUtils {
 	@Autowired
 	private SavedConfigurationService savedConfigurationService;
 
-	private Supplier<Map<String, TestModuleHolder>> testModuleSupplier = Suppliers.memoize(this::findTestModules);
+	@Autowired
+	private TestRegistry registry;
 
-	private ExecutorService executorService = Executors.newCachedThreadPool();
-	private ExecutorCompletionService executorCompletionService = new ExecutorCompletionService(executorService);
-	private FutureWatcher futureWatcher = new FutureWatcher();
+	@Autowired
+	private TestCheckpointer checkpointer;
 
-	private class FutureWatcher implements Runnable {
-		private boolean running = false;
+	@Autowired
+	private TestTaskExecutor testTaskExecutor;
 
-		public void stop() {
-			this.running = false;
-		}
+	// restores under way, by test ID, so that requests for a test that's being restored wait for it
+	private final ConcurrentMap<String, CompletableFuture<TestModule>> restoresInFlight = new ConcurrentHashMap<>();
 
-		@Override
-		public void run() {
-			running = true;
-			while (running) {
-				try {
-					FutureTask future = (FutureTask) executorCompletionService.poll(1, TimeUnit.SECONDS);
-					if (future != null && !future.isCancelled()) {
-						future.get();
-					}
-				} catch (InterruptedException e) {
-					// If we've been interrupted, then either it was on purpose, or something went very very wrong.
-					logger.error("Background task was interrupted", e);
-				} catch (ExecutionException e) {
-					if (e.getCause().getClass().equals(TestFailureException.class)) {
-						// This should always be the case for our BackgroundTasks
-						TestFailureException testFailureException = (TestFailureException) e.getCause();
-
-						String testId = testFailureException.getTestId();
-						TestModule test = support.getRunningTestById(testId);
-						if (test != null) {
-							// We can't just throw it, the Exception Handler Annotation is only for HTTP requests
-							conditionFailure(testFailureException);
-
-							// there's an exception, stop the test
-							test.stop();
-
-							// Clean up other tasks for this test id
-							TestExecutionManager executionManager = test.getTestExecutionManager();
-							if (executionManager != null) {
-								for (Future f : executionManager.getFutures()) {
-									if (!f.isDone()) {
-										f.cancel(true); // True allows the task to be interrupted.
-									}
-								}
-							}
-
-							// set the final exception flag only if this wasn't a normal condition error
-							if (testFailureException.getCause() != null && !testFailureException.getCause().getClass().equals(ConditionError.class)) {
-								test.setFinalError(testFailureException);
-							}
-
-							test.fireTestFailure();
-						}
-					} else {
-						// TODO: Better handling if we get something we wern't expecting? But we don't have access to the test ID
-						logger.error("Execution failure", e);
-						//eventLog.log(testId, "TEST RUNNER", authenticationFacade.getPrincipal(), EventLog.ex(e));
-					}
+	@PostConstruct
+	public void registerFailureHandler() {
+		testTaskExecutor.setFailureHandler(this::handleBackgroundFailure);
+	}
+
+	/**
+	 * Called by the executor as soon as a background task for a test throws an exception.
+	 */
+	private void handleBackgroundFailure(String testId, Throwable cause) {
+		if (cause instanceof TestFailureException) {
+			// This should always be the case for our BackgroundTasks
+			TestFailureException testFailureException = (TestFailureException) cause;
 
+			TestModule test = support.getRunningTestById(testFailureException.getTestId());
+			if (test != null) {
+				// We can't just throw it, the Exception Handler Annotation is only for HTTP requests
+				TestExecutionManager executionManager = test.getTestExecutionManager();
+				Future<?> handled = failTest(test, testFailureException);
+
+				// Clean up other tasks for this test id; anything still waiting in the mailbox is skipped, so the
+				// failure is handled as soon as whatever's running now has finished
+				for (Future<?> f : executionManager.getFutures()) {
+					if (f != handled && !f.isDone()) {
+						f.cancel(true); // True allows the task to be interrupted.
+					}
 				}
 			}
+		} else {
+			// TODO: Better handling if we get something we wern't expecting?
+			logger.error("Execution failure in test " + testId, cause);
 		}
 	}
 
-	public TestRunner() {
-		executorService.submit(futureWatcher);
+	/**
+	 * Mark a test as failed and stop it. This goes through the test's mailbox, so that it happens between two
+	 * pieces of the test's work rather than in the middle of one.
+	 *
+	 * @return the future for the work in the mailbox
+	 */
+	private Future<?> failTest(TestModule test, TestFailureException error) {
+		return runInMailbox(test, () -> {
+			logger.error("Caught an error while running the test, stopping the test: " + error.getMessage());
+			test.stop();
+			eventLog.log(test.getId(), "TEST-RUNNER", test.getOwner(), ex(error));
+
+			// Any form of exception from a test counts as a failure
+			test.fireTestFailure();
+
+			if (!(error.getCause() != null && error.getCause().getClass().equals(ConditionError.class))) {
+				// if the root error isn't a ConditionError, set this so the UI can display the underlying error in detail
+				// ConditionError will get handled by the logging system, no need to display with stacktrace
+				test.setFinalError(error);
+			}
+			return "failed";
+		});
+	}
+
+	/**
+	 * Stop a test through its mailbox, so that it stops between two pieces of its work rather than in the middle of
+	 * one.
+	 *
+	 * @param test the test to stop
+	 * @param reason why it's being stopped, for the test's log
+	 * @throws RejectedExecutionException if the executor is too busy to take the work
+	 */
+	public void stopTest(TestModule test, String reason) {
+		runInMailbox(test, () -> {
+			eventLog.log(test.getId(), "TEST-RUNNER", test.getOwner(), args("msg", reason));
+			test.stop();
+			return "stopped";
+		});
+	}
+
+	/**
+	 * Run something that changes a test's state in the test's mailbox. The work can't report its own failure
+	 * through the failure handler, as that would just post more of the same, so any failure is only logged.
+	 */
+	private Future<?> runInMailbox(TestModule test, Callable<Object> work) {
+		CompletableFuture<Object> future = test.getTestExecutionManager().post(work);
+		future.whenComplete((result, error) -> {
+			if (error != null && !(error instanceof CancellationException)) {
+				logger.error("Error while stopping test " + test.getId(), error);
+			}
+		});
+		return future;
 	}
 
 	@RequestMapping(value = "/runner/available", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
@@ -228,7 +254,7 @@ public class TestRunner implements DataUtils {
 
 		}
 
-		TestModule test = createTestModule(testName, id, config);
+		TestModule test = createTestModule(testName, id, config, authenticationFacade.getPrincipal());
 
 		if (test == null) {
 			// return an error
@@ -287,13 +313,20 @@ public class TestRunner implements DataUtils {
 				"description", description,
 				"testName", testName));
 
-		test.getTestExecutionManager().runInBackground(() -> {
-			test.configure(config, url);
+		try {
+			test.getTestExecutionManager().runInOrder(() -> {
+				test.configure(config, url);
 
-			/* automatically start all tests */
-			test.start();
-			return "done";
-		});
+				/* automatically start all tests */
+				test.start();
+				return "done";
+			});
+		} catch (RejectedExecutionException e) {
+			// the test is never going to get to run, so don't leave it hanging around
+			eventLog.log(id, "TEST-RUNNER", test.getOwner(), args("msg", "Test could not be scheduled: " + e.getMessage()));
+			test.stop();
+			throw e;
+		}
 		// logger.info("Status of " + testName + ": " + test.getId() + ": " + test.getStatus());
 
 		Map<String, String> map = new HashMap<>();
@@ -319,9 +352,17 @@ public class TestRunner implements DataUtils {
 			if (test != null) {
 				// TODO: make the override configurable to allow for conflict of re-used aliases
 
-				eventLog.log(test.getId(), "TEST-RUNNER", test.getOwner(), args("msg", "Stopping test due to alias conflict", "alias", alias, "new_test_id", id));
-
-				test.stop(); // stop the currently-running test
+				// stop the currently-running test
+				try {
+					runInMailbox(test, () -> {
+						eventLog.log(test.getId(), "TEST-RUNNER", test.getOwner(), args("msg", "Stopping test due to alias conflict", "alias", alias, "new_test_id", id));
+						test.stop();
+						return "stopped";
+					});
+				} catch (RejectedExecutionException e) {
+					// it loses the alias anyway, and will be expired like any other test that's left alone
+					logger.error("Couldn't stop test " + test.getId() + " after its alias was taken by test " + id, e);
+				}
 			}
 		}
 
@@ -337,7 +378,7 @@ public class TestRunner implements DataUtils {
 
 			//logger.info("Status of " + test.getName() + ": " + test.getId() + ": " + test.getStatus());
 
-			test.getTestExecutionManager().runInBackground(() -> {
+			test.getTestExecutionManager().runInOrder(() -> {
 				test.start();
 				return "started";
 			});
@@ -375,11 +416,7 @@ public class TestRunner implements DataUtils {
 		if (test != null) {
 
 			// stop the test
-			test.getTestExecutionManager().runInBackground(() -> {
-				eventLog.log(test.getId(), "TEST-RUNNER", test.getOwner(), args("msg", "Stopping test from external request"));
-				test.stop();
-				return "stopped";
-			});
+			stopTest(test, "Stopping test from external request");
 
 			// return its immediate status
 			Map<String, Object> map = createTestStatusMap(test);
@@ -438,7 +475,101 @@ public class TestRunner implements DataUtils {
 		}
 	}
 
-	private TestModule createTestModule(String testName, String id, JsonObject config) {
+	/**
+	 * Bring a test back from its last checkpoint, such as after the node it was running on was restarted or went
+	 * away. If the test is already running here, that's returned instead.
+	 *
+	 * @param testId the test to restore, or null to look it up by alias
+	 * @param alias the test's alias, if the test ID isn't known
+	 * @return the test, or null if there's no checkpoint for it, it couldn't be restored, or another node has it
+	 */
+	public TestModule restoreTest(String testId, String alias) {
+		if (testId == null && alias != null) {
+			testId = checkpointer.getTestIdForAlias(alias);
+		}
+		if (testId == null) {
+			return null;
+		}
+
+		JsonObject checkpoint = checkpointer.load(testId);
+		if (checkpoint == null) {
+			return null;
+		}
+
+		// only restore a test once, even if several requests for it arrive together; those for other tests carry on
+		CompletableFuture<TestModule> restore = new CompletableFuture<>();
+		CompletableFuture<TestModule> inFlight = restoresInFlight.putIfAbsent(testId, restore);
+		if (inFlight != null) {
+			// somebody else got there first, so go with whatever they come up with
+			return inFlight.join();
+		}
+
+		TestModule restored = null;
+		try {
+			restored = restoreFromCheckpoint(testId, checkpoint);
+			return restored;
+		} finally {
+			restoresInFlight.remove(testId, restore);
+			restore.complete(restored);
+		}
+	}
+
+	// called by only one thread at a time for each test ID
+	private TestModule restoreFromCheckpoint(String testId, JsonObject checkpoint) {
+		if (support.hasTestId(testId)) {
+			// somebody else got there first
+			return support.getRunningTestById(testId);
+		}
+
+		Map<String, String> owner = new HashMap<>();
+		for (Map.Entry<String, JsonElement> entry : checkpoint.getAsJsonObject("owner").entrySet()) {
+			owner.put(entry.getKey(), entry.getValue().getAsString());
+		}
+
+		// and only on one node: another node may have restored it since we looked
+		if (!support.claimTestForRestore(testId, owner)) {
+			return null;
+		}
+
+		try {
+			String testName = checkpoint.get("testName").getAsString();
+
+			// the browser needs the test's configuration, which is in the saved environment
+			JsonObject config = checkpoint.getAsJsonObject("env").getAsJsonObject("store").getAsJsonObject("config");
+
+			TestModule test = createTestModule(testName, testId, config != null ? config : new JsonObject(), owner);
+			if (test == null) {
+				support.removeRunningTest(testId);
+				return null;
+			}
+
+			test.restore(checkpoint);
+
+			support.addRunningTest(testId, test);
+
+			// don't take the alias back from a newer test
+			if (checkpoint.has("alias") && support.getTestIdForAlias(checkpoint.get("alias").getAsString()) == null) {
+				support.addAlias(checkpoint.get("alias").getAsString(), testId);
+			}
+
+			eventLog.log(testId, "TEST-RUNNER", test.getOwner(),
+				args("msg", "Test instance " + testId + " restored from checkpoint",
+					"result", ConditionResult.INFO,
+					"status", test.getStatus().toString()));
+
+			logger.info("Restored: " + testName + " " + testId);
+
+			return test;
+
+		} catch (RuntimeException e) {
+			logger.error("Couldn't restore test " + testId + " from its checkpoint", e);
+			// give up our claim on it
+			support.removeRunningTest(testId);
+			return null;
+		}
+	}
+
+	private TestModule createTestModule(String testName, String id, JsonObject config, Map<String, String> owner) {
 
 		TestModuleHolder holder = getTestModules().get(testName);
 
@@ -451,12 +582,9 @@ public class TestRunner implements DataUtils {
 
 			Class<? extends TestModule> testModuleClass = holder.c;
 
-			@SuppressWarnings("unchecked")
-			Map<String, String> owner = authenticationFacade.getPrincipal();
-
 			TestInstanceEventLog wrappedEventLog = new TestInstanceEventLog(id, owner, eventLog);
 
-			TestExecutionManager executionManager = new TestExecutionManager(id, executorCompletionService, authenticationFacade);
+			TestExecutionManager executionManager = new TestExecutionManager(id, owner, testTaskExecutor, authenticationFacade);
 			BrowserControl browser = new BrowserControl(config, id, wrappedEventLog, executionManager, imageService);
 
 			// call the constructor
@@ -464,7 +592,7 @@ public class TestRunner implements DataUtils {
 				.newInstance();
 
 			// pass in all the components for this test module to execute
-			module.setProperties(id, owner, wrappedEventLog, browser, testInfo, executionManager, imageService);
+			module.setProperties(id, owner, wrappedEventLog, browser, testInfo, executionManager, imageService, checkpointer);
 
 			return module;
 
@@ -477,43 +605,8 @@ public class TestRunner implements DataUtils {
 
 	}
 
-	// get the test modules from the memoized copy, filling it if necessary
 	private Map<String, TestModuleHolder> getTestModules() {
-		return testModuleSupplier.get();
-	}
-
-	// this is used to load all the test modules into the memoized copy used above
-	// we memoize this because reflection is slow
-	private Map<String, TestModuleHolder> findTestModules() {
-
-		Map<String, TestModuleHolder> testModules = new HashMap<>();
-
-		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
-		scanner.addIncludeFilter(new AnnotationTypeFilter(PublishTestModule.class));
-		for (BeanDefinition bd : scanner.findCandidateComponents("io.fintechlabs")) {
-			try {
-				@SuppressWarnings("unchecked")
-				Class<? extends TestModule> c = (Class<? extends TestModule>) Class.forName(bd.getBeanClassName());
-				PublishTestModule a = c.getDeclaredAnnotation(PublishTestModule.class);
-
-				testModules.put(a.testName(), new TestModuleHolder(c, a));
-
-			} catch (ClassNotFoundException e) {
-				logger.error("Couldn't load test module definition: " + bd.getBeanClassName());
-			}
-		}
-
-		return testModules;
-	}
-
-	private class TestModuleHolder {
-		public Class<? extends TestModule> c;
-		public PublishTestModule a;
-
-		public TestModuleHolder(Class<? extends TestModule> c, PublishTestModule a) {
-			this.c = c;
-			this.a = a;
-		}
+		return registry.getTestModules();
 	}
 
 	private Map<String, Object> createTestStatusMap(TestModule test) {
@@ -537,24 +630,25 @@ public class TestRunner implements DataUtils {
 		return map;
 	}
 
+	// the executor couldn't take any more work, tell the caller to back off
+	@ExceptionHandler(RejectedExecutionException.class)
+	public ResponseEntity<Object> executionRejected(RejectedExecutionException error) {
+		logger.warn("Rejected test execution request: " + error.getMessage());
+
+		JsonObject obj = new JsonObject();
+		obj.addProperty("error", error.getMessage());
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+			.header("Retry-After", "30")
+			.body(obj);
+	}
+
 	// handle errors thrown by running tests
 	@ExceptionHandler(TestFailureException.class)
 	public ResponseEntity<Object> conditionFailure(TestFailureException error) {
 		try {
 			TestModule test = support.getRunningTestById(error.getTestId());
 			if (test != null) {
-				logger.error("Caught an error while running the test, stopping the test: " + error.getMessage());
-				test.stop();
-				eventLog.log(test.getId(), "TEST-RUNNER", test.getOwner(), ex(error));
-
-				// Any form of exception from a test counts as a failure
-				test.fireTestFailure();
-
-				if (!(error.getCause() != null && error.getCause().getClass().equals(ConditionError.class))) {
-					// if the root error isn't a ConditionError, set this so the UI can display the underlying error in detail
-					// ConditionError will get handled by the logging system, no need to display with stacktrace
-					test.setFinalError(error);
-				}
+				failTest(test, error);
 			} else {
 				logger.error("Caught an error from a test, but the test isn't running: " + error.getMessage());
 			}
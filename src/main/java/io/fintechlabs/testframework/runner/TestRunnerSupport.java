@@ -14,6 +14,7 @@
 
 package io.fintechlabs.testframework.runner;
 
+import java.util.Map;
 import java.util.Set;
 
 import io.fintechlabs.testframework.testmodule.TestModule;
@@ -30,6 +31,15 @@ public interface TestRunnerSupport {
 	 */
 	void addRunningTest(String id, TestModule test);
 
+	/**
+	 * Make sure that no other node is running a test before it's restored on this one.
+	 *
+	 * @param testId
+	 * @param owner
+	 * @return true if the test can be restored here
+	 */
+	boolean claimTestForRestore(String testId, Map<String, String> owner);
+
 	/**
 	 * @param alias
 	 * @return
@@ -0,0 +1,373 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the background tasks of all test instances on a bounded pool of threads.
+ *
+ * Tasks wait in an admission queue when all threads are busy. A task is rejected with a
+ * RejectedExecutionException when the queue is full, or when its test or its owner already has
+ * too many tasks running or queued.
+ *
+ * When a task finishes with an exception, the failure handler is called straight away on a thread
+ * of its own, so that dealing with the failure doesn't hold up the pool. A task that's cancelled
+ * before it starts is taken out of the queue and gives back its quota at once.
+ *
+ * The tasks that work through each test's mailbox run on a pool of their own, with no quotas and a
+ * queue that's never full: a test only ever has one of them queued or running, so there can't be
+ * more of them than there are tests. Nothing running in the main pool can hold them up, and they're
+ * never rejected while the server is running.
+ *
+ * Anything that needs to happen later, such as giving up on a wait, is scheduled on a single timer
+ * thread rather than holding a thread of either pool while it waits.
+ *
+ * @author jricher
+ *
+ */
+@Component
+public class TestTaskExecutor {
+
+	private static Logger logger = LoggerFactory.getLogger(TestTaskExecutor.class);
+
+	@Value("${fintechlabs.executor.pool_size:200}")
+	private int poolSize;
+
+	@Value("${fintechlabs.executor.queue_size:2000}")
+	private int queueSize;
+
+	@Value("${fintechlabs.executor.max_tasks_per_test:50}")
+	private int maxTasksPerTest;
+
+	@Value("${fintechlabs.executor.max_tasks_per_owner:500}")
+	private int maxTasksPerOwner;
+
+	@Value("${fintechlabs.executor.mailbox_pool_size:50}")
+	private int mailboxPoolSize;
+
+	private ThreadPoolExecutor executor;
+
+	// works through the tests' mailboxes; see executeMailbox()
+	private ThreadPoolExecutor mailboxExecutor;
+
+	// calls back when a delay is up; see schedule()
+	private ScheduledExecutorService scheduler;
+
+	// number of tasks running or queued, by test ID and by owner
+	private Map<String, Integer> tasksByTest = new ConcurrentHashMap<>();
+	private Map<Map<String, String>, Integer> tasksByOwner = new ConcurrentHashMap<>();
+
+	// called with the test ID and the cause whenever a task fails
+	private volatile BiConsumer<String, Throwable> failureHandler = (testId, cause) -> logger.error("Background task failed for test " + testId, cause);
+
+	// runs the failure handler, one failure at a time in the order they happened
+	private ExecutorService failureHandlerExecutor;
+
+	// statistics
+	private AtomicLong submitted = new AtomicLong();
+	private AtomicLong completed = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong cancelled = new AtomicLong();
+	private AtomicLong rejectedQueueFull = new AtomicLong();
+	private AtomicLong rejectedTestQuota = new AtomicLong();
+	private AtomicLong rejectedOwnerQuota = new AtomicLong();
+	private AtomicLong mailboxRuns = new AtomicLong();
+
+	@PostConstruct
+	public void start() {
+		failureHandlerExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("test-task-failures-%d")
+			.setDaemon(true)
+			.build());
+
+		executor = new ThreadPoolExecutor(poolSize, poolSize,
+			60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(queueSize),
+			new ThreadFactoryBuilder()
+				.setNameFormat("test-task-%d")
+				.setDaemon(true)
+				.build());
+		// let the pool shrink back down when it's quiet
+		executor.allowCoreThreadTimeOut(true);
+
+		mailboxExecutor = new ThreadPoolExecutor(mailboxPoolSize, mailboxPoolSize,
+			60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<>(),
+			new ThreadFactoryBuilder()
+				.setNameFormat("test-mailbox-%d")
+				.setDaemon(true)
+				.build());
+		mailboxExecutor.allowCoreThreadTimeOut(true);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("test-task-scheduler")
+			.setDaemon(true)
+			.build());
+
+		logger.info("Running test tasks on up to " + poolSize + " threads, and test mailboxes on up to " + mailboxPoolSize);
+	}
+
+	@PreDestroy
+	public void stop() {
+		executor.shutdownNow();
+		mailboxExecutor.shutdownNow();
+		scheduler.shutdownNow();
+		failureHandlerExecutor.shutdownNow();
+	}
+
+	/**
+	 * Call back once a delay is up, without holding a thread in the meantime. All callbacks share one thread, so
+	 * they should only hand work on, such as by posting it to a test's mailbox, rather than doing it themselves.
+	 *
+	 * @param testId the test the callback is for
+	 * @param callback what to call
+	 * @param delay how long to wait
+	 * @param unit the unit of the delay
+	 * @return a future that can be cancelled to stop the callback being made
+	 * @throws RejectedExecutionException if we're shutting down
+	 */
+	public ScheduledFuture<?> schedule(String testId, Runnable callback, long delay, TimeUnit unit) {
+		return scheduler.schedule(() -> {
+			try {
+				callback.run();
+			} catch (RuntimeException e) {
+				logger.error("Error in a scheduled callback for test " + testId, e);
+			}
+		}, delay, unit);
+	}
+
+	/**
+	 * Work through a test's mailbox on the mailbox pool. The caller makes sure that each test only has one of these
+	 * queued or running at a time.
+	 *
+	 * @param testId the test the mailbox belongs to
+	 * @param drain runs what's in the mailbox
+	 * @throws RejectedExecutionException if we're shutting down
+	 */
+	public void executeMailbox(String testId, Runnable drain) {
+		mailboxExecutor.execute(() -> {
+			try {
+				drain.run();
+			} catch (RuntimeException e) {
+				logger.error("Error while running the mailbox for test " + testId, e);
+			}
+		});
+		mailboxRuns.incrementAndGet();
+	}
+
+	/**
+	 * @param failureHandler called with the test ID and the cause of the failure whenever a task throws an exception
+	 */
+	public void setFailureHandler(BiConsumer<String, Throwable> failureHandler) {
+		this.failureHandler = failureHandler;
+	}
+
+	/**
+	 * Report the failure of some work for a test that wasn't run as a task of its own, such as work posted to a
+	 * test's mailbox, in the same way as a failed task.
+	 *
+	 * @param testId the test the work belongs to
+	 * @param cause the exception the work threw
+	 */
+	public void reportFailure(String testId, Throwable cause) {
+		failed.incrementAndGet();
+		handleFailure(testId, cause);
+	}
+
+	private void handleFailure(String testId, Throwable cause) {
+		try {
+			failureHandlerExecutor.execute(() -> {
+				try {
+					failureHandler.accept(testId, cause);
+				} catch (RuntimeException e) {
+					logger.error("Error while handling the failure of a background task for test " + testId, e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// we're shutting down
+			logger.error("Background task failed for test " + testId + " during shutdown", cause);
+		}
+	}
+
+	/**
+	 * Submit a task for the given test.
+	 *
+	 * @param testId the test the task belongs to
+	 * @param owner the owner of the test, can be null
+	 * @param task the task to run
+	 * @param onDone called with the task's future once it has finished, failed or been cancelled
+	 * @return the future for the task
+	 * @throws RejectedExecutionException if the task can't be accepted right now
+	 */
+	public Future<Object> submit(String testId, Map<String, String> owner, Callable<Object> task, Consumer<Future<Object>> onDone) {
+
+		if (!acquire(tasksByTest, testId, maxTasksPerTest)) {
+			rejectedTestQuota.incrementAndGet();
+			throw new RejectedExecutionException("Test " + testId + " already has " + maxTasksPerTest + " background tasks running or queued");
+		}
+
+		if (owner != null && !acquire(tasksByOwner, owner, maxTasksPerOwner)) {
+			release(tasksByTest, testId);
+			rejectedOwnerQuota.incrementAndGet();
+			throw new RejectedExecutionException("Too many background tasks running or queued for this user, try again later");
+		}
+
+		TrackedTask future = new TrackedTask(testId, owner, task, onDone);
+
+		try {
+			executor.execute(future);
+		} catch (RejectedExecutionException e) {
+			release(tasksByTest, testId);
+			if (owner != null) {
+				release(tasksByOwner, owner);
+			}
+			rejectedQueueFull.incrementAndGet();
+			throw new RejectedExecutionException("The test server is too busy to accept more work, try again later", e);
+		}
+
+		submitted.incrementAndGet();
+		return future;
+	}
+
+	// increment the count for the key if it's below the limit; the map is only updated through compute so this is atomic
+	private static <K> boolean acquire(Map<K, Integer> counts, K key, int limit) {
+		boolean[] acquired = { false };
+		counts.compute(key, (k, count) -> {
+			int current = (count == null) ? 0 : count;
+			if (current >= limit) {
+				return count;
+			}
+			acquired[0] = true;
+			return current + 1;
+		});
+		return acquired[0];
+	}
+
+	// decrement the count for the key, removing it altogether when it gets to zero
+	private static <K> void release(Map<K, Integer> counts, K key) {
+		counts.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+	}
+
+	/**
+	 * A future that gives back its quota and reports its outcome as soon as it's done, so nobody has to poll for it.
+	 */
+	private class TrackedTask extends FutureTask<Object> {
+
+		private String testId;
+		private Map<String, String> owner;
+		private Consumer<Future<Object>> onDone;
+
+		public TrackedTask(String testId, Map<String, String> owner, Callable<Object> callable, Consumer<Future<Object>> onDone) {
+			super(callable);
+			this.testId = testId;
+			this.owner = owner;
+			this.onDone = onDone;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean wasCancelled = super.cancel(mayInterruptIfRunning);
+			if (wasCancelled) {
+				// if it hadn't started yet, don't leave it taking up room in the queue
+				executor.remove(this);
+			}
+			return wasCancelled;
+		}
+
+		@Override
+		protected void done() {
+			release(tasksByTest, testId);
+			if (owner != null) {
+				release(tasksByOwner, owner);
+			}
+
+			try {
+				if (isCancelled()) {
+					cancelled.incrementAndGet();
+				} else {
+					try {
+						get(); // doesn't block, we're already done
+						completed.incrementAndGet();
+					} catch (ExecutionException e) {
+						failed.incrementAndGet();
+						handleFailure(testId, e.getCause());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			} catch (Exception e) {
+				logger.error("Error while handling the result of a background task for test " + testId, e);
+			} finally {
+				if (onDone != null) {
+					onDone.accept(this);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a snapshot of the executor's counters, suitable for returning from an API
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("poolSize", executor.getPoolSize());
+		stats.put("maxPoolSize", executor.getMaximumPoolSize());
+		stats.put("active", executor.getActiveCount());
+		stats.put("queued", executor.getQueue().size());
+		stats.put("queueCapacity", queueSize);
+		stats.put("submitted", submitted.get());
+		stats.put("completed", completed.get());
+		stats.put("failed", failed.get());
+		stats.put("cancelled", cancelled.get());
+		stats.put("rejectedQueueFull", rejectedQueueFull.get());
+		stats.put("rejectedTestQuota", rejectedTestQuota.get());
+		stats.put("rejectedOwnerQuota", rejectedOwnerQuota.get());
+		stats.put("testsWithTasks", tasksByTest.size());
+		stats.put("mailboxPoolSize", mailboxExecutor.getPoolSize());
+		stats.put("mailboxActive", mailboxExecutor.getActiveCount());
+		stats.put("mailboxQueued", mailboxExecutor.getQueue().size());
+		stats.put("mailboxRuns", mailboxRuns.get());
+		return stats;
+	}
+
+}
@@ -1,11 +1,12 @@
 package io.fintechlabs.testframework.testmodule;
 
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -26,12 +27,13 @@ import com.google.gson.JsonObject;
 import io.fintechlabs.testframework.condition.Condition;
 import io.fintechlabs.testframework.condition.Condition.ConditionResult;
 import io.fintechlabs.testframework.condition.ConditionError;
-import io.fintechlabs.testframework.condition.PostEnvironment;
-import io.fintechlabs.testframework.condition.PreEnvironment;
+import io.fintechlabs.testframework.condition.ConditionMetadata;
 import io.fintechlabs.testframework.frontChannel.BrowserControl;
 import io.fintechlabs.testframework.info.ImageService;
 import io.fintechlabs.testframework.info.TestInfoService;
 import io.fintechlabs.testframework.logging.TestInstanceEventLog;
+import io.fintechlabs.testframework.logging.TimingStatistics;
+import io.fintechlabs.testframework.runner.TestCheckpointer;
 import io.fintechlabs.testframework.runner.TestExecutionManager;
 
 /**
@@ -46,7 +48,7 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 	//private ExecutorService executorService = Executors.newCachedThreadPool();
 
 	private String id = null; // unique identifier for the test, set from the outside
-	private Status status = Status.UNKNOWN; // current status of the test
+	private volatile Status status = Status.UNKNOWN; // current status of the test, read from outside the mailbox
 	private Result result = Result.UNKNOWN; // results of running the test
 
 	private Map<String, String> owner; // Owner of the test (i.e. who created it. Should be subject and issuer from OIDC
@@ -59,8 +61,12 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 	private Instant statusUpdated; // time stamp of when the status was last updated
 	private TestFailureException finalError; // final error from running the test
 
+	// set while we're waiting for placeholders to be filled; only set and cleared from the mailbox
+	private volatile Runnable placeholderListener;
+
 	protected TestInfoService testInfo;
 	protected ImageService imageService;
+	protected TestCheckpointer checkpointer;
 
 	private Supplier<String> testNameSupplier = Suppliers.memoize(() -> getClass().getDeclaredAnnotation(PublishTestModule.class).testName());
 
@@ -69,7 +75,7 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 	}
 
 	@Override
-	public void setProperties(String id, Map<String, String> owner, TestInstanceEventLog eventLog, BrowserControl browser, TestInfoService testInfo, TestExecutionManager executionManager, ImageService imageService) {
+	public void setProperties(String id, Map<String, String> owner, TestInstanceEventLog eventLog, BrowserControl browser, TestInfoService testInfo, TestExecutionManager executionManager, ImageService imageService, TestCheckpointer checkpointer) {
 		this.id = id;
 		this.owner = owner;
 		this.eventLog = eventLog;
@@ -77,6 +83,7 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 		this.testInfo = testInfo;
 		this.executionManager = executionManager;
 		this.imageService = imageService;
+		this.checkpointer = checkpointer;
 
 		this.created = Instant.now();
 		this.statusUpdated = created; // this will get changed in a moment but set it here for completeness
@@ -213,13 +220,13 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 	 */
 	protected void call(ConditionCallBuilder builder) {
 
+		long start = System.nanoTime();
+
 		try {
 
-			// create a new condition object from the class above
-			Condition condition = builder.getConditionClass()
-				.getDeclaredConstructor(String.class, TestInstanceEventLog.class, ConditionResult.class, String[].class)
-				.newInstance(id, eventLog, builder.getOnFail(), builder.getRequirements());
-			Method eval = builder.getConditionClass().getMethod("evaluate", Environment.class);
+			// create a new condition object from the class above, using what we already know about the class
+			ConditionMetadata metadata = ConditionMetadata.forClass(builder.getConditionClass());
+			Condition condition = metadata.newInstance(id, eventLog, builder.getOnFail(), builder.getRequirements());
 
 			logger.info((builder.isStopOnFailure() ? ">>" : "}}") + " Calling Condition " + builder.getConditionClass().getSimpleName());
 
@@ -269,34 +276,31 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 			}
 
 
-			PreEnvironment pre = eval.getAnnotation(PreEnvironment.class);
-			if (pre != null) {
-				for (String req : pre.required()) {
-					if (!env.containsObject(req)) {
-						logger.info("[pre] Test condition " + builder.getConditionClass().getSimpleName() + " failure, couldn't find key in environment: " + req);
-						eventLog.log(condition.getMessage(), args(
-							"msg", "Condition failure, couldn't find required object in environment before evaluation: " + req,
-							"expected", req,
-							"result", ConditionResult.FAILURE,
-							"mapped", env.isKeyShadowed(req) ? env.getEffectiveKey(req) : null
-						// TODO: log the environment here?
-						));
-						fireTestFailure();
-						throw new TestFailureException(new ConditionError(getId(), "[pre] Couldn't find key in environment: " + req));
-					}
+			for (String req : metadata.getPreRequired()) {
+				if (!env.containsObject(req)) {
+					logger.info("[pre] Test condition " + builder.getConditionClass().getSimpleName() + " failure, couldn't find key in environment: " + req);
+					eventLog.log(condition.getMessage(), args(
+						"msg", "Condition failure, couldn't find required object in environment before evaluation: " + req,
+						"expected", req,
+						"result", ConditionResult.FAILURE,
+						"mapped", env.isKeyShadowed(req) ? env.getEffectiveKey(req) : null
+					// TODO: log the environment here?
+					));
+					fireTestFailure();
+					throw new TestFailureException(new ConditionError(getId(), "[pre] Couldn't find key in environment: " + req));
 				}
-				for (String s : pre.strings()) {
-					if (env.getString(s) == null) {
-						logger.info("[pre] Test condition " + builder.getConditionClass().getSimpleName() + " failure, couldn't find string in environment: " + s);
-						eventLog.log(condition.getMessage(), args(
-							"msg", "Condition failure, couldn't find required string in environment before evaluation: " + s,
-							"expected", s,
-							"result", ConditionResult.FAILURE
-						// TODO: log the environment here?
-						));
-						fireTestFailure();
-						throw new TestFailureException(new ConditionError(getId(), "[pre] Couldn't find string in environment: " + s));
-					}
+			}
+			for (String s : metadata.getPreStrings()) {
+				if (env.getString(s) == null) {
+					logger.info("[pre] Test condition " + builder.getConditionClass().getSimpleName() + " failure, couldn't find string in environment: " + s);
+					eventLog.log(condition.getMessage(), args(
+						"msg", "Condition failure, couldn't find required string in environment before evaluation: " + s,
+						"expected", s,
+						"result", ConditionResult.FAILURE
+					// TODO: log the environment here?
+					));
+					fireTestFailure();
+					throw new TestFailureException(new ConditionError(getId(), "[pre] Couldn't find string in environment: " + s));
 				}
 			}
 
@@ -304,34 +308,31 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 			env = condition.evaluate(env);
 
 			// check the environment to make sure the condition did what it claimed to
-			PostEnvironment post = eval.getAnnotation(PostEnvironment.class);
-			if (post != null) {
-				for (String req : post.required()) {
-					if (!env.containsObject(req)) {
-						logger.info("[post] Test condition " + builder.getConditionClass().getSimpleName() + " failure, couldn't find key in environment: " + req);
-						eventLog.log(condition.getMessage(), args(
-							"msg", "Condition failure, couldn't find required object in environment after evaluation: " + req,
-							"expected", req,
-							"result", ConditionResult.FAILURE,
-							"mapped", env.isKeyShadowed(req) ? env.getEffectiveKey(req) : null
-						// TODO: log the environment here?
-						));
-						fireTestFailure();
-						throw new TestFailureException(new ConditionError(getId(), "[post] Couldn't find key in environment: " + req));
-					}
+			for (String req : metadata.getPostRequired()) {
+				if (!env.containsObject(req)) {
+					logger.info("[post] Test condition " + builder.getConditionClass().getSimpleName() + " failure, couldn't find key in environment: " + req);
+					eventLog.log(condition.getMessage(), args(
+						"msg", "Condition failure, couldn't find required object in environment after evaluation: " + req,
+						"expected", req,
+						"result", ConditionResult.FAILURE,
+						"mapped", env.isKeyShadowed(req) ? env.getEffectiveKey(req) : null
+					// TODO: log the environment here?
+					));
+					fireTestFailure();
+					throw new TestFailureException(new ConditionError(getId(), "[post] Couldn't find key in environment: " + req));
 				}
-				for (String s : post.strings()) {
-					if (env.getString(s) == null) {
-						logger.info("[post] Test condition " + builder.getConditionClass().getSimpleName() + " failure, couldn't find string in environment: " + s);
-						eventLog.log(condition.getMessage(), args(
-							"msg", "Condition failure, couldn't find required string in environment after evaluation: " + s,
-							"expected", s,
-							"result", ConditionResult.FAILURE
-						// TODO: log the environment here?
-						));
-						fireTestFailure();
-						throw new TestFailureException(new ConditionError(getId(), "[post] Couldn't find string in environment: " + s));
-					}
+			}
+			for (String s : metadata.getPostStrings()) {
+				if (env.getString(s) == null) {
+					logger.info("[post] Test condition " + builder.getConditionClass().getSimpleName() + " failure, couldn't find string in environment: " + s);
+					eventLog.log(condition.getMessage(), args(
+						"msg", "Condition failure, couldn't find required string in environment after evaluation: " + s,
+						"expected", s,
+						"result", ConditionResult.FAILURE
+					// TODO: log the environment here?
+					));
+					fireTestFailure();
+					throw new TestFailureException(new ConditionError(getId(), "[post] Couldn't find string in environment: " + s));
 				}
 			}
 
@@ -344,7 +345,7 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 				logger.info("Test condition failure " + builder.getConditionClass().getSimpleName() + " failure: " + error.getMessage());
 				updateResultFromConditionFailure(builder.getOnFail());
 			}
-		} catch (InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException e) {
+		} catch (InvocationTargetException | NoSuchMethodException e) {
 			logException(e);
 			logger.error("Couldn't create condition object", e);
 			fireTestFailure();
@@ -354,6 +355,10 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 			logger.error("Generic error from underlying test framework", e);
 			fireTestFailure();
 			throw new TestFailureException(getId(), e.getMessage());
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			TimingStatistics.record(TimingStatistics.CONDITIONS, builder.getConditionClass().getSimpleName(), elapsed);
+			TimingStatistics.record(TimingStatistics.MODULES, getName(), elapsed);
 		}
 
 	}
@@ -449,51 +454,49 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 	@Override
 	public void fireTestFinished() {
 
-		// first we set our test to WAITING to release the lock (note that this happens in the calling thread) and prepare for finalization
+		// first we set our test to WAITING and prepare for finalization
 		setStatus(Status.WAITING);
 
-		// then this happens in the background so that we can check the state of the browser controller
-
-		getTestExecutionManager().runInBackground(() -> {
+		// wait for web runners to wrap up first, at most 60 seconds; nothing holds a thread while we wait
 
+		browser.afterWebRunners(60, TimeUnit.SECONDS, () -> {
 
-			// wait for web runners to wrap up first
+			// and finish up through the mailbox, after anything the web runners caused
+			getTestExecutionManager().runInOrder(() -> {
 
-			Instant timeout = Instant.now().plusSeconds(60); // wait at most 60 seconds
-			while (browser.getWebRunners().size() > 0
-				&& Instant.now().isBefore(timeout)) {
-				Thread.sleep(100); // sleep before we check again
-			}
+				// if we weren't interrupted already, then we're finished
+				if (!getStatus().equals(Status.INTERRUPTED)) {
+					setStatus(Status.FINISHED);
 
-			// if we weren't interrupted already, then we're finished
-			if (!getStatus().equals(Status.INTERRUPTED)) {
-				setStatus(Status.FINISHED);
+					// log the environment here in case "stop" doesn't get it it
+					logFinalEnv();
+				}
 
-				// log the environment here in case "stop" doesn't get it it
-				logFinalEnv();
-			}
+				if (getResult() == Result.UNKNOWN) {
+					fireTestSuccess();
+				}
 
-			if (getResult() == Result.UNKNOWN) {
-				fireTestSuccess();
-			}
+				// clean up any remaining placeholders here; if we call this function then we have reached a condition where we're not expecting them to be filled externally
 
-			// clean up any remaining placeholders here; if we call this function then we have reached a condition where we're not expecting them to be filled externally
+				List<String> placeholders = imageService.getRemainingPlaceholders(getId(), true);
 
-			List<String> placeholders = imageService.getRemainingPlaceholders(getId(), true);
+				for (String placeholder : placeholders) {
+					Map<String, Object> update = ImmutableMap.of(
+						"test_finished", true);
+					imageService.fillPlaceholder(getId(), placeholder, update, true);
+				}
 
-			for (String placeholder : placeholders) {
-				Map<String, Object> update = ImmutableMap.of(
-					"test_finished", true);
-				imageService.fillPlaceholder(getId(), placeholder, update, true);
-			}
+				stop();
 
-			stop();
+				eventLog.log(getName(), args(
+					"msg", "Finished",
+					"result", getResult()));
 
-			eventLog.log(getName(), args(
-				"msg", "Finished",
-				"result", getResult()));
+				// make sure everything this test logged has been stored before anyone comes looking for it
+				eventLog.flush();
 
-			return "done";
+				return "done";
+			});
 		});
 	}
 
@@ -574,6 +577,7 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 	 * Any state can go to "UNKNOWN"
 	 */
 	protected void setStatus(Status newStatus) {
+		long start = System.nanoTime();
 		Status oldStatus = getStatus();
 
 		logger.info("setStatus("+newStatus.toString()+"): current status = "+oldStatus.toString());
@@ -583,6 +587,13 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 			return;
 		}
 
+		// if we're going to wait, take a snapshot for the checkpoint now, before anything else can change the environment
+		Environment checkpointEnv = null;
+		if (newStatus == Status.WAITING && checkpointer != null && checkpointer.isEnabled()) {
+			checkpointEnv = env.snapshot();
+		}
+
+		// there's no locking here: the work that changes a test's status is run one item at a time through its mailbox
 		switch (oldStatus) {
 			case CREATED:
 				switch (newStatus) {
@@ -591,70 +602,48 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 					case FINISHED:
 						break;
 					default:
-						clearLockIfHeld();
 						throw new TestFailureException(getId(), "Illegal test state change: " + oldStatus + " -> " + newStatus);
 				}
 				break;
 			case CONFIGURED:
 				switch (newStatus) {
 					case RUNNING:
-						acquireLock();
-						break;
 					case INTERRUPTED:
 					case FINISHED:
 					case WAITING:
 						break;
 					default:
-						clearLock();
 						throw new TestFailureException(getId(), "Illegal test state change: " + oldStatus + " -> " + newStatus);
 				}
 				break;
-			case RUNNING:  // We should have the lock when we're running
+			case RUNNING:
 				switch (newStatus) {
 					case INTERRUPTED:
-						clearLockIfHeld();
-						break;
 					case FINISHED:
 					case WAITING:
-						clearLock();
 						break;
 					default:
-						clearLockIfHeld();
 						throw new TestFailureException(getId(), "Illegal test state change: " + oldStatus + " -> " + newStatus);
 				}
 				break;
-			case WAITING:  // we shouldn't have the lock if we're waiting.
+			case WAITING:
 				switch (newStatus) {
 					case RUNNING:
-						acquireLock();  // we want to grab the lock whenever we start running
-						break;
 					case INTERRUPTED:
 					case FINISHED:
 						break;
 					default:
-						clearLockIfHeld();
 						throw new TestFailureException(getId(), "Illegal test state change: " + oldStatus + " -> " + newStatus);
 				}
 				break;
 			case INTERRUPTED:
-				clearLockIfHeld();
 				throw new TestFailureException(getId(), "Illegal test state change: " + oldStatus + " -> " + newStatus);
 			case FINISHED:
-				clearLockIfHeld();
 				throw new TestFailureException(getId(), "Illegal test state change: " + oldStatus + " -> " + newStatus);
 			case UNKNOWN:
 				// we can go from unknown to anything
-				switch (newStatus) {
-					case RUNNING:
-						acquireLock();  // we want to grab the lock whenever we start running
-						break;
-					default:
-						clearLockIfHeld();
-						break;
-				}
 				break;
 			default:
-				clearLockIfHeld();
 				throw new TestFailureException(getId(), "Illegal test state change: " + oldStatus + " -> " + newStatus);
 		}
 
@@ -662,23 +651,109 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 		testInfo.updateTestStatus(getId(), newStatus);
 
 		this.statusUpdated = Instant.now();
+
+		if (checkpointEnv != null) {
+			checkpointer.save(getId(), createCheckpoint(checkpointEnv), checkpointEnv);
+		} else if ((newStatus == Status.FINISHED || newStatus == Status.INTERRUPTED) && checkpointer != null) {
+			checkpointer.discard(getId());
+		}
+
+		if (placeholderListener != null) {
+			// we're waiting for placeholders, and whether we're done depends on the status as well
+			recheckPlaceholders();
+		}
+
+		TimingStatistics.record(TimingStatistics.STATUS, oldStatus + " -> " + newStatus, System.nanoTime() - start);
+	}
+
+	/**
+	 * Record the lifecycle state of the test for a checkpoint; the environment is added by the checkpointer.
+	 */
+	private JsonObject createCheckpoint(Environment snapshot) {
+		JsonObject checkpoint = new JsonObject();
+		checkpoint.addProperty("testId", getId());
+		checkpoint.addProperty("testName", getName());
+		checkpoint.add("owner", toJsonObject(getOwner()));
+		checkpoint.addProperty("status", getStatus().toString());
+		checkpoint.addProperty("result", getResult().toString());
+		checkpoint.addProperty("created", getCreated().toString());
+		checkpoint.addProperty("statusUpdated", getStatusUpdated().toString());
+		checkpoint.add("exposed", toJsonObject(getExposedValues()));
+		checkpoint.addProperty("blockId", eventLog.getBlockId());
+
+		// the snapshot isn't being changed by anyone, unlike our environment
+		String alias = snapshot.getString("config", "alias");
+		if (!Strings.isNullOrEmpty(alias)) {
+			checkpoint.addProperty("alias", alias);
+		}
+
+		JsonObject moduleState = new JsonObject();
+		saveModuleState(moduleState);
+		checkpoint.add("moduleState", moduleState);
+
+		return checkpoint;
 	}
 
+	private static JsonObject toJsonObject(Map<String, String> map) {
+		JsonObject o = new JsonObject();
+		if (map != null) {
+			for (Map.Entry<String, String> entry : map.entrySet()) {
+				o.addProperty(entry.getKey(), entry.getValue());
+			}
+		}
+		return o;
+	}
 
 	/**
-	 * Clear the lock. We we don't have it in the current thread, throw an exception.
+	 * Save any state the test module keeps outside of the environment, for a checkpoint. Anything saved here is
+	 * handed back to restoreModuleState when the test is restored.
+	 *
+	 * @param state the object to save the state into
 	 */
-	protected void clearLock(){
-		env.getLock().unlock();
+	protected void saveModuleState(JsonObject state) {
+		// nothing by default
 	}
 
 	/**
-	 * Helper to check if we have the lock, and if we do, unlock it. If we don't have the lock
-	 * in the current thread, do nothing.
+	 * Restore the state saved by saveModuleState.
+	 *
+	 * @param state the saved state
 	 */
-	protected void clearLockIfHeld(){
-		if(env.getLock().isHeldByCurrentThread()) {
-			env.getLock().unlock();
+	protected void restoreModuleState(JsonObject state) {
+		// nothing by default
+	}
+
+	/* (non-Javadoc)
+	 * @see io.fintechlabs.testframework.testmodule.TestModule#restore(com.google.gson.JsonObject)
+	 */
+	@Override
+	public void restore(JsonObject checkpoint) {
+		env = Environment.fromJson(checkpoint.getAsJsonObject("env"));
+
+		exposed = new HashMap<>();
+		for (Map.Entry<String, JsonElement> entry : checkpoint.getAsJsonObject("exposed").entrySet()) {
+			exposed.put(entry.getKey(), entry.getValue().isJsonNull() ? null : entry.getValue().getAsString());
+		}
+
+		JsonElement blockId = checkpoint.get("blockId");
+		eventLog.resumeBlock(blockId != null && !blockId.isJsonNull() ? blockId.getAsString() : null);
+
+		restoreModuleState(checkpoint.getAsJsonObject("moduleState"));
+
+		result = Result.valueOf(checkpoint.get("result").getAsString());
+		created = Instant.parse(checkpoint.get("created").getAsString());
+		statusUpdated = Instant.parse(checkpoint.get("statusUpdated").getAsString());
+
+		// setProperties recorded the test as created, put it back how it was
+		status = Status.valueOf(checkpoint.get("status").getAsString());
+		testInfo.updateTestStatus(getId(), status);
+
+		// the placeholders were tracked by whichever node ran the test before
+		int placeholders = imageService.reloadPlaceholders(getId());
+
+		if (status == Status.WAITING && placeholders > 0) {
+			// we were waiting for the placeholders to be filled in, so carry on doing that
+			waitForPlaceholders();
 		}
 	}
 
@@ -743,6 +818,8 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 		}
 
 		logFinalEnv();
+
+		eventLog.flush();
 	}
 
 	/**
@@ -778,10 +855,6 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 		return new RedirectView("/log-detail.html?log=" + getId());
 	}
 
-	protected void acquireLock() {
-		env.getLock().lock();
-	}
-
 	@Override
 	public Object handleHttp(String path, HttpServletRequest req, HttpServletResponse res, HttpSession session, JsonObject requestParts) {
 		throw new TestFailureException(getId(), "Got an HTTP response we weren't expecting");
@@ -797,43 +870,81 @@ public abstract class AbstractTestModule implements TestModule, DataUtils {
 		return executionManager;
 	}
 
-	protected void waitForPlaceholders() {
-		// set up a listener to wait for either an error callback or an image upload
-		executionManager.runInBackground(() -> {
-
-			Thread.sleep(10 * 1000); // wait for 10 seconds before we check the first time
-
-			boolean cont = true;
-
-			while (cont) {
-
-				// grab the lock before we check anything in case something is finishing up
-				acquireLock();
+	@Override
+	public boolean isReadOnlyPath(String path) {
+		// everything goes through the mailbox unless a test says otherwise
+		return false;
+	}
 
-				// re-fetch the placeholders every check
-				List<String> remainingPlaceholders = imageService.getRemainingPlaceholders(getId(), true);
+	protected void waitForPlaceholders() {
+		// nothing holds a thread while we wait: each filled placeholder checks again through the mailbox
+		executionManager.runInOrder(() -> {
+			if (placeholderListener == null) {
+				placeholderListener = this::recheckPlaceholders;
+				imageService.addPlaceholderListener(getId(), placeholderListener);
+				schedulePlaceholderRecheck();
+			}
+			return checkPlaceholdersInOrder();
+		});
+	}
 
-				if (getStatus().equals(Status.FINISHED) || getStatus().equals(Status.INTERRUPTED)) {
-					// if the test is finished/interrupted, nothing for us to do, stop looking
-					cont = false;
-				} else if (remainingPlaceholders.isEmpty() && getStatus().equals(Status.WAITING)) {
-					// if the test is still waiting, but all the placeholders are gone, then we can call it finished, stop looking
-					fireTestFinished();
-					cont = false;
-				} else {
-					// otherwise (test is waiting but placeholders are still there, or test is running, etc), check again in the future
-					cont = true;
+	/**
+	 * Check the placeholders once a minute anyway, as the ones filled through another node only show up in the
+	 * database. This is a timer, not a waiting thread, and stops once we're done waiting or the test's work is
+	 * cancelled.
+	 */
+	private void schedulePlaceholderRecheck() {
+		executionManager.schedule(60, TimeUnit.SECONDS).thenRun(() -> executionManager.runInOrder(() -> {
+			if (placeholderListener != null) {
+				imageService.reloadPlaceholders(getId());
+				checkPlaceholdersInOrder();
+				if (placeholderListener != null) {
+					schedulePlaceholderRecheck();
 				}
+			}
+			return "rechecked";
+		}));
+	}
 
-				// let go of the lock
-				clearLock();
-
-				Thread.sleep(10 * 1000); // wait for 10 seconds before we check again
+	private void recheckPlaceholders() {
+		try {
+			executionManager.runInOrder(this::checkPlaceholdersInOrder);
+		} catch (RejectedExecutionException e) {
+			// we're shutting down, the test will be picked up from its checkpoint
+		}
+	}
 
-			}
+	/**
+	 * Check the placeholders while we're waiting for them, and stop waiting once we're done. This is only called
+	 * from the mailbox.
+	 */
+	private Object checkPlaceholdersInOrder() {
+		if (placeholderListener != null && !checkPlaceholders()) {
+			imageService.removePlaceholderListener(getId(), placeholderListener);
+			placeholderListener = null;
+		}
+		return "checked";
+	}
 
-			return "done";
-		});
+	/**
+	 * Check whether the test is done waiting for placeholders to be filled, and finish it if it is.
+	 *
+	 * @return true if we need to keep waiting
+	 */
+	private boolean checkPlaceholders() {
+		if (getStatus().equals(Status.FINISHED) || getStatus().equals(Status.INTERRUPTED)) {
+			// if the test is finished/interrupted, nothing for us to do, stop looking
+			return false;
+		} else if (getStatus().equals(Status.WAITING)
+			&& imageService.countRemainingPlaceholders(getId()) == 0
+			&& imageService.getRemainingPlaceholders(getId(), true).isEmpty()) { // confirm with the database before we finish
+			// if the test is still waiting, but all the placeholders are gone, then we can call it finished, stop looking
+			fireTestFinished();
+			return false;
+		} else {
+			// otherwise (test is waiting but placeholders are still there, or test is running, etc), check again in the future
+			return true;
+		}
 	}
 
 }
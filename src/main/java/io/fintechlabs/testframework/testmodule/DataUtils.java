@@ -10,8 +10,8 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.util.MultiValueMap;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
 import io.fintechlabs.testframework.condition.Condition.ConditionResult;
 
@@ -29,10 +29,11 @@ public interface DataUtils {
 	 */
 	public default JsonObject mapToJsonObject(MultiValueMap<String, String> params, boolean lowercase) {
 		JsonObject o = new JsonObject();
-		for (String key : params.keySet()) {
+		for (Map.Entry<String, List<String>> entry : params.entrySet()) {
+			List<String> values = entry.getValue();
 			o.addProperty(
-				lowercase ? key.toLowerCase() : key,
-				params.getFirst(key));
+				lowercase ? entry.getKey().toLowerCase() : entry.getKey(),
+				values != null && !values.isEmpty() ? values.get(0) : null);
 		}
 		return o;
 	}
@@ -58,8 +59,22 @@ public interface DataUtils {
 		return ex(cause, new HashMap<>());
 	}
 
+	/**
+	 * Copy an object so that fields can be added to or replaced in the copy without touching the original.
+	 *
+	 * Only the top level is copied and the values are shared with the original, so don't change them. This is
+	 * enough for adding fields to something before logging it, and much cheaper than a deep copy.
+	 */
+	public default JsonObject copyObject(JsonObject in) {
+		JsonObject copy = new JsonObject();
+		for (Map.Entry<String, JsonElement> field : in.entrySet()) {
+			copy.add(field.getKey(), field.getValue());
+		}
+		return copy;
+	}
+
 	public default JsonObject ex(Throwable cause, JsonObject in) {
-		JsonObject copy = new JsonParser().parse(in.toString()).getAsJsonObject(); // don't modify the underlying object, round-trip to get a copy
+		JsonObject copy = copyObject(in); // don't modify the underlying object
 		copy.addProperty("error", cause.getMessage());
 		copy.addProperty("error_class", cause.getClass().getName());
 
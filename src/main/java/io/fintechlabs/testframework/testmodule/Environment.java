@@ -16,14 +16,15 @@ package io.fintechlabs.testframework.testmodule;
 
 import java.lang.reflect.Type;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Iterables;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
@@ -54,6 +55,14 @@ import com.google.gson.reflect.TypeToken;
  * stored internally in a dedicated JSON object alongside all other objects. A native value and a JSON object can be stored using
  * the same key, but the two of these are unrelated to each other. Native value keys are never be mapped.
  *
+ * A snapshot of the environment can be taken at any time with snapshot(). Taking one doesn't copy anything: the
+ * snapshot shares its objects with the environment, and a shared object is only copied when it's handed out by
+ * getObject (or as a container by getElementFromObject) by either of them, as the caller may change it. Reading
+ * values with the get functions for native types never copies anything.
+ *
+ * An environment isn't thread safe. A test's environment is only changed by the work in the test's mailbox, which is
+ * run one item at a time; see TestExecutionManager.
+ *
  * @author jricher
  *
  */
@@ -64,17 +73,61 @@ public class Environment {
 	private static final Type MAP_STRING_JSONOBJECT_TYPE = new TypeToken<Map<String, JsonObject>>() {}.getType();
 	private static final Gson gson = new Gson();
 
-	/**
-	 * Set up a lock for threading purposes
-	 */
-	private ReentrantLock lock = new ReentrantLock(true); // set with fairness policy to get up control to the longest waiting thread
-
 	// key for storing native values directly
 	private static final String NATIVE_VALUES = "_NATIVE_VALUES";
-	private Map<String, JsonObject> store = Maps.newHashMap(
-		ImmutableMap.of(NATIVE_VALUES, new JsonObject())); // make sure we start with a place to putObject the string values
+	private Map<String, StoredObject> store;
+
+	private Map<String, String> keyMap;
 
-	private Map<String, String> keyMap = new HashMap<>();
+	// paths used with getElementFromObject, split into their parts; these come from code, so there shouldn't be many
+	private static final int MAX_COMPILED_PATHS = 10000;
+	private static final Map<String, String[]> compiledPaths = new ConcurrentHashMap<>();
+
+	// hands out the generations of stored objects and snapshots, in order
+	private static final AtomicLong generations = new AtomicLong();
+
+	// objects stored up to this generation may be shared with a snapshot, and have to be copied before they're handed out
+	private long sharedUpTo = 0;
+
+	public Environment() {
+		store = new HashMap<>();
+		store.put(NATIVE_VALUES, new StoredObject(new JsonObject())); // make sure we start with a place to putObject the string values
+		keyMap = new HashMap<>();
+	}
+
+	private Environment(Map<String, StoredObject> store, Map<String, String> keyMap, long sharedUpTo) {
+		this.store = store;
+		this.keyMap = keyMap;
+		this.sharedUpTo = sharedUpTo;
+	}
+
+	/**
+	 * Take a snapshot of the environment as it is now. Later changes made through either this environment or
+	 * the snapshot aren't seen by the other one, as long as objects handed out before the snapshot was taken
+	 * aren't changed afterwards.
+	 *
+	 * Nothing is copied up front; see the class description.
+	 *
+	 * @return the snapshot
+	 */
+	public Environment snapshot() {
+		long generation = generations.incrementAndGet();
+		sharedUpTo = generation;
+		return new Environment(new HashMap<>(store), new HashMap<>(keyMap), generation);
+	}
+
+	// get an object to be handed out, copying it first if it might be shared with a snapshot
+	private JsonObject getWritableObject(String effectiveKey) {
+		StoredObject stored = store.get(effectiveKey);
+		if (stored == null) {
+			return null;
+		}
+		if (stored.generation <= sharedUpTo) {
+			stored = new StoredObject(copyOf(stored.value).getAsJsonObject());
+			store.put(effectiveKey, stored);
+		}
+		return stored.value;
+	}
 
 
 	/**
@@ -103,7 +156,7 @@ public class Environment {
 	 * @return the stored object if it exists, null if it does not
 	 */
 	public JsonObject getObject(String key) {
-		return store.get(getEffectiveKey(key));
+		return getWritableObject(getEffectiveKey(key));
 	}
 
 	/**
@@ -133,7 +186,8 @@ public class Environment {
 	 * @return the stored object
 	 */
 	public JsonObject putObject(String key, JsonObject value) {
-		return store.put(getEffectiveKey(key), value);
+		StoredObject previous = store.put(getEffectiveKey(key), new StoredObject(value));
+		return previous == null ? null : previous.value;
 	}
 
 	/**
@@ -162,39 +216,62 @@ public class Environment {
 	 * @returns the element within the object if found, null if the object is not found, or null if no element is found at the given path within the object
 	 */
 	public JsonElement getElementFromObject(String key, String path) {
+		String effectiveKey = getEffectiveKey(key);
+
+		StoredObject stored = store.get(effectiveKey);
+		if (stored == null) {
+			return null;
+		}
+
+		JsonElement e = findElement(stored.value, path);
+
+		if (e != null && (e.isJsonObject() || e.isJsonArray()) && stored.generation <= sharedUpTo) {
+			// the caller could change this, so find it again in a copy that isn't shared with a snapshot
+			e = findElement(getWritableObject(effectiveKey), path);
+		}
+
+		return e;
+	}
 
-		// get the object we're looking for and recursively start our walk here
-		JsonElement e = getObject(key);
+	// split a path into its parts, reusing the result from the last time we saw the same path
+	private static String[] compilePath(String path) {
+		String[] parts = compiledPaths.get(path);
+		if (parts == null) {
+			parts = Iterables.toArray(Splitter.on('.').split(path), String.class);
+			if (compiledPaths.size() < MAX_COMPILED_PATHS) {
+				compiledPaths.putIfAbsent(path, parts);
+			}
+		}
+		return parts;
+	}
+
+	// walk the path down from the given object
+	private static JsonElement findElement(JsonObject object, String path) {
+
+		// start our walk at the object we're looking in
+		JsonElement e = object;
 
 		if (e == null) {
 			return null;
 		}
 
-		Iterable<String> parts = Splitter.on('.').split(path);
-		Iterator<String> it = parts.iterator();
-
-		while (it.hasNext()) {
-			String p = it.next();
-			if (e.isJsonObject()) {
-				JsonObject o = e.getAsJsonObject();
-				if (o.has(p)) {
-					e = o.get(p); // found the next level
-					if (!it.hasNext()) {
-						// we've reached a leaf at the right part of the key, return what we found
-						return e;
-					}
-				} else {
-					// didn't find it, stop processing
-					break;
-				}
-			} else {
+		String[] parts = compilePath(path);
+
+		for (int i = 0; i < parts.length; i++) {
+			if (!e.isJsonObject()) {
+				// didn't find it, stop processing
+				return null;
+			}
+
+			e = e.getAsJsonObject().get(parts[i]);
+			if (e == null) {
 				// didn't find it, stop processing
-				break;
+				return null;
 			}
 		}
 
-		// didn't find it
-		return null;
+		// we've reached a leaf at the right part of the key, return what we found
+		return e;
 
 	}
 
@@ -312,22 +389,66 @@ public class Environment {
 	}
 
 
-	/*
-	 * prints out the environment as a mostly-json-formatted string
+	/**
+	 * Write out everything in the environment, including the native values and the key mappings, so that it can be
+	 * read back in with fromJson.
+	 *
+	 * Nothing is copied, so this is meant to be called on a snapshot that nothing else is using.
+	 *
+	 * @return the environment as JSON
 	 */
-	@Override
-	public String toString() {
-		return "Environment: { \"store\" : " + gson.toJson(store, MAP_STRING_JSONOBJECT_TYPE)
-			+ ", \"keyMap\" : " + gson.toJson(keyMap, MAP_STRING_STRING_TYPE) + " }";
+	public JsonObject toJson() {
+		JsonObject objects = new JsonObject();
+		for (Map.Entry<String, StoredObject> stored : store.entrySet()) {
+			objects.add(stored.getKey(), stored.getValue().value);
+		}
+
+		JsonObject mappings = new JsonObject();
+		for (Map.Entry<String, String> mapping : keyMap.entrySet()) {
+			mappings.addProperty(mapping.getKey(), mapping.getValue());
+		}
+
+		JsonObject json = new JsonObject();
+		json.add("store", objects);
+		json.add("keyMap", mappings);
+		return json;
 	}
 
 	/**
-	 * Get the lock used for synchronization of a running test instance.
+	 * Read an environment back in from what toJson wrote out. The new environment takes ownership of the objects in
+	 * the JSON.
 	 *
-	 * @return the lock
+	 * @param json the environment as JSON
+	 * @return the environment
 	 */
-	public ReentrantLock getLock() {
-		return lock;
+	public static Environment fromJson(JsonObject json) {
+		Map<String, StoredObject> store = new HashMap<>();
+		for (Map.Entry<String, JsonElement> stored : json.getAsJsonObject("store").entrySet()) {
+			store.put(stored.getKey(), new StoredObject(stored.getValue().getAsJsonObject()));
+		}
+		if (!store.containsKey(NATIVE_VALUES)) {
+			store.put(NATIVE_VALUES, new StoredObject(new JsonObject()));
+		}
+
+		Map<String, String> keyMap = new HashMap<>();
+		for (Map.Entry<String, JsonElement> mapping : json.getAsJsonObject("keyMap").entrySet()) {
+			keyMap.put(mapping.getKey(), mapping.getValue().getAsString());
+		}
+
+		return new Environment(store, keyMap, 0);
+	}
+
+	/*
+	 * prints out the environment as a mostly-json-formatted string
+	 */
+	@Override
+	public String toString() {
+		Map<String, JsonObject> objects = new LinkedHashMap<>();
+		for (Map.Entry<String, StoredObject> stored : store.entrySet()) {
+			objects.put(stored.getKey(), stored.getValue().value);
+		}
+		return "Environment: { \"store\" : " + gson.toJson(objects, MAP_STRING_JSONOBJECT_TYPE)
+			+ ", \"keyMap\" : " + gson.toJson(keyMap, MAP_STRING_STRING_TYPE) + " }";
 	}
 
 	/**
@@ -340,11 +461,11 @@ public class Environment {
 	 * @return
 	 */
 	public String getEffectiveKey(String key) {
-		if (keyMap.containsKey(key)) {
-			return keyMap.get(key);
-		} else {
+		if (keyMap.isEmpty()) {
 			return key;
 		}
+		String mapped = keyMap.get(key);
+		return mapped != null ? mapped : key;
 	}
 
 	/**
@@ -541,5 +662,37 @@ public class Environment {
 		natives.remove(key);
 	}
 
+	// copy a JSON element all the way down; primitives can't be changed, so they're shared
+	private static JsonElement copyOf(JsonElement source) {
+		if (source.isJsonObject()) {
+			JsonObject copy = new JsonObject();
+			for (Map.Entry<String, JsonElement> member : source.getAsJsonObject().entrySet()) {
+				copy.add(member.getKey(), copyOf(member.getValue()));
+			}
+			return copy;
+		} else if (source.isJsonArray()) {
+			JsonArray copy = new JsonArray(source.getAsJsonArray().size());
+			for (JsonElement element : source.getAsJsonArray()) {
+				copy.add(copyOf(element));
+			}
+			return copy;
+		} else {
+			return source;
+		}
+	}
+
+	/**
+	 * An object in the store, along with the generation it was stored in
+	 */
+	private static class StoredObject {
+		private final JsonObject value;
+		private final long generation;
+
+		public StoredObject(JsonObject value) {
+			this.value = value;
+			this.generation = generations.incrementAndGet();
+		}
+	}
+
 
 }
@@ -26,6 +26,7 @@ import io.fintechlabs.testframework.frontChannel.BrowserControl;
 import io.fintechlabs.testframework.info.ImageService;
 import io.fintechlabs.testframework.info.TestInfoService;
 import io.fintechlabs.testframework.logging.TestInstanceEventLog;
+import io.fintechlabs.testframework.runner.TestCheckpointer;
 import io.fintechlabs.testframework.runner.TestExecutionManager;
 
 /**
@@ -105,11 +106,12 @@ public interface TestModule {
 	 * @param path
 	 *            The path that was called
 	 * @param req
-	 *            The request that passed to the server
+	 *            The request that passed to the server; null unless the path is read only (see isReadOnlyPath), as
+	 *            other requests are handled through the mailbox and may outlive the servlet request
 	 * @param res
-	 *            A response that will be sent from the server
+	 *            A response that will be sent from the server; null unless the path is read only
 	 * @param session
-	 *            Session details
+	 *            Session details; null unless the path is read only
 	 * @param requestParts
 	 *            elements from the request parsed out into a json object for use in condition classes
 	 * @return A response (could be a ModelAndview, ResponseEntity, or other item)
@@ -119,6 +121,18 @@ public interface TestModule {
 		HttpSession session,
 		JsonObject requestParts);
 
+	/**
+	 * Check whether requests to a path can be handled as soon as they arrive, alongside whatever the test is doing,
+	 * rather than in turn through the test's mailbox. This is only safe for requests that don't change the test's
+	 * state, such as fetching its keys, and it's needed for anything the system under test may ask for while the
+	 * test is in the middle of a call to it.
+	 *
+	 * @param path
+	 *            The path that was called
+	 * @return true if the request doesn't need to go through the mailbox
+	 */
+	boolean isReadOnlyPath(String path);
+
 	/**
 	 * @return get the test results
 	 */
@@ -143,8 +157,11 @@ public interface TestModule {
 	/**
 	 * @param path
 	 * @param req
+	 *            as for handleHttp, null unless the path is read only
 	 * @param res
+	 *            as for handleHttp, null unless the path is read only
 	 * @param session
+	 *            as for handleHttp, null unless the path is read only
 	 * @param requestParts
 	 * @return
 	 */
@@ -212,6 +229,14 @@ public interface TestModule {
 	/**
 	 * Pass along the appropriate runtime services and properties to allow the test to run. It cannot be used until this is completed.
 	 */
-	void setProperties(String id, Map<String, String> owner, TestInstanceEventLog wrappedEventLog, BrowserControl browser, TestInfoService testInfo, TestExecutionManager executionManager, ImageService imageService);
+	void setProperties(String id, Map<String, String> owner, TestInstanceEventLog wrappedEventLog, BrowserControl browser, TestInfoService testInfo, TestExecutionManager executionManager, ImageService imageService, TestCheckpointer checkpointer);
+
+	/**
+	 * Bring the test back to the state it was in when a checkpoint was taken. This is called after setProperties,
+	 * instead of configure and start.
+	 *
+	 * @param checkpoint the checkpoint, as loaded by the TestCheckpointer
+	 */
+	void restore(JsonObject checkpoint);
 
 }
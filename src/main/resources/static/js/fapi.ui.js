@@ -193,7 +193,7 @@ var FAPI_UI = {
 
 		},
 
-		visibleFields : ["msg", "src", "time", "result", "requirements", "upload", "testOwner", "testId", "http", "blockId", "startBlock"],
+		visibleFields : ["msg", "src", "time", "result", "requirements", "upload", "testOwner", "testId", "http", "blockId", "startBlock", "seq", "elapsed_ms"],
 
 		availableTests : {},
 
@@ -205,6 +205,8 @@ var FAPI_UI = {
 
 		latestTestEntry: undefined,
 
+		logStream: undefined,
+
 		reloadPause: 100,
 
 		maxReloadPause: 5000, // cap at ~5s
@@ -246,8 +246,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "result"
-		assertThat(res.size()).isEqualTo(obj.size() + 1);
+		// one extra field for "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 2);
 
 		assertThat(res.has("result")).isEqualTo(true);
 		assertThat(res.get("result").getAsString()).isEqualTo("SUCCESS");
@@ -259,6 +259,18 @@ public class AbstractCondition_UnitTest {
 		}
 	}
 
+	@Test
+	public void testLogSuccess_elapsed() {
+		cond.logSuccess(msg);
+
+		verify(eventLog).log(eq(TEST_CLASS_NAME), mapCaptor.capture());
+
+		Map<String, Object> res = mapCaptor.getValue();
+
+		assertThat(res.get("elapsed_ms")).isInstanceOf(Double.class);
+		assertThat((Double) res.get("elapsed_ms")).isGreaterThanOrEqualTo(0.0);
+	}
+
 	@Test
 	public void testLogSuccess_jsonObj_withReqs() {
 		condReqs.logSuccess(obj);
@@ -267,8 +279,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "result" and "requirements"
-		assertThat(res.size()).isEqualTo(obj.size() + 2);
+		// one extra field for "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 3);
 
 		assertThat(res.has("result")).isEqualTo(true);
 		assertThat(res.get("result").getAsString()).isEqualTo("SUCCESS");
@@ -295,8 +307,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results"
-		assertThat(res.size()).isEqualTo(2);
+		// one extra field for "msg" and "results" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(3);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -314,8 +326,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results" and "requirements"
-		assertThat(res.size()).isEqualTo(3);
+		// one extra field for "msg" and "results" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(4);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -343,8 +355,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "result"
-		assertThat(res.size()).isEqualTo(map.size() + 1);
+		// one extra field for "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 2);
 
 		assertThat(res.containsKey("result")).isEqualTo(true);
 		assertThat(res.get("result").toString()).isEqualTo("SUCCESS");
@@ -364,8 +376,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "result" and "requirements"
-		assertThat(res.size()).isEqualTo(map.size() + 2);
+		// one extra field for "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 3);
 
 		assertThat(res.containsKey("result")).isEqualTo(true);
 		assertThat(res.get("result").toString()).isEqualTo("SUCCESS");
@@ -395,8 +407,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result"
-		assertThat(res.size()).isEqualTo(map.size() + 2);
+		// one extra field for "msg" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 3);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -419,8 +431,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "requirements"
-		assertThat(res.size()).isEqualTo(map.size() + 3);
+		// one extra field for "msg" and "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 4);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -453,8 +465,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result"
-		assertThat(res.size()).isEqualTo(obj.size() + 2);
+		// one extra field for "msg" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 3);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(msg);
@@ -477,8 +489,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "requirements"
-		assertThat(res.size()).isEqualTo(obj.size() + 3);
+		// one extra field for "msg" and "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 4);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(msg);
@@ -512,8 +524,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "result"
-		assertThat(res.size()).isEqualTo(obj.size() + 1);
+		// one extra field for "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 2);
 
 		assertThat(res.has("result")).isEqualTo(true);
 		assertThat(res.get("result").getAsString()).isEqualTo("FAILURE");
@@ -533,8 +545,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "result" and "requirements"
-		assertThat(res.size()).isEqualTo(obj.size() + 2);
+		// one extra field for "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 3);
 
 		assertThat(res.has("result")).isEqualTo(true);
 		assertThat(res.get("result").getAsString()).isEqualTo("FAILURE");
@@ -561,8 +573,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results"
-		assertThat(res.size()).isEqualTo(2);
+		// one extra field for "msg" and "results" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(3);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -580,8 +592,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results" and "requirements"
-		assertThat(res.size()).isEqualTo(3);
+		// one extra field for "msg" and "results" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(4);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -609,8 +621,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "result"
-		assertThat(res.size()).isEqualTo(map.size() + 1);
+		// one extra field for "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 2);
 
 		assertThat(res.containsKey("result")).isEqualTo(true);
 		assertThat(res.get("result").toString()).isEqualTo("FAILURE");
@@ -630,8 +642,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "result" and "requirements"
-		assertThat(res.size()).isEqualTo(map.size() + 2);
+		// one extra field for "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 3);
 
 		assertThat(res.containsKey("result")).isEqualTo(true);
 		assertThat(res.get("result").toString()).isEqualTo("FAILURE");
@@ -661,8 +673,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result"
-		assertThat(res.size()).isEqualTo(map.size() + 2);
+		// one extra field for "msg" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 3);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -685,8 +697,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "requirements"
-		assertThat(res.size()).isEqualTo(map.size() + 3);
+		// one extra field for "msg" and "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 4);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -719,8 +731,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result"
-		assertThat(res.size()).isEqualTo(obj.size() + 2);
+		// one extra field for "msg" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 3);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(msg);
@@ -743,8 +755,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "requirements"
-		assertThat(res.size()).isEqualTo(obj.size() + 3);
+		// one extra field for "msg" and "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 4);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(msg);
@@ -778,8 +790,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "result"
-		assertThat(res.size()).isEqualTo(obj.size() + 1);
+		// one extra field for "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 2);
 
 		assertThat(res.has("result")).isEqualTo(true);
 		assertThat(res.get("result").getAsString()).isEqualTo("INFO");
@@ -799,8 +811,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "result" and "requirements"
-		assertThat(res.size()).isEqualTo(obj.size() + 2);
+		// one extra field for "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 3);
 
 		assertThat(res.has("result")).isEqualTo(true);
 		assertThat(res.get("result").getAsString()).isEqualTo("WARNING");
@@ -827,8 +839,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results"
-		assertThat(res.size()).isEqualTo(2);
+		// one extra field for "msg" and "results" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(3);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -846,8 +858,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results" and "requirements"
-		assertThat(res.size()).isEqualTo(3);
+		// one extra field for "msg" and "results" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(4);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -875,8 +887,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "result"
-		assertThat(res.size()).isEqualTo(map.size() + 1);
+		// one extra field for "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 2);
 
 		assertThat(res.containsKey("result")).isEqualTo(true);
 		assertThat(res.get("result").toString()).isEqualTo("INFO");
@@ -896,8 +908,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "result" and "requirements"
-		assertThat(res.size()).isEqualTo(map.size() + 2);
+		// one extra field for "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 3);
 
 		assertThat(res.containsKey("result")).isEqualTo(true);
 		assertThat(res.get("result").toString()).isEqualTo("WARNING");
@@ -927,8 +939,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result"
-		assertThat(res.size()).isEqualTo(map.size() + 2);
+		// one extra field for "msg" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 3);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -951,8 +963,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "requirements"
-		assertThat(res.size()).isEqualTo(map.size() + 3);
+		// one extra field for "msg" and "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 4);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -985,8 +997,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result"
-		assertThat(res.size()).isEqualTo(obj.size() + 2);
+		// one extra field for "msg" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 3);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(msg);
@@ -1009,8 +1021,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "requirements"
-		assertThat(res.size()).isEqualTo(obj.size() + 3);
+		// one extra field for "msg" and "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 4);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(msg);
@@ -1051,8 +1063,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results" and "error" and "error_class" and "stracktrace"
-		assertThat(res.size()).isEqualTo(5);
+		// one extra field for "msg" and "results" and "error" and "error_class" and "stracktrace" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(6);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -1072,8 +1084,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results"
-		assertThat(res.size()).isEqualTo(2);
+		// one extra field for "msg" and "results" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(3);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -1094,8 +1106,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "results" and "error" and "error_class" and "stracktrace"
-		assertThat(res.size()).isEqualTo(5);
+		// one extra field for "msg" and "results" and "error" and "error_class" and "stracktrace" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(6);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(cause.getMessage());
@@ -1116,8 +1128,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "error" and "error_class" and "stracktrace"
-		assertThat(res.size()).isEqualTo(map.size() + 5);
+		// one extra field for "msg" and "result" and "error" and "error_class" and "stracktrace" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 6);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -1142,8 +1154,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result"
-		assertThat(res.size()).isEqualTo(map.size() + 2);
+		// one extra field for "msg" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 3);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -1171,8 +1183,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "error" and "error_class" and "stracktrace"
-		assertThat(res.size()).isEqualTo(map.size() + 5);
+		// one extra field for "msg" and "result" and "error" and "error_class" and "stracktrace" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(map.size() + 6);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(cause.getMessage());
@@ -1200,8 +1212,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "error" and "error_class" and "stracktrace"
-		assertThat(res.size()).isEqualTo(obj.size() + 5);
+		// one extra field for "msg" and "result" and "error" and "error_class" and "stracktrace" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 6);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(msg);
@@ -1227,8 +1239,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result"
-		assertThat(res.size()).isEqualTo(obj.size() + 2);
+		// one extra field for "msg" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 3);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(msg);
@@ -1255,8 +1267,8 @@ public class AbstractCondition_UnitTest {
 
 		JsonObject res = objCaptor.getValue();
 
-		// one extra field for "msg" and "result" and "error" and "error_class" and "stracktrace"
-		assertThat(res.size()).isEqualTo(obj.size() + 5);
+		// one extra field for "msg" and "result" and "error" and "error_class" and "stracktrace" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(obj.size() + 6);
 
 		assertThat(res.has("msg")).isEqualTo(true);
 		assertThat(res.get("msg").getAsString()).isEqualTo(cause.getMessage());
@@ -1283,8 +1295,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "upload" and "result"
-		assertThat(res.size()).isEqualTo(2);
+		// one extra field for "upload" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(3);
 
 		assertThat(res.containsKey("upload")).isEqualTo(true);
 		assertThat(res.get("upload")).isInstanceOf(String.class); // it can be any string
@@ -1302,8 +1314,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "upload" and "result" and "requirements"
-		assertThat(res.size()).isEqualTo(3);
+		// one extra field for "upload" and "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(4);
 
 		assertThat(res.containsKey("upload")).isEqualTo(true);
 		assertThat(res.get("upload")).isInstanceOf(String.class); // it can be any string
@@ -1327,8 +1339,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "upload" and "result"
-		assertThat(res.size()).isEqualTo(3);
+		// one extra field for "msg" and "upload" and "result" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(4);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
@@ -1349,8 +1361,8 @@ public class AbstractCondition_UnitTest {
 
 		Map<String, Object> res = mapCaptor.getValue();
 
-		// one extra field for "msg" and "upload" and "result" and "requirements"
-		assertThat(res.size()).isEqualTo(4);
+		// one extra field for "msg" and "upload" and "result" and "requirements" and "elapsed_ms"
+		assertThat(res.size()).isEqualTo(5);
 
 		assertThat(res.containsKey("msg")).isEqualTo(true);
 		assertThat(res.get("msg")).isEqualTo(msg);
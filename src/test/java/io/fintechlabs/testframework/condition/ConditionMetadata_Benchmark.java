@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.condition;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.fintechlabs.testframework.condition.Condition.ConditionResult;
+import io.fintechlabs.testframework.condition.common.CheckForKeyIdInClientJWKs;
+import io.fintechlabs.testframework.logging.TestInstanceEventLog;
+import io.fintechlabs.testframework.testmodule.Environment;
+
+/**
+ * Measures what AbstractTestModule does before it evaluates a condition: create the condition and read the requirements
+ * off its evaluate method. The cached metadata is compared with the reflection that used to be done on every call.
+ * Run with the main method, from the IDE or with the test classpath.
+ *
+ * @author jricher
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConditionMetadata_Benchmark {
+
+	private static final Class<? extends Condition> CONDITION = CheckForKeyIdInClientJWKs.class;
+
+	private static final String[] REQUIREMENTS = { "FAPI-R-5.2.2-1" };
+
+	// the conditions are only created here, never evaluated, so they don't need a log
+	private static final TestInstanceEventLog LOG = null;
+
+	@Benchmark
+	public void cachedMetadata(Blackhole blackhole) throws Exception {
+		ConditionMetadata metadata = ConditionMetadata.forClass(CONDITION);
+		blackhole.consume(metadata.newInstance("test", LOG, ConditionResult.FAILURE, REQUIREMENTS));
+		blackhole.consume(metadata.getPreRequired());
+		blackhole.consume(metadata.getPreStrings());
+		blackhole.consume(metadata.getPostRequired());
+		blackhole.consume(metadata.getPostStrings());
+	}
+
+	@Benchmark
+	public void reflectionEachCall(Blackhole blackhole) throws Exception {
+		blackhole.consume(CONDITION
+			.getConstructor(String.class, TestInstanceEventLog.class, ConditionResult.class, String[].class)
+			.newInstance("test", LOG, ConditionResult.FAILURE, REQUIREMENTS));
+		Method eval = CONDITION.getMethod("evaluate", Environment.class);
+		blackhole.consume(eval.getAnnotation(PreEnvironment.class));
+		blackhole.consume(eval.getAnnotation(PostEnvironment.class));
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+			.include(ConditionMetadata_Benchmark.class.getSimpleName())
+			.build()).run();
+	}
+
+}
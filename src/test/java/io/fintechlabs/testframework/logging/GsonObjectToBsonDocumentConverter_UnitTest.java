@@ -0,0 +1,89 @@
+package io.fintechlabs.testframework.logging;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GsonObjectToBsonDocumentConverter_UnitTest {
+
+	private static final String PLAIN = "{"
+		+ "\"msg\": \"hello \\\"world\\\"\","
+		+ "\"small\": 12,"
+		+ "\"negative\": -7,"
+		+ "\"big\": 1523456789012,"
+		+ "\"real\": 1.5,"
+		+ "\"exponent\": 1e3,"
+		+ "\"flag\": true,"
+		+ "\"nothing\": null,"
+		+ "\"list\": [1, \"two\", [3.0], {\"four\": 4}],"
+		+ "\"nested\": {\"deeper\": {\"deepest\": false}}"
+		+ "}";
+
+	/**
+	 * Without any keys to wrap, the result is exactly what parsing the JSON would have given.
+	 */
+	@Test
+	public void testSameAsParsing() {
+		JsonObject source = new JsonParser().parse(PLAIN).getAsJsonObject();
+
+		DBObject converted = GsonObjectToBsonDocumentConverter.convertObject(source);
+
+		assertEquals(JSON.parse(source.toString()), converted);
+
+		assertEquals(Integer.class, converted.get("small").getClass());
+		assertEquals(Long.class, converted.get("big").getClass());
+		assertEquals(Double.class, converted.get("real").getClass());
+		assertEquals(Double.class, converted.get("exponent").getClass());
+		assertTrue(converted.containsField("nothing"));
+		assertNull(converted.get("nothing"));
+	}
+
+	@Test
+	public void testWrapsKeys() {
+		JsonObject source = new JsonParser().parse("{\"a.b\": {\"$c\": 1}, \"plain\": \"x\"}").getAsJsonObject();
+
+		DBObject converted = GsonObjectToBsonDocumentConverter.convertObject(source);
+
+		assertEquals("x", converted.get("plain"));
+		assertFalse(converted.containsField("a.b"));
+
+		String wrappedKey = null;
+		for (String key : converted.keySet()) {
+			if (key.startsWith("__wrapped_key_element_")) {
+				wrappedKey = key;
+			}
+		}
+
+		DBObject wrapped = (DBObject) converted.get(wrappedKey);
+		assertEquals("a.b", wrapped.get("key"));
+
+		// keys are wrapped all the way down
+		DBObject value = (DBObject) wrapped.get("value");
+		assertEquals(1, value.keySet().size());
+		DBObject inner = (DBObject) value.get(value.keySet().iterator().next());
+		assertEquals("$c", inner.get("key"));
+		assertEquals(1, inner.get("value"));
+	}
+
+	@Test
+	public void testSourceUntouched() {
+		JsonObject source = new JsonParser().parse(PLAIN).getAsJsonObject();
+		String before = source.toString();
+
+		DBObject converted = GsonObjectToBsonDocumentConverter.convertObject(source);
+		converted.put("added", "value");
+		((BasicDBList) converted.get("list")).add("more");
+
+		assertEquals(before, source.toString());
+	}
+
+}
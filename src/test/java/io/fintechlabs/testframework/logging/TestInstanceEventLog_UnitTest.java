@@ -0,0 +1,159 @@
+package io.fintechlabs.testframework.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestInstanceEventLog_UnitTest {
+
+	private static final int TEST_COUNT = 200;
+
+	private static final int BLOCKS_PER_TEST = 20;
+
+	private static final int ENTRIES_PER_BLOCK = 5;
+
+	private RecordingEventLog eventLog;
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		eventLog = new RecordingEventLog();
+	}
+
+	@Test
+	public void testBlocks() {
+		TestInstanceEventLog log = new TestInstanceEventLog("test-1", ImmutableMap.of("sub", "user"), eventLog);
+
+		log.log("before", "not in a block");
+		String blockId = log.startBlock("first block");
+		log.log("inside", "in a block");
+		String ended = log.endBlock();
+		log.log("after", "not in a block");
+
+		assertNotNull(blockId);
+		assertEquals(blockId, ended);
+		assertNull(log.getBlockId());
+
+		List<Entry> entries = new ArrayList<>(eventLog.entries);
+		assertEquals(4, entries.size());
+		assertNull(entries.get(0).blockId);
+		assertEquals(blockId, entries.get(1).blockId); // the -START-BLOCK- entry
+		assertEquals(blockId, entries.get(2).blockId);
+		assertNull(entries.get(3).blockId);
+	}
+
+	@Test
+	public void testEndBlockWithoutStart() {
+		TestInstanceEventLog log = new TestInstanceEventLog("test-1", ImmutableMap.of("sub", "user"), eventLog);
+
+		assertNull(log.endBlock());
+	}
+
+	/**
+	 * Run many test instances at once against the same event log, each of them starting and ending blocks
+	 * while the others are doing the same, and make sure every entry ends up in the block its own test started.
+	 */
+	@Test
+	public void testConcurrentBlocks() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(32);
+		CountDownLatch startGate = new CountDownLatch(1);
+
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < TEST_COUNT; t++) {
+			String testId = "test-" + t;
+			futures.add(executor.submit(() -> {
+				TestInstanceEventLog log = new TestInstanceEventLog(testId, ImmutableMap.of("sub", testId), eventLog);
+				startGate.await();
+
+				for (int b = 0; b < BLOCKS_PER_TEST; b++) {
+					String blockId = log.startBlock("block " + b);
+					for (int e = 0; e < ENTRIES_PER_BLOCK; e++) {
+						log.log("stress", log.args("expected", blockId));
+						Thread.yield();
+					}
+					assertEquals(blockId, log.endBlock());
+					log.log("stress", log.args("expected", "none"));
+				}
+				return null;
+			}));
+		}
+
+		startGate.countDown();
+		for (Future<?> f : futures) {
+			f.get(60, TimeUnit.SECONDS); // rethrows any assertion failure from the worker
+		}
+		executor.shutdown();
+
+		// one start-block entry, the entries in the block, and one entry after the block
+		assertEquals(TEST_COUNT * BLOCKS_PER_TEST * (ENTRIES_PER_BLOCK + 2), eventLog.entries.size());
+
+		for (Entry entry : eventLog.entries) {
+			Object expected = entry.map.get("expected");
+			if (expected == null) {
+				// -START-BLOCK- entries are always inside the block they start
+				assertTrue((Boolean) entry.map.get("startBlock"));
+				assertNotNull(entry.blockId);
+			} else if (expected.equals("none")) {
+				assertNull(entry.blockId);
+			} else {
+				assertEquals(expected, entry.blockId);
+			}
+		}
+	}
+
+	private static class Entry {
+		private String blockId;
+		private Map<String, Object> map;
+
+		public Entry(String blockId, Map<String, Object> map) {
+			this.blockId = blockId;
+			this.map = map;
+		}
+	}
+
+	private static class RecordingEventLog implements EventLog {
+
+		private Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+		@Override
+		public void log(String testId, String source, Map<String, String> owner, String blockId, String msg) {
+			entries.add(new Entry(blockId, ImmutableMap.<String, Object>of("msg", msg)));
+		}
+
+		@Override
+		public void log(String testId, String source, Map<String, String> owner, String blockId, JsonObject obj) {
+			entries.add(new Entry(blockId, ImmutableMap.<String, Object>of("obj", obj)));
+		}
+
+		@Override
+		public void log(String testId, String source, Map<String, String> owner, String blockId, Map<String, Object> map) {
+			entries.add(new Entry(blockId, map));
+		}
+
+		@Override
+		public void flush() {
+			// nothing to do, entries are recorded immediately
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.AntPathMatcher;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+
+/**
+ * Measures routing an incoming request to its test, for a plain and an aliased path, against the way it used to be
+ * done with a new AntPathMatcher and Splitter and Joiner on every request. Run with the main method, from the IDE or
+ * with the test classpath.
+ *
+ * @author jricher
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TestDispatcher_Benchmark {
+
+	private static final String BY_ID = "/test/Q6v5GnvAGxJUQHV/.well-known/openid-configuration";
+
+	private static final String BY_ALIAS = "/test-mtls/a/my-alias/open-banking/v1.1/accounts";
+
+	@Benchmark
+	public Object routeById() {
+		return TestDispatcher.Route.parse(BY_ID);
+	}
+
+	@Benchmark
+	public Object routeByAlias() {
+		return TestDispatcher.Route.parse(BY_ALIAS);
+	}
+
+	@Benchmark
+	public void routeByIdWithPathMatcher(Blackhole blackhole) {
+		splitWithPathMatcher("/test/**", BY_ID, blackhole);
+	}
+
+	@Benchmark
+	public void routeByAliasWithPathMatcher(Blackhole blackhole) {
+		splitWithPathMatcher("/test-mtls/**", BY_ALIAS, blackhole);
+	}
+
+	// how paths were split before Route
+	private static void splitWithPathMatcher(String pattern, String path, Blackhole blackhole) {
+		AntPathMatcher apm = new AntPathMatcher();
+		String finalPath = apm.extractPathWithinPattern(pattern, path);
+
+		Iterator<String> pathParts = Splitter.on("/").split(finalPath).iterator();
+
+		String testId = pathParts.next();
+		if (testId.equals("a")) {
+			blackhole.consume(pathParts.next());
+		} else {
+			blackhole.consume(testId);
+		}
+
+		blackhole.consume(Joiner.on("/").join(pathParts));
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+			.include(TestDispatcher_Benchmark.class.getSimpleName())
+			.build()).run();
+	}
+
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.runner;
+
+import org.junit.Test;
+
+import io.fintechlabs.testframework.runner.TestDispatcher.Route;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author jricher
+ *
+ */
+public class TestDispatcher_UnitTest {
+
+	@Test
+	public void testRouteById() {
+		Route route = Route.parse("/test/abc123/token");
+
+		assertFalse(route.mtls);
+		assertEquals("abc123", route.testId);
+		assertNull(route.alias);
+		assertEquals("token", route.restOfPath);
+	}
+
+	@Test
+	public void testRouteByAlias() {
+		Route route = Route.parse("/test-mtls/a/my-alias/open-banking/v1.1/accounts");
+
+		assertTrue(route.mtls);
+		assertNull(route.testId);
+		assertEquals("my-alias", route.alias);
+		assertEquals("open-banking/v1.1/accounts", route.restOfPath);
+	}
+
+	@Test
+	public void testRouteWithoutRest() {
+		Route route = Route.parse("/test/abc123");
+
+		assertEquals("abc123", route.testId);
+		assertEquals("", route.restOfPath);
+	}
+
+	@Test
+	public void testRouteSkipsEmptySegments() {
+		Route route = Route.parse("/test//abc123//.well-known/openid-configuration/");
+
+		assertEquals("abc123", route.testId);
+		assertEquals(".well-known/openid-configuration", route.restOfPath);
+	}
+
+	@Test
+	public void testRouteOnlyFirstSegmentIsAlias() {
+		Route route = Route.parse("/test/abc123/a/b");
+
+		assertEquals("abc123", route.testId);
+		assertNull(route.alias);
+		assertEquals("a/b", route.restOfPath);
+	}
+
+	@Test
+	public void testNoRoute() {
+		assertNull(Route.parse("/test/"));
+		assertNull(Route.parse("/test/a"));
+		assertNull(Route.parse("/test/a/"));
+		assertNull(Route.parse("/log/abc123"));
+	}
+
+}
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+
+package io.fintechlabs.testframework.runner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.fintechlabs.testframework.security.AuthenticationFacade;
+import io.fintechlabs.testframework.testmodule.TestFailureException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author jricher
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class TestExecutionManager_UnitTest {
+
+	private static final int POSTERS = 16;
+
+	private static final int POSTS_PER_POSTER = 2000;
+
+	@Mock
+	private AuthenticationFacade authenticationFacade;
+
+	private TestTaskExecutor executor;
+
+	private TestExecutionManager executionManager;
+
+	/**
+	 * @throws java.lang.Exception
+	 */
+	@Before
+	public void setUp() throws Exception {
+		executor = new TestTaskExecutor();
+		ReflectionTestUtils.setField(executor, "poolSize", 8);
+		ReflectionTestUtils.setField(executor, "queueSize", 1000);
+		ReflectionTestUtils.setField(executor, "maxTasksPerTest", 50);
+		ReflectionTestUtils.setField(executor, "maxTasksPerOwner", 500);
+		ReflectionTestUtils.setField(executor, "mailboxPoolSize", 4);
+		executor.start();
+
+		executionManager = new TestExecutionManager("test-1", ImmutableMap.of("sub", "user"), executor, authenticationFacade);
+	}
+
+	@After
+	public void tearDown() {
+		executor.stop();
+	}
+
+	@Test
+	public void testPostRunsInOrder() throws Exception {
+		List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+
+		CompletableFuture<Integer> last = null;
+		for (int i = 0; i < POSTS_PER_POSTER; i++) {
+			int n = i;
+			last = executionManager.post(() -> {
+				ran.add(n);
+				return n;
+			});
+		}
+
+		assertEquals(POSTS_PER_POSTER - 1, (int) last.get(10, TimeUnit.SECONDS));
+		assertEquals(POSTS_PER_POSTER, ran.size());
+		for (int i = 0; i < POSTS_PER_POSTER; i++) {
+			assertEquals(i, (int) ran.get(i));
+		}
+	}
+
+	/**
+	 * Post from many threads at once, and make sure that only one item ever runs at a time and that each thread's
+	 * items run in the order that thread posted them.
+	 */
+	@Test
+	public void testOneAtATimeFromManyThreads() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		AtomicInteger ranCount = new AtomicInteger();
+		int[] lastSeen = new int[POSTERS]; // only touched from inside the mailbox
+		AtomicReference<String> outOfOrder = new AtomicReference<>();
+
+		ExecutorService posters = Executors.newFixedThreadPool(POSTERS);
+		CountDownLatch startGate = new CountDownLatch(1);
+		List<Future<CompletableFuture<Object>>> lastPosted = new ArrayList<>();
+
+		for (int p = 0; p < POSTERS; p++) {
+			int poster = p;
+			lastSeen[poster] = -1;
+			lastPosted.add(posters.submit(() -> {
+				startGate.await();
+				CompletableFuture<Object> last = null;
+				for (int i = 0; i < POSTS_PER_POSTER; i++) {
+					int n = i;
+					last = executionManager.post(() -> {
+						int now = running.incrementAndGet();
+						maxRunning.accumulateAndGet(now, Math::max);
+
+						if (lastSeen[poster] != n - 1) {
+							outOfOrder.compareAndSet(null, "poster " + poster + " ran " + n + " after " + lastSeen[poster]);
+						}
+						lastSeen[poster] = n;
+						ranCount.incrementAndGet();
+
+						running.decrementAndGet();
+						return null;
+					});
+				}
+				return last;
+			}));
+		}
+
+		startGate.countDown();
+		for (Future<CompletableFuture<Object>> f : lastPosted) {
+			f.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+		}
+		posters.shutdown();
+
+		assertEquals(1, maxRunning.get());
+		assertEquals(POSTERS * POSTS_PER_POSTER, ranCount.get());
+		assertEquals(null, outOfOrder.get());
+		// futures are taken out of the list by a callback that can run just after get() returns, so only check they're done
+		assertFalse(executionManager.getFutures().stream().anyMatch(f -> !f.isDone()));
+	}
+
+	@Test
+	public void testFailureDoesntStopTheMailbox() throws Exception {
+		CompletableFuture<Object> failed = executionManager.post(() -> {
+			throw new IllegalStateException("broken");
+		});
+		CompletableFuture<String> after = executionManager.post(() -> "still running");
+
+		assertEquals("still running", after.get(10, TimeUnit.SECONDS));
+		try {
+			failed.get();
+			fail("Expected the first item to have failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	@Test
+	public void testCancelledItemIsSkipped() throws Exception {
+		CountDownLatch blocked = new CountDownLatch(1);
+		AtomicInteger ranCancelled = new AtomicInteger();
+
+		executionManager.post(() -> blocked.await(10, TimeUnit.SECONDS));
+		CompletableFuture<Integer> cancelled = executionManager.post(() -> ranCancelled.incrementAndGet());
+		CompletableFuture<String> after = executionManager.post(() -> "after");
+
+		assertTrue(cancelled.cancel(true));
+		blocked.countDown();
+
+		assertEquals("after", after.get(10, TimeUnit.SECONDS));
+		assertEquals(0, ranCancelled.get());
+	}
+
+	/**
+	 * Take up every thread of the main pool and the test's whole quota with tasks that don't finish, and make sure
+	 * the mailbox still runs.
+	 */
+	@Test
+	public void testMailboxIsntHeldUpByBackgroundTasks() throws Exception {
+		CountDownLatch blocked = new CountDownLatch(1);
+		for (int i = 0; i < 50; i++) {
+			executionManager.runInBackground(() -> blocked.await(10, TimeUnit.SECONDS));
+		}
+
+		try {
+			assertEquals("ran", executionManager.post(() -> "ran").get(10, TimeUnit.SECONDS));
+		} finally {
+			blocked.countDown();
+		}
+	}
+
+	/**
+	 * Far more timers than there are threads can be waiting at once, as none of them holds a thread.
+	 */
+	@Test
+	public void testTimersDontHoldThreads() throws Exception {
+		List<CompletableFuture<Void>> timers = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			timers.add(executionManager.schedule(100, TimeUnit.MILLISECONDS));
+		}
+
+		CompletableFuture<Void> cancelled = executionManager.schedule(100, TimeUnit.MILLISECONDS);
+		assertTrue(cancelled.cancel(false));
+
+		CompletableFuture<Void> early = executionManager.schedule(1, TimeUnit.HOURS);
+		assertTrue(early.complete(null));
+
+		CompletableFuture.allOf(timers.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+		assertEquals("still running", executionManager.post(() -> "still running").get(10, TimeUnit.SECONDS));
+		assertTrue(cancelled.isCancelled());
+		assertFalse(executionManager.getFutures().stream().anyMatch(f -> !f.isDone()));
+	}
+
+	@Test
+	public void testRunInOrderReportsFailures() throws Exception {
+		CompletableFuture<Throwable> reported = new CompletableFuture<>();
+		executor.setFailureHandler((testId, cause) -> reported.complete(cause));
+
+		executionManager.runInOrder(() -> {
+			throw new IllegalStateException("broken");
+		});
+
+		Throwable cause = reported.get(10, TimeUnit.SECONDS);
+		assertTrue(cause instanceof TestFailureException);
+		assertEquals("test-1", ((TestFailureException) cause).getTestId());
+		assertFalse(executionManager.getFutures().stream().anyMatch(f -> !f.isDone()));
+	}
+
+}
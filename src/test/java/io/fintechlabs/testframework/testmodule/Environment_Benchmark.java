@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+
+package io.fintechlabs.testframework.testmodule;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.base.Splitter;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Measures the path lookups conditions make all the time, such as getString("server", "token_endpoint"), against
+ * walking the same path the way it used to be done, splitting the path on every call. Run with the main method,
+ * from the IDE or with the test classpath.
+ *
+ * @author jricher
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Environment_Benchmark {
+
+	private Environment env;
+
+	private JsonObject server;
+
+	@Setup
+	public void setUp() {
+		server = new JsonParser().parse("{"
+			+ "\"issuer\": \"https://server.example.com\","
+			+ "\"token_endpoint\": \"https://server.example.com/token\","
+			+ "\"mtls_endpoint_aliases\": {\"token_endpoint\": \"https://mtls.example.com/token\"}"
+			+ "}").getAsJsonObject();
+
+		env = new Environment();
+		env.putObject("server", server);
+		env.putObject("client", new JsonParser().parse("{\"client_id\": \"client\"}").getAsJsonObject());
+		env.mapKey("mapped_client", "client");
+	}
+
+	@Benchmark
+	public String topLevelPath() {
+		return env.getString("server", "token_endpoint");
+	}
+
+	@Benchmark
+	public String nestedPath() {
+		return env.getString("server", "mtls_endpoint_aliases.token_endpoint");
+	}
+
+	@Benchmark
+	public String mappedKey() {
+		return env.getString("mapped_client", "client_id");
+	}
+
+	@Benchmark
+	public JsonElement nestedPathSplitEachTime() {
+		return splitAndWalk(server, "mtls_endpoint_aliases.token_endpoint");
+	}
+
+	// how paths were walked before they were cached
+	private static JsonElement splitAndWalk(JsonObject object, String path) {
+		JsonElement e = object;
+		Iterator<String> it = Splitter.on('.').split(path).iterator();
+		while (it.hasNext()) {
+			String p = it.next();
+			if (e.isJsonObject() && e.getAsJsonObject().has(p)) {
+				e = e.getAsJsonObject().get(p);
+				if (!it.hasNext()) {
+					return e;
+				}
+			} else {
+				break;
+			}
+		}
+		return null;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+			.include(Environment_Benchmark.class.getSimpleName())
+			.build()).run();
+	}
+
+}
@@ -354,4 +354,68 @@ public class Environment_UnitTest {
 		assertEquals(altObject, env.getObject(altKey));
 	}
 
+	/**
+	 * Test method for {@link io.fintechlabs.testframework.testmodule.Environment#snapshot()}.
+	 */
+	@Test
+	public void testSnapshot() {
+		env.mapKey(mappedKey, testKey);
+
+		Environment snapshot = env.snapshot();
+
+		// change things through the environment after the snapshot was taken
+		env.getObject(testKey).addProperty("string", "changed");
+		env.getElementFromObject(testKey, "object.baz").getAsJsonObject().addProperty("qux", "robin");
+		env.putString(testStringKey, altStringValue);
+		env.putObject(altKey, altObject);
+		env.unmapKey(mappedKey);
+
+		assertEquals("changed", env.getString(testKey, "string"));
+		assertEquals("robin", env.getString(testKey, path));
+		assertEquals(altStringValue, env.getString(testStringKey));
+
+		// the snapshot still has things the way they were
+		assertEquals(testObject, snapshot.getObject(testKey));
+		assertEquals("value", snapshot.getString(testKey, "string"));
+		assertEquals("batman", snapshot.getString(testKey, path));
+		assertEquals(testStringValue, snapshot.getString(testStringKey));
+		assertFalse(snapshot.containsObject(altKey));
+		assertTrue(snapshot.isKeyMapped(mappedKey));
+		assertEquals("value", snapshot.getString(mappedKey, "string"));
+	}
+
+	@Test
+	public void testChangeSnapshot() {
+		Environment snapshot = env.snapshot();
+
+		snapshot.getObject(testKey).addProperty("string", "changed");
+		snapshot.putString(testStringKey, altStringValue);
+
+		assertEquals("value", env.getString(testKey, "string"));
+		assertEquals(testStringValue, env.getString(testStringKey));
+	}
+
+	/**
+	 * Test method for {@link io.fintechlabs.testframework.testmodule.Environment#toJson()} and {@link io.fintechlabs.testframework.testmodule.Environment#fromJson(JsonObject)}.
+	 */
+	@Test
+	public void testJsonRoundTrip() {
+		env.mapKey(mappedKey, testKey);
+
+		JsonObject json = env.snapshot().toJson();
+
+		// go through a string, as a checkpoint would
+		Environment restored = Environment.fromJson(new JsonParser().parse(json.toString()).getAsJsonObject());
+
+		assertEquals(testObject, restored.getObject(testKey));
+		assertEquals(testStringValue, restored.getString(testStringKey));
+		assertTrue(restored.isKeyMapped(mappedKey));
+		assertEquals("value", restored.getString(mappedKey, "string"));
+		assertFalse(restored.containsObject(notFoundKey));
+
+		// and it's independent of the original
+		restored.getObject(testKey).addProperty("string", "changed");
+		assertEquals("value", env.getString(testKey, "string"));
+	}
+
 }